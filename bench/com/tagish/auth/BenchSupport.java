@@ -0,0 +1,80 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.*;
+import java.util.*;
+import javax.security.auth.callback.*;
+
+/**
+ * Helpers shared by the benchmarks: synthetic password files and a
+ * CallbackHandler with fixed credentials.
+ *
+ * @version 1.0.3
+ */
+class BenchSupport
+{
+	final static String		PASSWORD	= "secret";
+
+	private BenchSupport()
+	{
+	}
+
+	/**
+	 * Write a password file of user0 ... user(n-1), all with the password
+	 * "secret" and two groups each.
+	 *
+	 * @param users number of users
+	 * @return the file, deleted when the JVM exits
+	 */
+	static File passwordFile(int users) throws Exception
+	{
+		File f = File.createTempFile("bench", ".passwd");
+		f.deleteOnExit();
+		String hash = new String(Utils.cryptPassword(PASSWORD.toCharArray()));
+		PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(f), 1 << 16));
+		try {
+			w.println("# generated by BenchSupport");
+			for (int u = 0; u < users; u++) {
+				w.println(userName(u) + ":" + hash + ":staff:group" + (u % 100));
+			}
+		} finally {
+			w.close();
+		}
+		return f;
+	}
+
+	static String userName(int u)
+	{
+		return "user" + u;
+	}
+
+	/**
+	 * Module options for a FileLogin reading the given file.
+	 */
+	static Map fileOptions(File f)
+	{
+		Map options = new HashMap();
+		options.put("pwdFile", f.getPath());
+		return options;
+	}
+
+	/**
+	 * A CallbackHandler that answers with a fixed username and password.
+	 */
+	static CallbackHandler handler(final String username, final String password)
+	{
+		return new CallbackHandler() {
+			public void handle(Callback callbacks[]) throws UnsupportedCallbackException
+			{
+				for (int c = 0; c < callbacks.length; c++) {
+					if (callbacks[c] instanceof NameCallback)
+						((NameCallback) callbacks[c]).setName(username);
+					else if (callbacks[c] instanceof PasswordCallback)
+						((PasswordCallback) callbacks[c]).setPassword(password.toCharArray());
+					else
+						throw new UnsupportedCallbackException(callbacks[c]);
+				}
+			}
+		};
+	}
+}
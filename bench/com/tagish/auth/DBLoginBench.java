@@ -0,0 +1,108 @@
+// $Id$
+package com.tagish.auth;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.login.LoginException;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * DBLogin.validateUser() against an embedded in-memory database (H2 by
+ * default; set bench.dbDriver and bench.dbURL to use another) in each of
+ * its connection modes. A new module is made for every call, as JAAS does
+ * for every LoginContext.
+ *
+ * @version 1.0.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DBLoginBench
+{
+	@Param({ "1000", "100000" })
+	public int			users;
+
+	@Param({ "direct", "pool", "roles", "snapshot", "cache" })
+	public String		mode;
+
+	private Map			options;
+	private char		password[];
+	private Connection	keepAlive;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		String driver = System.getProperty("bench.dbDriver", "org.h2.Driver");
+		String url = System.getProperty("bench.dbURL", "jdbc:h2:mem:bench" + users + mode + ";DB_CLOSE_DELAY=-1");
+		Class.forName(driver);
+		keepAlive = DriverManager.getConnection(url);
+
+		Statement st = keepAlive.createStatement();
+		st.execute("CREATE TABLE users (user_name VARCHAR(64) PRIMARY KEY, user_passwd VARCHAR(64))");
+		st.execute("CREATE TABLE user_roles (user_name VARCHAR(64), role_name VARCHAR(64))");
+		st.execute("CREATE INDEX user_roles_user ON user_roles (user_name)");
+		st.close();
+
+		PreparedStatement pu = keepAlive.prepareStatement("INSERT INTO users VALUES (?, ?)");
+		PreparedStatement pr = keepAlive.prepareStatement("INSERT INTO user_roles VALUES (?, ?)");
+		for (int u = 0; u < users; u++) {
+			pu.setString(1, BenchSupport.userName(u));
+			pu.setString(2, BenchSupport.PASSWORD);
+			pu.addBatch();
+			pr.setString(1, BenchSupport.userName(u));
+			pr.setString(2, "group" + (u % 100));
+			pr.addBatch();
+			if (u % 1000 == 999) {
+				pu.executeBatch();
+				pr.executeBatch();
+			}
+		}
+		pu.executeBatch();
+		pr.executeBatch();
+		pu.close();
+		pr.close();
+
+		options = new HashMap();
+		options.put("dbDriver", driver);
+		options.put("dbURL", url);
+		options.put("userTable", "users");
+		if (!mode.equals("direct")) options.put("pool", "true");
+		if (mode.equals("roles") || mode.equals("snapshot")) options.put("roleTable", "user_roles");
+		if (mode.equals("snapshot")) options.put("snapshot", "true");
+		if (mode.equals("cache")) options.put("cache", "true");
+
+		password = BenchSupport.PASSWORD.toCharArray();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		keepAlive.createStatement().execute("SHUTDOWN");
+		keepAlive.close();
+	}
+
+	private Vector login(String username) throws LoginException
+	{
+		DBLogin module = new DBLogin();
+		module.initialize(null, null, new HashMap(), options);
+		return module.authenticate(username, password);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Vector validateUser() throws LoginException
+	{
+		return login(BenchSupport.userName(users / 2));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Vector validateUserContended() throws LoginException
+	{
+		return login(BenchSupport.userName(users / 2));
+	}
+}
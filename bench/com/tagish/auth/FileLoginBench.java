@@ -0,0 +1,90 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.login.LoginException;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * FileLogin.validateUser() against password files of increasing size. A
+ * new module is made for every call, as JAAS does for every LoginContext.
+ *
+ * @version 1.0.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileLoginBench
+{
+	@Param({ "100", "10000", "1000000" })
+	public int			users;
+
+	private File		file;
+	private Map			options;
+	private char		password[];
+
+	@Setup
+	public void setup() throws Exception
+	{
+		file = BenchSupport.passwordFile(users);
+		options = BenchSupport.fileOptions(file);
+		password = BenchSupport.PASSWORD.toCharArray();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	private Vector login(String username) throws LoginException
+	{
+		FileLogin module = new FileLogin();
+		module.initialize(null, null, new HashMap(), options);
+		return module.validateUser(username, password);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Vector validateUser() throws LoginException
+	{
+		return login(BenchSupport.userName(users / 2));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Vector validateUserContended() throws LoginException
+	{
+		return login(BenchSupport.userName(users / 2));
+	}
+
+	/**
+	 * The same module instance reused, which isolates the lookup from the
+	 * cost of loading the file.
+	 */
+	@State(Scope.Thread)
+	public static class Warm
+	{
+		FileLogin	module;
+
+		@Setup
+		public void setup(FileLoginBench bench) throws Exception
+		{
+			module = new FileLogin();
+			module.initialize(null, null, new HashMap(), bench.options);
+			module.validateUser(BenchSupport.userName(0), bench.password);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Vector validateUserWarm(Warm warm) throws LoginException
+	{
+		return warm.module.validateUser(BenchSupport.userName(users / 2), password);
+	}
+}
@@ -0,0 +1,103 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.*;
+import java.security.URIParameter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import javax.security.auth.login.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The complete JAAS path: LoginContext creation, configuration lookup,
+ * module instantiation, callbacks, login() and commit(), using FileLogin
+ * configured by a tagish.login style file, compared with checking the
+ * same credentials through a ModuleAuthenticator for the same entry.
+ *
+ * @version 1.0.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginContextBench
+{
+	@Param({ "1000", "100000" })
+	public int				users;
+
+	@Param({ "false", "true" })
+	public boolean			cache;
+
+	private File			passwd;
+	private File			config;
+	private Configuration	configuration;
+	private Authenticator	authenticator;
+	private char			password[];
+
+	@Setup
+	public void setup() throws Exception
+	{
+		passwd = BenchSupport.passwordFile(users);
+		config = File.createTempFile("bench", ".login");
+		config.deleteOnExit();
+		PrintWriter w = new PrintWriter(new FileWriter(config));
+		try {
+			w.println("FileLogin");
+			w.println("{");
+			w.println("\tcom.tagish.auth.FileLogin required pwdFile=\"" +
+					  passwd.getPath().replace("\\", "\\\\") + "\" cache=" + cache + ";");
+			w.println("};");
+		} finally {
+			w.close();
+		}
+		configuration = Configuration.getInstance("JavaLoginConfig", new URIParameter(config.toURI()));
+		authenticator = ModuleAuthenticator.getAuthenticator("FileLogin", configuration);
+		password = BenchSupport.PASSWORD.toCharArray();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		passwd.delete();
+		config.delete();
+	}
+
+	private Subject login() throws LoginException
+	{
+		LoginContext lc = new LoginContext("FileLogin", null,
+				BenchSupport.handler(BenchSupport.userName(users / 2), BenchSupport.PASSWORD), configuration);
+		lc.login();
+		return lc.getSubject();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Subject login1() throws LoginException
+	{
+		return login();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Subject loginContended() throws LoginException
+	{
+		return login();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public List authenticator1() throws LoginException
+	{
+		return authenticator.authenticate(BenchSupport.userName(users / 2), password);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public List authenticatorContended() throws LoginException
+	{
+		return authenticator.authenticate(BenchSupport.userName(users / 2), password);
+	}
+}
@@ -0,0 +1,52 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A full read of a large password file, a line at a time as before and in
+ * parallel with PasswordFileParser. Run with -prof gc to compare the
+ * allocation as well as the time.
+ *
+ * @version 1.0.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class PasswordFileLoadBench
+{
+	@Param({ "1000000", "10000000" })
+	public int			users;
+
+	private File		file;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		file = BenchSupport.passwordFile(users);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Benchmark
+	public Map lineByLine() throws Exception
+	{
+		return PasswordFile.read(file);
+	}
+
+	@Benchmark
+	public Map parallel() throws Exception
+	{
+		return PasswordFileParser.parse(file);
+	}
+}
@@ -0,0 +1,82 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * TypedPrincipal.equals() and hashCode() as exercised by a Subject's
+ * principal set, which is synchronized and checked on every add.
+ *
+ * @version 1.0.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrincipalBench
+{
+	@Param({ "10", "1000", "100000" })
+	public int				principals;
+
+	private Subject			subject;
+	private TypedPrincipal	present;
+	private TypedPrincipal	absent;
+	private TypedPrincipal	same[];
+
+	@Setup
+	public void setup()
+	{
+		subject = new Subject();
+		Set s = subject.getPrincipals();
+		for (int p = 0; p < principals; p++) {
+			s.add(new TypedPrincipal("group" + p, p == 0 ? TypedPrincipal.USER : TypedPrincipal.GROUP));
+		}
+		present = new TypedPrincipal("group" + (principals / 2), TypedPrincipal.GROUP);
+		absent = new TypedPrincipal("nobody", TypedPrincipal.GROUP);
+		same = new TypedPrincipal[] { new TypedPrincipal("group1", TypedPrincipal.GROUP),
+									  new TypedPrincipal("group1", TypedPrincipal.GROUP) };
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean containsPresent()
+	{
+		return subject.getPrincipals().contains(present);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean containsPresentContended()
+	{
+		return subject.getPrincipals().contains(present);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean containsAbsent()
+	{
+		return subject.getPrincipals().contains(absent);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void addRemove(Blackhole bh)
+	{
+		Set s = subject.getPrincipals();
+		bh.consume(s.add(absent));
+		bh.consume(s.remove(absent));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean equalsAndHash()
+	{
+		return same[0].hashCode() == same[1].hashCode() && same[0].equals(same[1]);
+	}
+}
@@ -0,0 +1,76 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Password hashing and hex encoding in Utils.
+ *
+ * @version 1.0.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBench
+{
+	private char	password[];
+	private byte	digest[];
+	private String	stored;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		password = "correct horse battery staple".toCharArray();
+		digest = new byte[16];
+		for (int b = 0; b < digest.length; b++) {
+			digest[b] = (byte) (b * 17);
+		}
+		stored = new String(Utils.cryptPassword(password));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public char[] cryptPassword() throws Exception
+	{
+		return Utils.cryptPassword(password);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public char[] cryptPasswordContended() throws Exception
+	{
+		return Utils.cryptPassword(password);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public char[] hexDump()
+	{
+		return Utils.hexDump(digest);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public char[] hexDumpContended()
+	{
+		return Utils.hexDump(digest);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean verifyPassword() throws Exception
+	{
+		return Utils.verifyPassword(password, stored);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean verifyPasswordContended() throws Exception
+	{
+		return Utils.verifyPassword(password, stored);
+	}
+}
@@ -0,0 +1,53 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of each PasswordVerifier, for sizing the hashing pool.
+ *
+ * @version 1.0.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class VerifierBench
+{
+	@Param({ "plain", "md5", "pbkdf2-10000", "pbkdf2-210000" })
+	public String			algorithm;
+
+	private PasswordVerifier	verifier;
+	private String				stored;
+	private char				password[];
+
+	@Setup
+	public void setup() throws Exception
+	{
+		if (algorithm.equals("plain"))
+			verifier = new PlainPasswordVerifier();
+		else if (algorithm.equals("md5"))
+			verifier = new MD5PasswordVerifier();
+		else
+			verifier = new PBKDF2PasswordVerifier(Integer.parseInt(algorithm.substring(7)));
+		password = BenchSupport.PASSWORD.toCharArray();
+		stored = verifier.hash(password);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean verify() throws Exception
+	{
+		return verifier.verify(password, stored);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean verifyContended() throws Exception
+	{
+		return verifier.verify(password, stored);
+	}
+}
@@ -0,0 +1,304 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.*;
+import javax.security.auth.login.*;
+
+/**
+ * Runs JAAS logins without blocking the caller. Each login is performed by
+ * a <code>LoginContext</code> on an executor and its outcome delivered
+ * through a <code>CompletableFuture</code> completed with the Subject, so an event loop can hand off
+ * the blocking database or file work done by the com.tagish.auth.* modules.
+ *
+ * <p>By default logins run on virtual threads when the JVM supports them
+ * (Java 21 and later), and otherwise on a shared, bounded pool of daemon
+ * threads: at most <code>com.tagish.auth.AsyncLogin.threads</code> of them
+ * (a system property, default 64), with up to
+ * <code>com.tagish.auth.AsyncLogin.queue</code> more logins waiting
+ * (default 1000). Logins beyond that are refused with a
+ * RejectedExecutionException rather than piling up threads behind a hung
+ * database. Any other executor can be supplied instead, for one AsyncLogin
+ * or as the default.
+ *
+ * <p>Cancelling the returned future, or letting its deadline pass,
+ * interrupts the thread doing the login. Whether that stops the login
+ * early depends on whether the module's I/O responds to interrupts; either
+ * way the future completes straight away and a login that succeeds after
+ * it was abandoned is logged out again.
+ *
+ * @version 1.0.3
+ */
+public class AsyncLogin
+{
+	private static Executor		defaultExecutor;
+	private static boolean		ownExecutor;
+
+	private final Executor		executor;
+	private final Configuration	config;
+
+	/**
+	 * Run logins on the default executor using the JVM's login configuration.
+	 */
+	public AsyncLogin()
+	{
+		this(defaultExecutor(), null);
+	}
+
+	/**
+	 * Run logins on the given executor using the JVM's login configuration.
+	 *
+	 * @param executor runs the logins
+	 */
+	public AsyncLogin(Executor executor)
+	{
+		this(executor, null);
+	}
+
+	/**
+	 * Run logins on the given executor using the given login configuration.
+	 *
+	 * @param executor runs the logins
+	 * @param config the login configuration, or null for the JVM's
+	 */
+	public AsyncLogin(Executor executor, Configuration config)
+	{
+		if (executor == null) throw new NullPointerException("Illegal null executor");
+		this.executor	= executor;
+		this.config		= config;
+	}
+
+	/**
+	 * Get the executor used when none is specified: one virtual thread per
+	 * login if the JVM has virtual threads, otherwise a shared bounded pool
+	 * of daemon threads. The login modules also use it for work they hand
+	 * off, such as {@link TieredLogin}'s timeouts.
+	 *
+	 * @return the default executor
+	 */
+	public static synchronized Executor defaultExecutor()
+	{
+		if (defaultExecutor == null) {
+			try {
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+				defaultExecutor = (Executor) m.invoke(null, new Object[0]);
+			} catch (Exception e) {
+				int threads = Math.max(1, Integer.getInteger("com.tagish.auth.AsyncLogin.threads", 64).intValue());
+				int queue = Math.max(1, Integer.getInteger("com.tagish.auth.AsyncLogin.queue", 1000).intValue());
+				ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+						new ArrayBlockingQueue(queue), new DaemonThreadFactory("AsyncLogin"),
+						new ThreadPoolExecutor.AbortPolicy());
+				pool.allowCoreThreadTimeOut(true);
+				defaultExecutor = pool;
+			}
+			ownExecutor = true;
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Replace the default executor, for example with one sized for the
+	 * application. AsyncLogins already made keep the executor they have.
+	 *
+	 * @param executor the new default executor
+	 */
+	public static synchronized void setDefaultExecutor(Executor executor)
+	{
+		if (executor == null) throw new NullPointerException("Illegal null executor");
+		defaultExecutor = executor;
+		ownExecutor = false;
+	}
+
+	/**
+	 * Shut the default executor down, once the logins it has been given are
+	 * done, if it is the one made by {@link #defaultExecutor}; one supplied
+	 * through {@link #setDefaultExecutor} is left to its owner. Called by
+	 * {@link BasicLogin#shutdown}.
+	 */
+	static synchronized void shutdown()
+	{
+		if (!ownExecutor) return;
+		((ExecutorService) defaultExecutor).shutdown();
+		defaultExecutor = null;
+		ownExecutor = false;
+	}
+
+	/**
+	 * Log in with a username and password.
+	 *
+	 * @param name the name of the login configuration entry
+	 * @param username The username
+	 * @param password The password; it is copied so the caller may clear it
+	 * as soon as this method returns
+	 * @return a future for the authenticated Subject
+	 */
+	public CompletableFuture login(String name, String username, char password[])
+	{
+		return login(name, username, password, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Log in with a username and password, giving up after a deadline.
+	 *
+	 * @param name the name of the login configuration entry
+	 * @param username The username
+	 * @param password The password; it is copied so the caller may clear it
+	 * as soon as this method returns
+	 * @param timeout how long to wait for the login, 0 for ever
+	 * @param unit the unit of timeout
+	 * @return a future for the authenticated Subject, completed with a
+	 * TimeoutException if the deadline passes
+	 */
+	public CompletableFuture login(String name, String username, char password[], long timeout, TimeUnit unit)
+	{
+		PasswordHandler handler = new PasswordHandler(username, password);
+		return login(name, handler, handler, timeout, unit);
+	}
+
+	/**
+	 * Log in using a CallbackHandler, giving up after a deadline. The
+	 * handler is called on the thread doing the login so it must not block
+	 * waiting for the caller.
+	 *
+	 * @param name the name of the login configuration entry
+	 * @param handler supplies the credentials
+	 * @param timeout how long to wait for the login, 0 for ever
+	 * @param unit the unit of timeout
+	 * @return a future for the authenticated Subject, completed with a
+	 * TimeoutException if the deadline passes
+	 */
+	public CompletableFuture login(String name, CallbackHandler handler, long timeout, TimeUnit unit)
+	{
+		return login(name, handler, null, timeout, unit);
+	}
+
+	/**
+	 * Log in using a CallbackHandler, smudging our copy of the password
+	 * once the login can no longer ask for it. The future may complete, by
+	 * cancellation or timeout, while the login thread is still in the
+	 * handler, so the copy is only smudged once that thread is done with the
+	 * login, or if the login never starts.
+	 *
+	 * @param owned the handler holding our copy of the password, or null
+	 */
+	private CompletableFuture login(final String name, final CallbackHandler handler, final PasswordHandler owned,
+									long timeout, TimeUnit unit)
+	{
+		final CompletableFuture result = new CompletableFuture();
+		final Task task = new Task();
+
+		// stop the login if the caller gives up on it
+		result.whenComplete(new BiConsumer() {
+			public void accept(Object subject, Object failure)
+			{
+				task.interrupt();
+			}
+		});
+		if (timeout > 0) result.orTimeout(timeout, unit);
+
+		try {
+			executor.execute(new Runnable() {
+				public void run()
+				{
+					if (!task.start()) {
+						// cancelled before it started
+						if (owned != null) owned.clear();
+						return;
+					}
+
+					Subject subject = null;
+					Throwable failure = null;
+					LoginContext lc = null;
+					try {
+						lc = config == null ? new LoginContext(name, handler)
+											: new LoginContext(name, null, handler, config);
+						lc.login();
+						subject = lc.getSubject();
+					} catch (Throwable t) {
+						failure = t;
+					} finally {
+						task.finish();
+						if (owned != null) owned.clear();
+					}
+
+					if (failure != null) {
+						result.completeExceptionally(failure);
+					} else if (!result.complete(subject)) {
+						// nobody wants it any more
+						try { lc.logout(); } catch (LoginException e) { }
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (owned != null) owned.clear();
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Tracks the thread running a login so it can be interrupted without
+	 * risk of interrupting whatever that thread does next.
+	 */
+	private static class Task
+	{
+		private Thread		runner;
+		private boolean		done;
+
+		synchronized boolean start()
+		{
+			if (done) return false;
+			runner = Thread.currentThread();
+			return true;
+		}
+
+		synchronized void finish()
+		{
+			runner = null;
+			done = true;
+			Thread.interrupted();		// clear any interrupt meant for this login
+		}
+
+		synchronized void interrupt()
+		{
+			if (runner != null) runner.interrupt();
+			done = true;
+		}
+	}
+
+	/**
+	 * Answers NameCallback and PasswordCallback from fixed credentials.
+	 */
+	private static class PasswordHandler implements CallbackHandler
+	{
+		private final String	username;
+		private final char		password[];
+
+		PasswordHandler(String username, char password[])
+		{
+			this.username = username;
+			this.password = password == null ? null : password.clone();
+		}
+
+		public void handle(Callback callbacks[]) throws IOException, UnsupportedCallbackException
+		{
+			for (int c = 0; c < callbacks.length; c++) {
+				if (callbacks[c] instanceof NameCallback)
+					((NameCallback) callbacks[c]).setName(username);
+				else if (callbacks[c] instanceof PasswordCallback)
+					((PasswordCallback) callbacks[c]).setPassword(password);
+				else
+					throw new UnsupportedCallbackException(callbacks[c]);
+			}
+		}
+
+		void clear()
+		{
+			Utils.smudge(password);
+		}
+	}
+}
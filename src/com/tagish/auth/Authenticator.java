@@ -0,0 +1,30 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.List;
+import javax.security.auth.login.LoginException;
+
+/**
+ * Checks a username and password directly, without a LoginContext,
+ * callbacks or a Subject. Meant for services that authenticate many
+ * requests and only need to know who the caller is. Implementations are
+ * thread safe.
+ *
+ * @version 1.0.3
+ */
+public interface Authenticator
+{
+	/**
+	 * Check a user's credentials.
+	 *
+	 * @param username the username
+	 * @param password the password; not cleared or kept
+	 * @return the user's Principals in a List that can't be modified; the
+	 * Principals are the caller's own, so changing one changes no other
+	 * caller's
+	 * @throws javax.security.auth.login.FailedLoginException if the
+	 * credentials are wrong
+	 * @throws LoginException if they can't be checked
+	 */
+	List authenticate(String username, char password[]) throws LoginException;
+}
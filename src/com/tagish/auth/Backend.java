@@ -0,0 +1,100 @@
+// $Id$
+package com.tagish.auth;
+
+/**
+ * The expensive part of a login module - connections, parsed files, native
+ * libraries - kept warm between logins. JAAS makes a new module for every
+ * LoginContext, so a module gets its backend from the registry in
+ * {@link BasicLogin} when its options are compiled, and every module with
+ * the same key shares it. The registry counts the configurations using a
+ * backend and stops it when the last of them is dropped, or when
+ * {@link BasicLogin#shutdown} is called.
+ *
+ * <p>A backend's settings are whatever its key doesn't already identify,
+ * such as pool sizes or reload intervals. If a module arrives with
+ * different settings for an existing backend, {@link #configChanged} is
+ * called to adopt them; settings that can change without a restart, such
+ * as debug output, should be adopted in place.
+ *
+ * <p>The registry calls start(), stop() and configChanged() one at a time
+ * for each key. It doesn't hold its own lock while doing so, so other
+ * backends can be acquired and released meanwhile.
+ *
+ * @version 1.0.3
+ */
+public abstract class Backend
+{
+	private final String	key;
+	private volatile Object	settings;
+
+	// configurations using the backend, counted by BasicLogin
+	int						refs		= 0;
+
+	/**
+	 * Makes a backend when there isn't one for a key.
+	 */
+	public interface Factory
+	{
+		Backend create(String key, Object settings);
+	}
+
+	protected Backend(String key, Object settings)
+	{
+		this.key		= key;
+		this.settings	= settings;
+	}
+
+	public String getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * @return the settings the backend is running with; these should
+	 * compare equal if they would make no difference, and must not be
+	 * modified
+	 */
+	public Object getSettings()
+	{
+		return settings;
+	}
+
+	/**
+	 * Get ready for use: open, load or check whatever the backend needs.
+	 *
+	 * @throws Exception if the backend can't start; the module's options
+	 * are treated as invalid
+	 */
+	protected abstract void start() throws Exception;
+
+	/**
+	 * Release everything start() acquired.
+	 */
+	protected abstract void stop();
+
+	/**
+	 * Switch to new settings. This implementation restarts the backend;
+	 * backends that can adjust themselves in place should do so.
+	 *
+	 * @param settings the new settings
+	 */
+	protected void configChanged(Object settings) throws Exception
+	{
+		stop();
+		this.settings = settings;
+		start();
+	}
+
+	/**
+	 * Record the new settings, for subclasses overriding configChanged().
+	 */
+	protected void setSettings(Object settings)
+	{
+		this.settings = settings;
+	}
+
+	public String toString()
+	{
+		return getClass().getName() + "[" + key + "]";
+	}
+}
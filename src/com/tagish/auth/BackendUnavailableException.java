@@ -0,0 +1,29 @@
+// $Id$
+package com.tagish.auth;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * Signals that a login was refused without consulting the credential
+ * store because the store is failing or overloaded. Callers can treat it
+ * as "try again later" rather than as a bad username or password.
+ *
+ * @version 1.0.3
+ */
+public class BackendUnavailableException extends LoginException
+{
+	static final private long	serialVersionUID = 2071839218374101L;
+
+	public BackendUnavailableException()
+	{
+		super();
+	}
+
+	/**
+	 * @param msg the detail message
+	 */
+	public BackendUnavailableException(String msg)
+	{
+		super(msg);
+	}
+}
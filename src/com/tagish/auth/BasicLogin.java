@@ -4,7 +4,8 @@ package com.tagish.auth;
 import javax.security.auth.spi.LoginModule;
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
-import java.util.Map;
+import java.lang.ref.*;
+import java.util.*;
 
 /**
  * Superclass for all the com.tagish.auth.* authorisation modules. Provides
@@ -12,6 +13,14 @@ import java.util.Map;
  * default implementation of initialize() that fetches the value of a boolean
  * option called 'debug'.
  *
+ * <p>JAAS makes a new module for every LoginContext, so rather than parse
+ * its options every time a module compiles them into a {@link Config} the
+ * first time it sees them. Subclasses extend Config with their own settings
+ * and override {@link #compile}; the compiled settings are shared by every
+ * instance of the class given equal options, for as long as the options map
+ * (normally the one held by the login configuration's AppConfigurationEntry)
+ * is in use.
+ *
  * @author Andy Armstrong, <A HREF="mailto:andy@tagish.com">andy@tagish.com</A>
  * @version 1.0.3
  */
@@ -26,6 +35,113 @@ public abstract class BasicLogin implements LoginModule
 	// configurable option
 	protected boolean			debug			= false;
 
+	// the options, compiled
+	protected Config			config;
+
+	// shutdown() calls so far, when config was got
+	private int					generation;
+
+	// options map -> (module class -> Config or Failure)
+	private final static Map	configs			= new WeakHashMap();
+
+	// how long a configuration that couldn't be compiled is remembered
+	private final static long	RETRY_FAILED	= 60 * 1000L;
+
+	// counts shutdown() calls, each of which forgets every configuration
+	private static volatile int	shutdowns		= 0;
+
+	// key -> Backend, and the compiled configurations holding them
+	private final static Map			backends	= new HashMap();
+	// key -> lock held while a backend is started, reconfigured or stopped;
+	// there is one per store configured, so they are never dropped
+	private final static Map			lifecycles	= new HashMap();
+	private final static Set			holders		= new HashSet();
+	private final static ReferenceQueue	dropped		= new ReferenceQueue();
+
+	/**
+	 * A module's options, parsed and checked. Configs are shared between
+	 * threads so subclasses should make their fields final, and must not
+	 * keep a reference to the options map or the module.
+	 */
+	protected static class Config
+	{
+		public final boolean	debug;
+
+		// the backends this configuration holds
+		private final List		held	= new ArrayList();
+
+		/**
+		 * Compile the options of a module that has just been initialized.
+		 *
+		 * @param m the module, whose getOption() methods read its options
+		 */
+		protected Config(BasicLogin m)
+		{
+			debug = m.getOption("debug", false);
+		}
+
+		/**
+		 * Get the backend with the given key, making and starting it if
+		 * necessary, and hold it for as long as this configuration is in use.
+		 *
+		 * @param key identifies the backend
+		 * @param settings the settings this configuration wants it to have
+		 * @param factory makes the backend if there isn't one
+		 * @return the backend, started
+		 * @throws Error if the backend can't be started or reconfigured
+		 */
+		protected Backend acquire(String key, Object settings, Backend.Factory factory)
+		{
+			Backend b = acquireBackend(key, settings, factory);
+			held.add(b);
+			return b;
+		}
+	}
+
+	/**
+	 * Lets the backends held by a set of options' configurations go once the
+	 * options are no longer in use.
+	 */
+	private static class Holder extends WeakReference
+	{
+		final Map	byClass;
+
+		Holder(Object options, Map byClass)
+		{
+			super(options, dropped);
+			this.byClass = byClass;
+		}
+
+		void release()
+		{
+			List held = new ArrayList();
+			synchronized (byClass) {
+				for (Iterator i = byClass.values().iterator(); i.hasNext(); ) {
+					Object c = i.next();
+					if (c instanceof Config) held.addAll(((Config) c).held);
+				}
+			}
+			for (int b = 0; b < held.size(); b++) {
+				releaseBackend((Backend) held.get(b));
+			}
+		}
+	}
+
+	/**
+	 * Remembers why a configuration couldn't be compiled.
+	 */
+	private static class Failure
+	{
+		final Throwable	error;
+		final long		until;
+
+		Failure(Throwable error)
+		{
+			this.error	= error;
+			this.until	= System.currentTimeMillis() + RETRY_FAILED;
+		}
+	}
+
 	public BasicLogin()
 	{
 	}
@@ -42,7 +158,231 @@ public abstract class BasicLogin implements LoginModule
 		this.options            = options;
 
 		// initialize any configured options
-		debug = getOption("debug", debug);
+		generation = shutdowns;
+		config = getConfig();
+		debug = config.debug;
+	}
+
+	/**
+	 * Tell whether this module's compiled options, and the backends they
+	 * hold, are still in use: they are not once {@link #shutdown} has been
+	 * called. Only matters for modules used for more than one login.
+	 *
+	 * @return false if the module should be replaced by a new one
+	 */
+	boolean isCurrent()
+	{
+		return generation == shutdowns;
+	}
+
+	/**
+	 * Compile this module's options. Called once for each distinct set of
+	 * options; subclasses override it to return their own kind of Config.
+	 *
+	 * @return the compiled options
+	 * @throws Error if the options are invalid
+	 */
+	protected Config compile()
+	{
+		return new Config(this);
+	}
+
+	/**
+	 * Get the compiled form of this module's options, compiling them if this
+	 * class hasn't seen them before. If they can't be compiled the error is
+	 * printed once and thrown again to each module given the same options,
+	 * until after a minute another attempt is made.
+	 *
+	 * @return the compiled options
+	 */
+	protected Config getConfig()
+	{
+		Map byClass;
+		synchronized (configs) {
+			byClass = (Map) configs.get(options);
+			if (byClass == null) {
+				byClass = new HashMap();
+				configs.put(options, byClass);
+				if (options != null) holders.add(new Holder(options, byClass));
+			}
+		}
+
+		Object c;
+		boolean compiled = false;
+		synchronized (byClass) {
+			c = byClass.get(getClass());
+			if (c instanceof Failure && ((Failure) c).until < System.currentTimeMillis()) c = null;
+			if (c == null) {
+				try {
+					c = compile();
+				} catch (RuntimeException e) {
+					c = failed(byClass.get(getClass()), e);
+				} catch (Error e) {
+					c = failed(byClass.get(getClass()), e);
+				}
+				byClass.put(getClass(), c);
+				compiled = true;
+			}
+		}
+
+		// now that any backends are held again, let go of unused ones
+		if (compiled) releaseDropped();
+
+		if (c instanceof Failure) {
+			Throwable t = ((Failure) c).error;
+			if (t instanceof Error) throw (Error) t;
+			throw (RuntimeException) t;
+		}
+		return (Config) c;
+	}
+
+	/**
+	 * Get a shared backend, making and starting it if necessary, and count
+	 * the caller as a user of it. If it exists with different settings it
+	 * is told to adopt the new ones. Backends are started and reconfigured
+	 * holding only their own key's lock, so one that is slow to start holds
+	 * up no other.
+	 *
+	 * @param key identifies the backend
+	 * @param settings the settings the caller wants it to have
+	 * @param factory makes the backend if there isn't one
+	 * @return the backend, started
+	 * @throws Error if the backend can't be started or reconfigured
+	 */
+	protected static Backend acquireBackend(String key, Object settings, Backend.Factory factory)
+	{
+		synchronized (lifecycle(key)) {
+			Backend b;
+			synchronized (backends) {
+				b = (Backend) backends.get(key);
+			}
+			try {
+				if (b == null) {
+					b = factory.create(key, settings);
+					b.start();
+				} else if (settings == null ? b.getSettings() != null : !settings.equals(b.getSettings())) {
+					b.configChanged(settings);
+				}
+			} catch (Error e) {
+				throw e;
+			} catch (Exception e) {
+				throw new Error("Can't start " + key + " (" + e.getMessage() + ")");
+			}
+			synchronized (backends) {
+				backends.put(key, b);
+				b.refs++;
+			}
+			return b;
+		}
+	}
+
+	/**
+	 * Stop counting the caller as a user of a backend, stopping it if it
+	 * has no other users.
+	 *
+	 * @param b the backend
+	 */
+	protected static void releaseBackend(Backend b)
+	{
+		synchronized (lifecycle(b.getKey())) {
+			synchronized (backends) {
+				if (backends.get(b.getKey()) != b || --b.refs > 0) return;
+				backends.remove(b.getKey());
+			}
+			stop(b);
+		}
+	}
+
+	/**
+	 * @return the lock serializing the starting and stopping of the backends
+	 * with a key
+	 */
+	private static Object lifecycle(String key)
+	{
+		synchronized (lifecycles) {
+			Object l = lifecycles.get(key);
+			if (l == null) {
+				l = new Object();
+				lifecycles.put(key, l);
+			}
+			return l;
+		}
+	}
+
+	private static void releaseDropped()
+	{
+		Holder h;
+		while ((h = (Holder) dropped.poll()) != null) {
+			synchronized (configs) {
+				if (!holders.remove(h)) continue;
+			}
+			h.release();
+		}
+	}
+
+	/**
+	 * Stop every backend and forget every compiled configuration, then stop
+	 * the background threads the modules share - health checks, pool
+	 * eviction, file watches, snapshot and cache refreshes, the hashing pool
+	 * and AsyncLogin's default executor - and forget the shared caches, rate
+	 * and overload limits, DataSources, pooled digests and statistics
+	 * (unregistering their MBeans). Call this when the application is
+	 * undeployed (from a ServletContextListener, for instance) so that none
+	 * of them outlive it and keep its class loader alive. Modules initialized
+	 * afterwards start afresh.
+	 */
+	public static void shutdown()
+	{
+		synchronized (configs) {
+			shutdowns++;
+			configs.clear();
+			holders.clear();
+		}
+		List all;
+		synchronized (backends) {
+			all = new ArrayList(backends.values());
+		}
+		for (int b = 0; b < all.size(); b++) {
+			Backend backend = (Backend) all.get(b);
+			synchronized (lifecycle(backend.getKey())) {
+				synchronized (backends) {
+					if (backends.get(backend.getKey()) != backend) continue;
+					backends.remove(backend.getKey());
+				}
+				stop(backend);
+			}
+		}
+
+		ReplicaRouter.shutdown();
+		ConnectionPool.shutdown();
+		FileMonitor.shutdown();
+		UserSnapshot.shutdown();
+		CredentialCache.shutdown();
+		HashingPool.shutdown();
+		AsyncLogin.shutdown();
+		RateLimiter.shutdown();
+		CircuitBreaker.shutdown();
+		ConcurrencyLimiter.shutdown();
+		DataSources.shutdown();
+		LoginStats.shutdown();
+		Utils.shutdown();
+	}
+
+	private static void stop(Backend b)
+	{
+		try {
+			b.stop();
+		} catch (RuntimeException e) {
+			System.err.println("Can't stop " + b + " (" + e + ")");
+		}
+	}
+
+	private Failure failed(Object last, Throwable t)
+	{
+		String msg = String.valueOf(t.getMessage());
+		if (!(last instanceof Failure) || !msg.equals(String.valueOf(((Failure) last).error.getMessage())))
+			System.err.println(getClass().getName() + ": " + msg);
+		return new Failure(t);
 	}
 
 	/**
@@ -0,0 +1,153 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+
+/**
+ * Stops calls to a credential store that keeps failing, so that logins fail
+ * fast instead of queueing up behind a database that isn't answering.
+ *
+ * <p>The breaker opens after a number of consecutive failures; calls that
+ * take longer than the slow call threshold count as failures too. While
+ * it is open every call is refused. Once the open time has passed a single
+ * trial call is let through: if it succeeds the breaker closes again,
+ * otherwise it stays open for another period.
+ *
+ * @version 1.0.3
+ */
+public class CircuitBreaker
+{
+	public final static int		CLOSED		= 0;
+	public final static int		OPEN		= 1;
+	public final static int		HALF_OPEN	= 2;
+
+	private final static Map	breakers	= new HashMap();
+
+	private final int			threshold;
+	private final long			slowCall;
+	private final long			openTime;
+
+	private volatile int		state		= CLOSED;
+	private volatile int		failures	= 0;
+	private long				openUntil;
+	private boolean				trialRunning;
+	private long				opened		= 0;
+
+	/**
+	 * Get the breaker shared by all modules using the same credential store,
+	 * creating it if necessary.
+	 *
+	 * @param key identifies the credential store
+	 * @param threshold consecutive failures that open the breaker
+	 * @param slowCall nanoseconds after which a call counts as a failure, 0 for no limit
+	 * @param openTime milliseconds the breaker stays open
+	 * @return the breaker
+	 */
+	public static CircuitBreaker getBreaker(String key, int threshold, long slowCall, long openTime)
+	{
+		synchronized (breakers) {
+			CircuitBreaker b = (CircuitBreaker) breakers.get(key);
+			if (b == null) {
+				b = new CircuitBreaker(threshold, slowCall, openTime);
+				breakers.put(key, b);
+			}
+			return b;
+		}
+	}
+
+	/**
+	 * Forget every shared breaker, for {@link BasicLogin#shutdown}.
+	 */
+	static void shutdown()
+	{
+		synchronized (breakers) {
+			breakers.clear();
+		}
+	}
+
+	public CircuitBreaker(int threshold, long slowCall, long openTime)
+	{
+		this.threshold	= Math.max(1, threshold);
+		this.slowCall	= slowCall;
+		this.openTime	= openTime;
+	}
+
+	/**
+	 * Ask to make a call. Every call that is allowed must be followed by
+	 * success() or failure().
+	 *
+	 * @return true if the call may go ahead
+	 */
+	public boolean allow()
+	{
+		if (state == CLOSED) return true;
+
+		synchronized (this) {
+			if (state == CLOSED) return true;
+			if (state == OPEN) {
+				if (System.currentTimeMillis() < openUntil) return false;
+				state = HALF_OPEN;
+			}
+			if (trialRunning) return false;
+			trialRunning = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Record a call that reached the credential store and got an answer.
+	 * This closes a half open breaker and clears the failure count of a
+	 * closed one; an open breaker stays open.
+	 *
+	 * @param nanos how long the call took
+	 */
+	public void success(long nanos)
+	{
+		if (slowCall > 0 && nanos > slowCall) {
+			failure();
+			return;
+		}
+		if (state == CLOSED && failures == 0) return;
+
+		synchronized (this) {
+			// a call that started before the breaker opened says nothing about
+			// the store now; only the trial call may close it
+			if (state == OPEN) return;
+			if (state == HALF_OPEN) {
+				trialRunning = false;
+				state = CLOSED;
+			}
+			failures = 0;
+		}
+	}
+
+	/**
+	 * Record a call that failed to get an answer from the credential store.
+	 */
+	public synchronized void failure()
+	{
+		failures++;
+		if (state == HALF_OPEN || failures >= threshold) {
+			if (state != OPEN) opened++;
+			state = OPEN;
+			trialRunning = false;
+			openUntil = System.currentTimeMillis() + openTime;
+		}
+	}
+
+	/**
+	 * @return CLOSED, OPEN or HALF_OPEN
+	 */
+	public int getState()
+	{
+		return state;
+	}
+
+	/**
+	 * @return the number of times the breaker has opened
+	 */
+	public synchronized long getOpenCount()
+	{
+		return opened;
+	}
+}
@@ -0,0 +1,35 @@
+// $Id$
+package com.tagish.auth;
+
+import javax.security.auth.callback.Callback;
+
+/**
+ * Asks the CallbackHandler for the address of the client that is logging
+ * in, so that login attempts can be rate limited per client as well as per
+ * username. Handlers that don't know the address may throw
+ * UnsupportedCallbackException or leave it unset.
+ *
+ * @version 1.0.3
+ */
+public class ClientAddressCallback implements Callback, java.io.Serializable
+{
+	static final private long	serialVersionUID = 3301827465019283L;
+
+	private String	address;
+
+	/**
+	 * @param address the client's address, for example an IP address
+	 */
+	public void setAddress(String address)
+	{
+		this.address = address;
+	}
+
+	/**
+	 * @return the client's address, or null if the handler didn't supply it
+	 */
+	public String getAddress()
+	{
+		return address;
+	}
+}
@@ -0,0 +1,131 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive limit on the number of lookups in flight against a credential
+ * store. The limit follows an additive-increase, multiplicative-decrease
+ * rule: every call that comes back quickly while the limit is being used
+ * raises it by about one per limit's worth of calls, and every call that
+ * fails or takes longer than the target latency cuts it by a tenth. When
+ * the database slows down the limit shrinks and excess logins are refused
+ * at once instead of piling up threads.
+ *
+ * @version 1.0.3
+ */
+public class ConcurrencyLimiter
+{
+	private final static double	BACKOFF		= 0.9;
+	private final static Map	limiters	= new HashMap();
+
+	private final int			minLimit;
+	private final int			maxLimit;
+	private final long			targetLatency;
+
+	private final AtomicInteger	inFlight	= new AtomicInteger();
+	private final AtomicLong	rejected	= new AtomicLong();
+	private volatile double		limit;
+
+	/**
+	 * Get the limiter shared by all modules using the same credential store,
+	 * creating it if necessary.
+	 *
+	 * @param key identifies the credential store
+	 * @param initial starting limit
+	 * @param min lowest the limit can fall to
+	 * @param max highest the limit can rise to
+	 * @param targetLatency nanoseconds above which a call is considered slow
+	 * @return the limiter
+	 */
+	public static ConcurrencyLimiter getLimiter(String key, int initial, int min, int max, long targetLatency)
+	{
+		synchronized (limiters) {
+			ConcurrencyLimiter l = (ConcurrencyLimiter) limiters.get(key);
+			if (l == null) {
+				l = new ConcurrencyLimiter(initial, min, max, targetLatency);
+				limiters.put(key, l);
+			}
+			return l;
+		}
+	}
+
+	/**
+	 * Forget every shared limiter, for {@link BasicLogin#shutdown}.
+	 */
+	static void shutdown()
+	{
+		synchronized (limiters) {
+			limiters.clear();
+		}
+	}
+
+	public ConcurrencyLimiter(int initial, int min, int max, long targetLatency)
+	{
+		this.minLimit		= Math.max(1, min);
+		this.maxLimit		= Math.max(this.minLimit, max);
+		this.targetLatency	= targetLatency;
+		this.limit			= Math.max(this.minLimit, Math.min(this.maxLimit, initial));
+	}
+
+	/**
+	 * Try to start a call. Every call that is started must be followed by
+	 * release().
+	 *
+	 * @return true if the call may go ahead
+	 */
+	public boolean tryAcquire()
+	{
+		while (true) {
+			int n = inFlight.get();
+			if (n >= (int) limit) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			if (inFlight.compareAndSet(n, n + 1)) return true;
+		}
+	}
+
+	/**
+	 * Finish a call and adjust the limit.
+	 *
+	 * @param nanos how long the call took
+	 * @param failed true if the call failed to get an answer
+	 */
+	public void release(long nanos, boolean failed)
+	{
+		int n = inFlight.getAndDecrement();
+		synchronized (this) {
+			if (failed || nanos > targetLatency)
+				limit = Math.max(minLimit, limit * BACKOFF);
+			else if (n * 2 >= limit)
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+		}
+	}
+
+	/**
+	 * Give back a call that was started but never made, without adjusting
+	 * the limit.
+	 */
+	public void cancel()
+	{
+		inFlight.decrementAndGet();
+	}
+
+	public int getLimit()
+	{
+		return (int) limit;
+	}
+
+	public int getInFlight()
+	{
+		return inFlight.get();
+	}
+
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+}
@@ -0,0 +1,464 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.PrintWriter;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * A small JDBC connection pool used by DBLogin. Pools are shared by every
+ * module that connects to the same database URL as the same database user so
+ * that a login costs a borrow from the pool rather than a new connection.
+ *
+ * <p>Connections handed out by the pool are proxies: closing one returns
+ * it to the pool and <code>prepareStatement(String)</code> returns a
+ * statement that was prepared once per physical connection and is reused
+ * for the lifetime of that connection.
+ *
+ * @version 1.0.3
+ */
+public class ConnectionPool implements DataSource
+{
+	// closes idle connections for every pool; made when first needed
+	private static Timer		evictor			= null;
+
+	// seconds allowed for Connection.isValid() on borrow
+	private final static int	VALIDATE_TIMEOUT = 2;
+
+	private final String		dbURL;
+	private final String		dbUser;
+	private final String		dbPassword;
+	private final int			minSize;
+	private final int			maxSize;
+	private final long			idleTimeout;
+	private final boolean		validate;
+
+	// guarded by this
+	private final LinkedList	idle			= new LinkedList();
+	private final List			preparedSQL		= new ArrayList();
+	private int					total			= 0;
+	private boolean				closed			= false;
+	private long				maxWait			= 0;
+
+	/**
+	 * A physical connection and the statements prepared on it.
+	 */
+	private static class Entry
+	{
+		final Connection	con;
+		final Map			statements	= new HashMap();
+		long				lastUsed	= System.currentTimeMillis();
+		boolean				broken		= false;
+
+		Entry(Connection con)
+		{
+			this.con = con;
+		}
+
+		synchronized PreparedStatement prepare(String sql) throws SQLException
+		{
+			PreparedStatement ps = (PreparedStatement) statements.get(sql);
+			if (ps == null) {
+				ps = con.prepareStatement(sql);
+				statements.put(sql, ps);
+			}
+			return ps;
+		}
+
+		void close()
+		{
+			try { con.close(); } catch (Exception e) { }
+		}
+	}
+
+	protected ConnectionPool(String dbURL, String dbUser, String dbPassword,
+							 int minSize, int maxSize, long idleTimeout, boolean validate)
+	{
+		if (maxSize < 1) throw new IllegalArgumentException("Pool size must be at least 1");
+		this.dbURL			= dbURL;
+		this.dbUser			= dbUser;
+		this.dbPassword		= dbPassword;
+		this.maxSize		= maxSize;
+		this.minSize		= Math.max(0, Math.min(minSize, maxSize));
+		this.idleTimeout	= idleTimeout;
+		this.validate		= validate;
+
+		if (idleTimeout > 0) {
+			schedule(new TimerTask() {
+				public void run()
+				{
+					if (isClosed()) cancel(); else evictIdle();
+				}
+			}, Math.max(1000, idleTimeout / 2));
+		}
+	}
+
+	private static synchronized void schedule(TimerTask task, long period)
+	{
+		if (evictor == null) evictor = new Timer("ConnectionPool evictor", true);
+		evictor.schedule(task, period, period);
+	}
+
+	/**
+	 * Stop the evictor thread, for {@link BasicLogin#shutdown}. A pool made
+	 * afterwards starts a new one.
+	 */
+	static synchronized void shutdown()
+	{
+		if (evictor != null) evictor.cancel();
+		evictor = null;
+	}
+
+	/**
+	 * Fill the pool up to its minimum size and prepare the given statement on
+	 * every idle connection. Connections opened later also prepare it as soon
+	 * as they are created.
+	 *
+	 * @param sql the statement to prepare
+	 * @throws SQLException if a connection can't be opened
+	 */
+	public void prepare(String sql) throws SQLException
+	{
+		List ready;
+		synchronized (this) {
+			if (!preparedSQL.contains(sql)) preparedSQL.add(sql);
+			ready = new ArrayList(idle);
+		}
+		for (int e = 0; e < ready.size(); e++) {
+			((Entry) ready.get(e)).prepare(sql);
+		}
+		prefill();
+	}
+
+	/**
+	 * Open connections until the pool holds at least its minimum size.
+	 *
+	 * @throws SQLException if a connection can't be opened
+	 */
+	public void prefill() throws SQLException
+	{
+		while (true) {
+			synchronized (this) {
+				if (closed || total >= minSize) return;
+				total++;
+			}
+			Entry entry;
+			try {
+				entry = open();
+			} catch (SQLException e) {
+				synchronized (this) { total--; notify(); }
+				throw e;
+			}
+			checkIn(entry);
+		}
+	}
+
+	private Entry open() throws SQLException
+	{
+		Connection con;
+		if (dbUser != null)
+			con = DriverManager.getConnection(dbURL, dbUser, dbPassword);
+		else
+			con = DriverManager.getConnection(dbURL);
+
+		Entry entry = new Entry(con);
+		try {
+			String sql[];
+			synchronized (this) {
+				sql = (String[]) preparedSQL.toArray(new String[preparedSQL.size()]);
+			}
+			for (int s = 0; s < sql.length; s++) {
+				entry.prepare(sql[s]);
+			}
+		} catch (SQLException e) {
+			entry.close();
+			throw e;
+		}
+		return entry;
+	}
+
+	/**
+	 * Set how long getConnection() waits for a connection to be returned
+	 * when the pool is at its maximum size.
+	 *
+	 * @param millis the longest wait, 0 to wait for ever
+	 */
+	public synchronized void setMaxWait(long millis)
+	{
+		maxWait = millis;
+	}
+
+	/**
+	 * Borrow a connection from the pool, waiting for one to be returned if
+	 * the pool is at its maximum size. Closing the returned connection gives
+	 * it back to the pool.
+	 *
+	 * @return a pooled connection
+	 * @throws SQLException if no connection can be obtained
+	 */
+	public Connection getConnection() throws SQLException
+	{
+		while (true) {
+			Entry entry = null;
+			synchronized (this) {
+				long deadline = maxWait > 0 ? System.currentTimeMillis() + maxWait : 0;
+				while (!closed && idle.isEmpty() && total >= maxSize) {
+					try {
+						if (deadline == 0) {
+							wait();
+						} else {
+							long left = deadline - System.currentTimeMillis();
+							if (left <= 0) throw new SQLTimeoutException("Timed out waiting for a pooled connection");
+							wait(left);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted waiting for a pooled connection");
+					}
+				}
+				if (closed) throw new SQLException("Connection pool is closed");
+				if (!idle.isEmpty())
+					entry = (Entry) idle.removeFirst();
+				else
+					total++;
+			}
+
+			if (entry == null) {
+				try {
+					entry = open();
+				} catch (SQLException e) {
+					synchronized (this) { total--; notify(); }
+					throw e;
+				}
+			} else if (validate && !isValid(entry)) {
+				discard(entry);
+				continue;
+			}
+
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class[] { Connection.class }, new ConnectionHandler(entry));
+		}
+	}
+
+	private static boolean isValid(Entry entry)
+	{
+		try {
+			return entry.con.isValid(VALIDATE_TIMEOUT);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void checkIn(Entry entry)
+	{
+		if (entry.broken) {
+			discard(entry);
+			return;
+		}
+		synchronized (this) {
+			if (!closed) {
+				entry.lastUsed = System.currentTimeMillis();
+				idle.addFirst(entry);
+				notify();
+				return;
+			}
+			total--;
+		}
+		entry.close();
+	}
+
+	private void discard(Entry entry)
+	{
+		synchronized (this) {
+			total--;
+			notify();
+		}
+		entry.close();
+	}
+
+	/**
+	 * Close connections that have been idle for longer than the idle timeout,
+	 * leaving at least the minimum number open.
+	 */
+	void evictIdle()
+	{
+		List stale = new ArrayList();
+		synchronized (this) {
+			long cutoff = System.currentTimeMillis() - idleTimeout;
+			// the least recently used connections are at the end of the list
+			while (total > minSize && !idle.isEmpty() && ((Entry) idle.getLast()).lastUsed < cutoff) {
+				stale.add(idle.removeLast());
+				total--;
+			}
+		}
+		for (int e = 0; e < stale.size(); e++) {
+			((Entry) stale.get(e)).close();
+		}
+	}
+
+	/**
+	 * Close every idle connection and refuse further borrows. Connections
+	 * that are in use are closed when they are returned.
+	 */
+	public void close()
+	{
+		List all;
+		synchronized (this) {
+			closed = true;
+			all = new ArrayList(idle);
+			total -= idle.size();
+			idle.clear();
+			notifyAll();
+		}
+		for (int e = 0; e < all.size(); e++) {
+			((Entry) all.get(e)).close();
+		}
+	}
+
+	public synchronized boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * @return the number of open physical connections
+	 */
+	public synchronized int getSize()
+	{
+		return total;
+	}
+
+	/**
+	 * @return the number of connections waiting to be borrowed
+	 */
+	public synchronized int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	/**
+	 * Connection proxy that returns the physical connection to the pool on
+	 * close() and hands out the statements cached on it.
+	 */
+	private class ConnectionHandler implements InvocationHandler
+	{
+		private Entry	entry;
+
+		ConnectionHandler(Entry entry)
+		{
+			this.entry = entry;
+		}
+
+		public Object invoke(Object proxy, Method method, Object args[]) throws Throwable
+		{
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (entry != null) {
+					Entry e = entry;
+					entry = null;
+					checkIn(e);
+				}
+				return null;
+			} else if (name.equals("isClosed")) {
+				return Boolean.valueOf(entry == null);
+			} else if (name.equals("equals")) {
+				return Boolean.valueOf(proxy == args[0]);
+			} else if (name.equals("hashCode")) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			} else if (name.equals("toString")) {
+				return "Pooled connection to " + dbURL;
+			}
+
+			if (entry == null) throw new SQLException("Connection is closed");
+
+			try {
+				if (name.equals("prepareStatement") && args.length == 1) {
+					PreparedStatement ps = entry.prepare((String) args[0]);
+					return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+						new Class[] { PreparedStatement.class }, new StatementHandler(entry, ps));
+				}
+				return method.invoke(entry.con, args);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof SQLException) entry.broken = true;
+				throw e.getCause();
+			} catch (SQLException e) {
+				entry.broken = true;
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Statement proxy whose close() leaves the cached statement open.
+	 */
+	private static class StatementHandler implements InvocationHandler
+	{
+		private final Entry				entry;
+		private final PreparedStatement	ps;
+
+		StatementHandler(Entry entry, PreparedStatement ps)
+		{
+			this.entry	= entry;
+			this.ps		= ps;
+		}
+
+		public Object invoke(Object proxy, Method method, Object args[]) throws Throwable
+		{
+			String name = method.getName();
+			if (name.equals("close")) {
+				try { ps.clearParameters(); } catch (SQLException e) { entry.broken = true; }
+				return null;
+			}
+			try {
+				return method.invoke(ps, args);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof SQLException) entry.broken = true;
+				throw e.getCause();
+			}
+		}
+	}
+
+	// The rest of DataSource
+
+	public Connection getConnection(String username, String password) throws SQLException
+	{
+		throw new SQLFeatureNotSupportedException("Pooled connections use the pool's credentials");
+	}
+
+	public PrintWriter getLogWriter()
+	{
+		return null;
+	}
+
+	public void setLogWriter(PrintWriter out)
+	{
+	}
+
+	public void setLoginTimeout(int seconds)
+	{
+	}
+
+	public int getLoginTimeout()
+	{
+		return 0;
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException
+	{
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	public Object unwrap(Class iface) throws SQLException
+	{
+		if (iface.isInstance(this)) return this;
+		throw new SQLException("Not a wrapper for " + iface.getName());
+	}
+
+	public boolean isWrapperFor(Class iface)
+	{
+		return iface.isInstance(this);
+	}
+}
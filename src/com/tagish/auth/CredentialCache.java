@@ -0,0 +1,444 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.security.auth.login.*;
+
+/**
+ * A bounded cache of credential verification results that sits in front of
+ * <code>SimpleLogin.validateUser()</code>. Entries are keyed on the username
+ * and a salted digest of the presented password (see {@link CredentialKey})
+ * so a cached success is only ever returned for the same password.
+ *
+ * <p>Successful logins are cached for the positive TTL and definite
+ * failures (unknown user, bad password) for the negative TTL; errors
+ * reaching the backend are never cached. When refresh-ahead is enabled a
+ * hit on an entry that is close to expiry is answered from the cache while
+ * the entry is revalidated in the background.
+ *
+ * <p>The cache is split into independently locked segments. When a segment
+ * is full a new entry is only admitted if it has been asked for more often
+ * than the least recently used entry it would replace, according to a
+ * small counting sketch of recent lookups; this keeps one-off usernames
+ * from flushing out the accounts that log in all the time.
+ *
+ * @version 1.0.3
+ */
+public class CredentialCache
+{
+	/**
+	 * Performs the real verification on a cache miss or refresh.
+	 */
+	public interface Loader
+	{
+		Vector load(String username, char password[]) throws LoginException;
+	}
+
+	private final static Map				caches		= new HashMap();
+
+	// revalidates entries for every cache; made when first needed
+	private static ExecutorService			refresher	= null;
+
+	private final Segment		segments[];
+	private final int			segmentMask;
+	private final Sketch		sketch;
+	private final long			ttl;
+	private final long			negativeTTL;
+	private final long			refreshAhead;
+
+	private final AtomicLong	hits		= new AtomicLong();
+	private final AtomicLong	misses		= new AtomicLong();
+	private final AtomicLong	evictions	= new AtomicLong();
+
+	/**
+	 * A cached verification result.
+	 */
+	private static class Entry
+	{
+		final Vector			principals;
+		final LoginException	failure;
+		final long				expires;
+		final long				refreshAt;
+		final AtomicBoolean		refreshing	= new AtomicBoolean();
+
+		Entry(Vector principals, LoginException failure, long expires, long refreshAt)
+		{
+			this.principals	= principals;
+			this.failure	= failure;
+			this.expires	= expires;
+			this.refreshAt	= refreshAt;
+		}
+	}
+
+	/**
+	 * One lock's worth of the cache, kept in access order.
+	 */
+	private static class Segment extends LinkedHashMap
+	{
+		final int	capacity;
+
+		Segment(int capacity)
+		{
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * Get the cache shared by all modules with the given identity, creating
+	 * it if necessary.
+	 *
+	 * @param id identifies the module configuration the cache belongs to
+	 * @param maxSize maximum number of entries
+	 * @param ttl milliseconds a successful verification is cached for
+	 * @param negativeTTL milliseconds a failed verification is cached for, 0 to not cache failures
+	 * @param refreshAhead fraction of the TTL after which a hit triggers a
+	 * background revalidation, 0 to disable
+	 * @return the cache
+	 */
+	public static CredentialCache getCache(String id, int maxSize, long ttl, long negativeTTL, double refreshAhead)
+	{
+		synchronized (caches) {
+			CredentialCache cache = (CredentialCache) caches.get(id);
+			if (cache == null) {
+				cache = new CredentialCache(maxSize, ttl, negativeTTL, refreshAhead);
+				caches.put(id, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Stop the refresh threads, once any refreshes already waiting are done,
+	 * and forget every shared cache, for {@link BasicLogin#shutdown}.
+	 */
+	static void shutdown()
+	{
+		synchronized (CredentialCache.class) {
+			if (refresher != null) refresher.shutdown();
+			refresher = null;
+		}
+		synchronized (caches) {
+			caches.clear();
+		}
+	}
+
+	private static synchronized ExecutorService refresher()
+	{
+		if (refresher == null) {
+			refresher = new ThreadPoolExecutor(1, 2, 60, TimeUnit.SECONDS, new ArrayBlockingQueue(256),
+					new DaemonThreadFactory("CredentialCache refresh"), new ThreadPoolExecutor.AbortPolicy());
+		}
+		return refresher;
+	}
+
+	public CredentialCache(int maxSize, long ttl, long negativeTTL, double refreshAhead)
+	{
+		if (maxSize < 1) throw new IllegalArgumentException("Cache size must be at least 1");
+
+		int n = 1;
+		while (n < Runtime.getRuntime().availableProcessors() * 4 && n * 8 < maxSize) n <<= 1;
+		segments	= new Segment[n];
+		segmentMask	= n - 1;
+		for (int s = 0; s < n; s++) {
+			segments[s] = new Segment((maxSize + n - 1) / n);
+		}
+
+		this.sketch			= new Sketch(maxSize);
+		this.ttl			= ttl;
+		this.negativeTTL	= negativeTTL;
+		this.refreshAhead	= refreshAhead > 0 && refreshAhead < 1 ? (long) (ttl * refreshAhead) : 0;
+	}
+
+	private Segment segmentFor(CredentialKey key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & segmentMask];
+	}
+
+	/**
+	 * Verify a username and password, answering from the cache if possible
+	 * and calling the loader otherwise.
+	 *
+	 * @param username The username
+	 * @param password The password
+	 * @param loader does the real verification
+	 * @return a Vector of Principals that apply for this user.
+	 * @throws LoginException if the login fails.
+	 */
+	public Vector verify(String username, char password[], Loader loader) throws LoginException
+	{
+		CredentialKey key = CredentialKey.create(username, password);
+		sketch.increment(key.hashCode());
+
+		Segment seg = segmentFor(key);
+		Entry e;
+		long now = System.currentTimeMillis();
+		synchronized (seg) {
+			e = (Entry) seg.get(key);
+			if (e != null && e.expires <= now) {
+				seg.remove(key);
+				e = null;
+			}
+		}
+
+		if (e == null) {
+			misses.incrementAndGet();
+			return load(key, username, password, loader);
+		}
+
+		hits.incrementAndGet();
+		if (e.failure != null) throw copy(e.failure);
+
+		if (e.refreshAt != 0 && now >= e.refreshAt && e.refreshing.compareAndSet(false, true))
+			refresh(key, username, password, loader);
+		return e.principals;
+	}
+
+	/**
+	 * Look a username and password up without loading them on a miss.
+	 *
+	 * @param username The username
+	 * @param password The password
+	 * @return the cached Principals, or null if nothing is cached
+	 * @throws LoginException if a failure is cached
+	 */
+	public Vector lookup(String username, char password[]) throws LoginException
+	{
+		CredentialKey key = CredentialKey.create(username, password);
+		sketch.increment(key.hashCode());
+
+		Segment seg = segmentFor(key);
+		Entry e;
+		synchronized (seg) {
+			e = (Entry) seg.get(key);
+			if (e != null && e.expires <= System.currentTimeMillis()) {
+				seg.remove(key);
+				e = null;
+			}
+		}
+
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if (e.failure != null) throw copy(e.failure);
+		return e.principals;
+	}
+
+	/**
+	 * Cache a result found elsewhere: the Principals of a successful
+	 * verification, or a definite failure (for the negative TTL).
+	 *
+	 * @param username The username
+	 * @param password The password
+	 * @param principals the Principals, or null for a failure
+	 * @param failure the failure, if principals is null
+	 */
+	public void store(String username, char password[], Vector principals, LoginException failure)
+	{
+		CredentialKey key = CredentialKey.create(username, password);
+		if (principals == null) {
+			putFailure(key, failure);
+			return;
+		}
+		put(key, new Entry(principals, null, System.currentTimeMillis() + ttl, 0));
+	}
+
+	private Vector load(CredentialKey key, String username, char password[], Loader loader) throws LoginException
+	{
+		try {
+			Vector principals = loader.load(username, password);
+			long now = System.currentTimeMillis();
+			put(key, new Entry(principals, null, now + ttl, refreshAhead == 0 ? 0 : now + refreshAhead));
+			return principals;
+		} catch (FailedLoginException e) {
+			putFailure(key, e);
+			throw e;
+		} catch (AccountException e) {
+			putFailure(key, e);
+			throw e;
+		}
+	}
+
+	private void putFailure(CredentialKey key, LoginException e)
+	{
+		if (negativeTTL > 0) {
+			put(key, new Entry(null, e, System.currentTimeMillis() + negativeTTL, 0));
+			return;
+		}
+
+		// not cached, but an earlier success with this password no longer holds
+		Segment seg = segmentFor(key);
+		synchronized (seg) {
+			seg.remove(key);
+		}
+	}
+
+	private void refresh(final CredentialKey key, final String username, char password[], final Loader loader)
+	{
+		final char copy[] = password.clone();
+		try {
+			refresher().execute(new Runnable() {
+				public void run()
+				{
+					try {
+						load(key, username, copy, loader);
+					} catch (LoginException e) {
+						// failures were recorded by load(); errors leave the entry to expire
+					} finally {
+						Utils.smudge(copy);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// too many refreshes waiting: the entry expires instead
+			Utils.smudge(copy);
+		}
+	}
+
+	private void put(CredentialKey key, Entry e)
+	{
+		Segment seg = segmentFor(key);
+		synchronized (seg) {
+			if (seg.size() >= seg.capacity && !seg.containsKey(key)) {
+				Iterator i = seg.entrySet().iterator();
+				Map.Entry eldest = (Map.Entry) i.next();
+				if (sketch.frequency(key.hashCode()) < sketch.frequency(eldest.getKey().hashCode()))
+					return;
+				i.remove();
+				evictions.incrementAndGet();
+			}
+			seg.put(key, e);
+		}
+	}
+
+	/**
+	 * Forget everything cached for a user, for example after a password
+	 * change.
+	 *
+	 * @param username The username
+	 */
+	public void invalidate(String username)
+	{
+		for (int s = 0; s < segments.length; s++) {
+			synchronized (segments[s]) {
+				for (Iterator i = segments[s].keySet().iterator(); i.hasNext(); ) {
+					if (((CredentialKey) i.next()).getUsername().equals(username)) i.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Empty the cache.
+	 */
+	public void clear()
+	{
+		for (int s = 0; s < segments.length; s++) {
+			synchronized (segments[s]) {
+				segments[s].clear();
+			}
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (int s = 0; s < segments.length; s++) {
+			synchronized (segments[s]) {
+				size += segments[s].size();
+			}
+		}
+		return size;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * Make a fresh copy of a cached or shared failure so each caller gets
+	 * its own stack trace.
+	 */
+	static LoginException copy(LoginException e)
+	{
+		try {
+			return (LoginException) e.getClass().getConstructor(new Class[] { String.class })
+					.newInstance(new Object[] { e.getMessage() });
+		} catch (Exception ex) {
+			return e;
+		}
+	}
+
+	/**
+	 * Count-min sketch of how often keys have been looked up. Counters are
+	 * halved periodically so the counts reflect recent popularity.
+	 */
+	private static class Sketch
+	{
+		private final static int	DEPTH	= 4;
+		private final static int	MAX		= 15;
+		private final static int	SEED[]	= { 0x97CB3127, 0xB492B66F, 0x9AE16A3B, 0xCBF29CE5 };
+
+		private final AtomicIntegerArray	table;
+		private final int					mask;
+		private final int					sampleSize;
+		private final AtomicInteger			additions	= new AtomicInteger();
+
+		Sketch(int maxSize)
+		{
+			int width = 16;
+			while (width < maxSize) width <<= 1;
+			table		= new AtomicIntegerArray(width * DEPTH);
+			mask		= width - 1;
+			sampleSize	= Math.max(10 * maxSize, 1000);
+		}
+
+		private int index(int hash, int row)
+		{
+			int h = (hash + SEED[row]) * SEED[row];
+			h ^= (h >>> 17);
+			return row * (mask + 1) + (h & mask);
+		}
+
+		void increment(int hash)
+		{
+			for (int r = 0; r < DEPTH; r++) {
+				int i = index(hash, r);
+				int v = table.get(i);
+				if (v < MAX) table.compareAndSet(i, v, v + 1);
+			}
+			if (additions.incrementAndGet() >= sampleSize) {
+				additions.set(0);
+				for (int i = 0; i < table.length(); i++) {
+					table.set(i, table.get(i) >>> 1);
+				}
+			}
+		}
+
+		int frequency(int hash)
+		{
+			int min = MAX;
+			for (int r = 0; r < DEPTH; r++) {
+				min = Math.min(min, table.get(index(hash, r)));
+			}
+			return min;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+// $Id$
+package com.tagish.auth;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Identifies a username and password pair without holding on to the
+ * password. The password is reduced to a SHA-256 digest salted with a
+ * random value chosen when the class is loaded, so keys are only comparable
+ * within one JVM and the digests can't be matched against precomputed
+ * tables.
+ *
+ * @version 1.0.3
+ */
+public final class CredentialKey
+{
+	private final static String			ALGORITHM	= "SHA-256";
+	private final static byte			salt[]		= new byte[16];
+
+	private final static ThreadLocal	digests		= new ThreadLocal() {
+		protected Object initialValue()
+		{
+			try {
+				return MessageDigest.getInstance(ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new Error(ALGORITHM + " is not available");
+			}
+		}
+	};
+
+	static
+	{
+		new SecureRandom().nextBytes(salt);
+	}
+
+	private final String	username;
+	private final byte		digest[];
+	private final int		hash;
+
+	private CredentialKey(String username, byte digest[])
+	{
+		this.username	= username;
+		this.digest		= digest;
+		this.hash		= username.hashCode() * 31 + Arrays.hashCode(digest);
+	}
+
+	/**
+	 * Make the key for a username and password. The password array is not
+	 * modified or retained.
+	 *
+	 * @param username The username, not null
+	 * @param password The password
+	 * @return the key
+	 */
+	public static CredentialKey create(String username, char password[])
+	{
+		MessageDigest md = (MessageDigest) digests.get();
+		md.reset();
+		md.update(salt);
+		for (int c = 0; c < username.length(); c++) {
+			char ch = username.charAt(c);
+			md.update((byte) (ch >> 8));
+			md.update((byte) ch);
+		}
+		// separate the username from the password so "ab"+"c" != "a"+"bc"
+		md.update((byte) 0xFF);
+		md.update((byte) 0xFF);
+		byte buf[] = new byte[password.length * 2];
+		for (int c = 0; c < password.length; c++) {
+			buf[c * 2 + 0] = (byte) (password[c] >> 8);
+			buf[c * 2 + 1] = (byte) password[c];
+		}
+		md.update(buf);
+		Utils.smudge(buf);
+		return new CredentialKey(username, md.digest());
+	}
+
+	/**
+	 * @return the username part of this key
+	 */
+	public String getUsername()
+	{
+		return username;
+	}
+
+	public boolean equals(Object o)
+	{
+		if (this == o) {
+			return true;
+		} else if (o instanceof CredentialKey) {
+			CredentialKey that = (CredentialKey) o;
+			return hash == that.hash &&
+				   username.equals(that.username) &&
+				   MessageDigest.isEqual(digest, that.digest);
+		} else {
+			return false;
+		}
+	}
+
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	public String toString()
+	{
+		return "CredentialKey: " + username;
+	}
+}
@@ -4,6 +4,7 @@ package com.tagish.auth;
 import java.util.Map;
 import java.util.*;
 import java.sql.*;
+import javax.sql.DataSource;
 import javax.security.auth.*;
 import javax.security.auth.callback.*;
 import javax.security.auth.login.*;
@@ -11,6 +12,11 @@ import javax.security.auth.login.*;
 /**
  * Simple database based authentication module.
  *
+ * <p>If <code>roleTable</code> and <code>roleColumn</code> (or a
+ * <code>roleQuery</code>) are configured the user's groups are fetched by
+ * the same query as the password, so a login costs a single round trip to
+ * the database and returns a GROUP principal for each role.
+ *
  * @author Andy Armstrong, <A HREF="mailto:andy@tagish.com">andy@tagish.com</A>
  * @version 1.0.3
  */
@@ -24,37 +30,357 @@ public class DBLogin extends SimpleLogin
 	protected String                userColumn;
 	protected String                passColumn;
 	protected String                where;
+	protected String                roleTable;
+	protected String                roleColumn;
+	protected String                roleUserColumn;
+	protected String                userQuery;
+	protected boolean               queryRoles;
+	protected boolean               customQuery;
+	protected int                   bulkChunkSize;
+	protected int                   queryTimeout;
+	protected CircuitBreaker        breaker;
+	protected ConcurrencyLimiter    limiter;
+	protected boolean               readYourWrites;
+	protected Database              database;
 
-	protected synchronized Vector validateUser(String username, char password[]) throws LoginException
+	/**
+	 * Get a connection to the user database, either from the preferred
+	 * replica, the configured DataSource or connection pool, or by opening a
+	 * new one. Callers close the connection when they are done with it.
+	 *
+	 * @return an open connection
+	 */
+	protected Connection getConnection() throws ClassNotFoundException, SQLException
 	{
-		ResultSet rsu = null, rsr = null;
-		Connection con = null;
-		PreparedStatement psu = null;
+		ReplicaRouter router = database.getRouter();
+		if (router != null) return router.route()[0].getConnection();
+		DataSource dataSource = database.getDataSource();
+		if (dataSource != null) return dataSource.getConnection();
+
+		Class.forName(dbDriver);
+		if (dbUser != null)
+		   return DriverManager.getConnection(dbURL, dbUser, dbPassword);
+		else
+		   return DriverManager.getConnection(dbURL);
+	}
+
+	/**
+	 * Validate a user against the in-memory snapshot if there is one, or
+	 * the database otherwise.
+	 */
+	protected Vector validateUser(String username, char password[]) throws LoginException
+	{
+		UserSnapshot snapshot = database.getSnapshot();
+		if (snapshot != null && snapshot.isLoaded())
+		{
+			UserSnapshot.Entry e = snapshot.get(username);
+			if (e == null) throw new UnknownUserException();
+			if (!checkPassword(e.getPassword(), password)) throw new FailedLoginException("Bad password");
+
+			TypedPrincipal groups[] = e.getGroups();
+			Vector p = new Vector(groups.length + 1);
+			p.add(new TypedPrincipal(username, TypedPrincipal.USER));
+			for (int g = 0; g < groups.length; g++) {
+				p.add(groups[g]);
+			}
+			return p;
+		}
+
+		Record r = queryUser(username);
+		if (r == null) throw new UnknownUserException();
+
+		/* Check the password */
+		if (!checkPassword(r.password, password)) throw new FailedLoginException("Bad password");
 
+		Vector p = new Vector(r.groups.size() + 1);
+		p.add(new TypedPrincipal(username, TypedPrincipal.USER));
+		p.addAll(r.groups);
+		return p;
+	}
+
+	/**
+	 * Fetch a user from the database, subject to the circuit breaker and
+	 * concurrency limit if they are configured. Only the query counts
+	 * towards them, not the password check that follows. Lookups refused
+	 * by either fail at once with a {@link BackendUnavailableException}.
+	 *
+	 * @param username The username
+	 * @return the user's record, or null if the user is unknown
+	 */
+	protected Record queryUser(String username) throws LoginException
+	{
+		admit();
+		long start = System.nanoTime();
+		boolean failed = true;
 		try
 		{
-			Class.forName(dbDriver);
-			if (dbUser != null)
-			   con = DriverManager.getConnection(dbURL, dbUser, dbPassword);
+			Record r;
+			ReplicaRouter router = database.getRouter();
+			if (router != null)
+				r = fetchRouted(router, username);
 			else
-			   con = DriverManager.getConnection(dbURL);
+			{
+				Connection con = getConnection();
+				try {
+					r = fetchUser(con, username);
+				} finally {
+					try { con.close(); } catch (Exception e) { }
+				}
+			}
+			failed = false;
+			return r;
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new LoginException("Error reading user database (" + e.getMessage() + ")");
+		}
+		catch (SQLException e)
+		{
+			throw new LoginException("Error reading user database (" + e.getMessage() + ")");
+		}
+		finally
+		{
+			finished(start, failed);
+		}
+	}
 
-			psu = con.prepareStatement("SELECT " + passColumn + " FROM " + userTable +
-									   " WHERE " + userColumn + "=?" + where);
+	/**
+	 * Let a query through the concurrency limit and circuit breaker, if
+	 * they are configured. Every query let through must be followed by a
+	 * call to finished().
+	 *
+	 * @throws BackendUnavailableException if either refuses it
+	 */
+	private void admit() throws BackendUnavailableException
+	{
+		if (limiter != null && !limiter.tryAcquire())
+			throw new BackendUnavailableException("User database overloaded");
+		if (breaker != null && !breaker.allow()) {
+			if (limiter != null) limiter.cancel();
+			throw new BackendUnavailableException("User database unavailable");
+		}
+	}
+
+	/**
+	 * Record the outcome of a query let through by admit().
+	 *
+	 * @param start System.nanoTime() when the query started
+	 * @param failed true if it failed
+	 */
+	private void finished(long start, boolean failed)
+	{
+		long nanos = System.nanoTime() - start;
+		if (stats != null) stats.record(LoginStats.QUERY, nanos);
+		if (breaker != null) {
+			if (failed) breaker.failure(); else breaker.success(nanos);
+		}
+		if (limiter != null) limiter.release(nanos, failed);
+	}
+
+	/**
+	 * Fetch a user's password and roles.
+	 *
+	 * @param con the connection to use
+	 * @param username The username
+	 * @return the user's record, or null if the user is unknown
+	 */
+	protected Record fetchUser(Connection con, String username) throws SQLException
+	{
+		ResultSet rsu = null;
+		PreparedStatement psu = null;
+
+		try
+		{
+			psu = con.prepareStatement(userQuery);
+			if (queryTimeout > 0) psu.setQueryTimeout(queryTimeout);
 
 			/* Set the username to the statement */
 			psu.setString(1, username);
 			rsu = psu.executeQuery();
-			if (!rsu.next()) throw new FailedLoginException("Unknown user");
-			String upwd = rsu.getString(1);
-			String tpwd = new String(password);
+			if (!rsu.next()) return null;
 
-			/* Check the password */
-			if (!upwd.equals(tpwd)) throw new FailedLoginException("Bad password");
+			Record r = new Record();
+			r.password = rsu.getString(1);
 
-			Vector p = new Vector();
-			p.add(new TypedPrincipal(username, TypedPrincipal.USER));
-			return p;
+			/* Each row carries one of the user's roles */
+			if (queryRoles)
+			{
+				do {
+					String role = rsu.getString(2);
+					if (role != null) r.groups.add(new TypedPrincipal(role, TypedPrincipal.GROUP));
+				} while (rsu.next());
+			}
+			return r;
+		}
+		finally
+		{
+			try {
+				if (rsu != null) rsu.close();
+				if (psu != null) psu.close();
+			} catch (Exception e) { }
+		}
+	}
+
+	/**
+	 * Fetch a user from the first replica that answers, falling back to the
+	 * primary. With readYourWrites a user that a replica doesn't know is
+	 * looked for on the primary too, in case the replica is lagging; if the
+	 * primary fails then, so does the lookup. Only a database that can't be
+	 * reached is marked down.
+	 */
+	private Record fetchRouted(ReplicaRouter router, String username) throws SQLException
+	{
+		ReplicaRouter.Endpoint order[] = router.route();
+		SQLException last = null;
+		boolean unknown = false;
+		for (int e = 0; e < order.length; e++)
+		{
+			if (unknown && !order[e].isPrimary()) continue;
+
+			Connection con = null;
+			long start = System.nanoTime();
+			try {
+				con = order[e].getConnection();
+				Record r = fetchUser(con, username);
+				router.succeeded(order[e], System.nanoTime() - start);
+				if (r == null && readYourWrites && !order[e].isPrimary()) {
+					unknown = true;
+					continue;
+				}
+				return r;
+			} catch (SQLException ex) {
+				// a slow query or a pool that is busy for the moment doesn't mean the database is down
+				if (ReplicaRouter.isConnectionFailure(ex)) router.failed(order[e]);
+				// the primary couldn't say whether the user is really unknown
+				if (unknown) throw ex;
+				last = ex;
+			} finally {
+				try { if (con != null) con.close(); } catch (Exception ex) { }
+			}
+		}
+		throw last;
+	}
+
+	/**
+	 * Compare a password from the database with the one supplied, using the
+	 * configured password verifier.
+	 *
+	 * @param stored the password from the database
+	 * @param password the password supplied by the user
+	 * @return true if they match
+	 */
+	protected boolean checkPassword(String stored, char password[]) throws LoginException
+	{
+		return stored != null && verifyPassword(password, stored);
+	}
+
+	/**
+	 * A user's password and roles as fetched from the database.
+	 */
+	protected static class Record
+	{
+		String      password;
+		Vector      groups      = new Vector();
+	}
+
+	/**
+	 * Validate many users' credentials at once. The users are answered from
+	 * the snapshot if it is loaded; otherwise they are fetched on a single
+	 * connection by queries of the form <code>WHERE userColumn IN (...)</code>,
+	 * each covering up to <code>bulkChunkSize</code> users, with the same
+	 * circuit breaker, concurrency limit and replica failover as a single
+	 * login. Their passwords are then checked in parallel. Users are matched
+	 * by the exact names the database returns, so on a database comparing
+	 * names case-insensitively a name given in a different case is reported
+	 * as unknown. A configured <code>roleQuery</code> can't be batched, so in
+	 * that case each user is looked up separately.
+	 *
+	 * @param credentials a Map of username to password (a char array)
+	 * @return a Map of username to {@link ValidationResult}
+	 */
+	public Map validateUsers(Map credentials)
+	{
+		UserSnapshot snapshot = database.getSnapshot();
+		if (snapshot != null && snapshot.isLoaded())
+		{
+			return checkInParallel(credentials, new Check() {
+				public ValidationResult check(String username, char password[])
+				{
+					try {
+						return new ValidationResult(username, validateUser(username, password));
+					} catch (LoginException e) {
+						return new ValidationResult(username, e);
+					}
+				}
+			});
+		}
+		if (customQuery || credentials.isEmpty()) return super.validateUsers(credentials);
+
+		String names[] = (String[]) credentials.keySet().toArray(new String[credentials.size()]);
+		final Map records;
+		try
+		{
+			records = queryUsers(names);
+		}
+		catch (LoginException e)
+		{
+			Map results = new LinkedHashMap();
+			for (int n = 0; n < names.length; n++) {
+				results.put(names[n], new ValidationResult(names[n], e));
+			}
+			return results;
+		}
+
+		return checkInParallel(credentials, new Check() {
+			public ValidationResult check(String username, char password[])
+			{
+				Record r = (Record) records.get(username);
+				if (r == null)
+					return new ValidationResult(username, new UnknownUserException());
+				try {
+					if (!checkPassword(r.password, password))
+						return new ValidationResult(username, new FailedLoginException("Bad password"));
+				} catch (LoginException e) {
+					return new ValidationResult(username, e);
+				}
+
+				Vector p = new Vector(r.groups.size() + 1);
+				p.add(new TypedPrincipal(username, TypedPrincipal.USER));
+				p.addAll(r.groups);
+				return new ValidationResult(username, p);
+			}
+		});
+	}
+
+	/**
+	 * Fetch many users from the database, subject to the circuit breaker
+	 * and concurrency limit as one query.
+	 *
+	 * @param names the usernames
+	 * @return a Map of username to {@link Record} for the users found
+	 */
+	private Map queryUsers(String names[]) throws LoginException
+	{
+		admit();
+		long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			Map records;
+			ReplicaRouter router = database.getRouter();
+			if (router != null)
+				records = fetchRoutedUsers(router, names);
+			else
+			{
+				Connection con = getConnection();
+				try {
+					records = fetchUsers(con, names);
+				} finally {
+					try { con.close(); } catch (Exception e) { }
+				}
+			}
+			failed = false;
+			return records;
 		}
 		catch (ClassNotFoundException e)
 		{
@@ -66,35 +392,507 @@ public class DBLogin extends SimpleLogin
 		}
 		finally
 		{
+			finished(start, failed);
+		}
+	}
+
+	/**
+	 * Fetch many users' passwords and roles, in chunks of up to
+	 * <code>bulkChunkSize</code>.
+	 *
+	 * @param con the connection to use
+	 * @param names the usernames
+	 * @return a Map of username to {@link Record} for the users found
+	 */
+	private Map fetchUsers(Connection con, String names[]) throws SQLException
+	{
+		Map records = new HashMap();
+		int size = Math.min(bulkChunkSize, names.length);
+		Config c = (Config) config;
+		String sql = size == bulkChunkSize ? c.bulkQuery : c.bulkQuery(size);
+		for (int from = 0; from < names.length; from += size)
+		{
+			PreparedStatement ps = con.prepareStatement(sql);
+			ResultSet rs = null;
 			try {
-				if (rsu != null) rsu.close();
-				if (rsr != null) rsr.close();
-				if (psu != null) psu.close();
-				if (con != null) con.close();
-			} catch (Exception e) { }
+				if (queryTimeout > 0) ps.setQueryTimeout(queryTimeout);
+				// pad the last chunk by repeating its last name so every chunk uses the same statement
+				int n = Math.min(size, names.length - from);
+				for (int p = 0; p < size; p++) {
+					ps.setString(p + 1, names[from + Math.min(p, n - 1)]);
+				}
+				rs = ps.executeQuery();
+				while (rs.next()) {
+					String user = rs.getString(1);
+					Record r = (Record) records.get(user);
+					if (r == null) {
+						r = new Record();
+						r.password = rs.getString(2);
+						records.put(user, r);
+					}
+					if (queryRoles) {
+						String role = rs.getString(3);
+						if (role != null) r.groups.add(new TypedPrincipal(role, TypedPrincipal.GROUP));
+					}
+				}
+			} finally {
+				if (rs != null) rs.close();
+				ps.close();
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Fetch many users as fetchRouted() fetches one: from the first replica
+	 * that answers, falling back to the primary, and with readYourWrites
+	 * looking for the users a replica doesn't know on the primary too.
+	 */
+	private Map fetchRoutedUsers(ReplicaRouter router, String names[]) throws SQLException
+	{
+		ReplicaRouter.Endpoint order[] = router.route();
+		SQLException last = null;
+		Map found = new HashMap();
+		String wanted[] = names;
+		boolean unknown = false;
+		for (int e = 0; e < order.length; e++)
+		{
+			if (unknown && !order[e].isPrimary()) continue;
+
+			Connection con = null;
+			long start = System.nanoTime();
+			try {
+				con = order[e].getConnection();
+				Map records = fetchUsers(con, wanted);
+				router.succeeded(order[e], System.nanoTime() - start);
+				found.putAll(records);
+				if (readYourWrites && !order[e].isPrimary()) {
+					List missing = new ArrayList();
+					for (int n = 0; n < wanted.length; n++) {
+						if (!records.containsKey(wanted[n])) missing.add(wanted[n]);
+					}
+					if (!missing.isEmpty()) {
+						wanted = (String[]) missing.toArray(new String[missing.size()]);
+						unknown = true;
+						continue;
+					}
+				}
+				return found;
+			} catch (SQLException ex) {
+				if (ReplicaRouter.isConnectionFailure(ex)) router.failed(order[e]);
+				// the primary couldn't say whether the users are really unknown
+				if (unknown) throw ex;
+				last = ex;
+			} finally {
+				try { if (con != null) con.close(); } catch (Exception ex) { }
+			}
 		}
+		throw last;
+	}
+
+	/**
+	 * Make a source of connections for background work that doesn't keep
+	 * this module instance alive.
+	 */
+	private static UserSnapshot.Source connector(final DataSource dataSource, final ReplicaRouter router,
+			final String dbDriver, final String dbURL, final String dbUser, final String dbPassword)
+	{
+		return new UserSnapshot.Source() {
+			public Connection getConnection() throws Exception
+			{
+				if (router != null) return router.route()[0].getConnection();
+				if (dataSource != null) return dataSource.getConnection();
+
+				Class.forName(dbDriver);
+				if (dbUser != null)
+				   return DriverManager.getConnection(dbURL, dbUser, dbPassword);
+				else
+				   return DriverManager.getConnection(dbURL);
+			}
+		};
 	}
 
 	public void initialize(Subject subject, CallbackHandler callbackHandler, Map sharedState, Map options)
 	{
 		super.initialize(subject, callbackHandler, sharedState, options);
 
-		dbDriver = getOption("dbDriver", null);
-		if (dbDriver == null) throw new Error("No database driver named (dbDriver=?)");
-		dbURL = getOption("dbURL", null);
-		if (dbURL == null) throw new Error("No database URL specified (dbURL=?)");
-		dbUser = getOption("dbUser", null);
-		dbPassword = getOption("dbPassword", null);
-		if ((dbUser == null && dbPassword != null) || (dbUser != null && dbPassword == null))
-		   throw new Error("Either provide dbUser and dbPassword or encode both in dbURL");
-
-		userTable    = getOption("userTable",    "User");
-		userColumn   = getOption("userColumn", "user_name");
-		passColumn   = getOption("passColumn",    "user_passwd");
-		where        = getOption("where",        "");
-		if (null != where && where.length() > 0)
-			where = " AND " + where;
-		else
-			where = "";
+		Config c = (Config) config;
+		dbDriver		= c.dbDriver;
+		dbURL			= c.dbURL;
+		dbUser			= c.dbUser;
+		dbPassword		= c.dbPassword;
+		userTable		= c.userTable;
+		userColumn		= c.userColumn;
+		passColumn		= c.passColumn;
+		where			= c.where;
+		roleTable		= c.roleTable;
+		roleColumn		= c.roleColumn;
+		roleUserColumn	= c.roleUserColumn;
+		userQuery		= c.userQuery;
+		queryRoles		= c.queryRoles;
+		customQuery		= c.customQuery;
+		bulkChunkSize	= c.bulkChunkSize;
+		queryTimeout	= c.queryTimeout;
+		breaker			= c.breaker;
+		limiter			= c.limiter;
+		readYourWrites	= c.readYourWrites;
+
+		// its pools, router and snapshot are replaced when it restarts, so
+		// they are looked up on every login
+		database		= c.database;
+	}
+
+	/**
+	 * The database settings and the SQL built from them, with the pools,
+	 * snapshot and overload protection they call for.
+	 */
+	protected static class Config extends SimpleLogin.Config
+	{
+		public final String				dbDriver;
+		public final String				dbURL;
+		public final String				dbUser;
+		public final String				dbPassword;
+		public final String				userTable;
+		public final String				userColumn;
+		public final String				passColumn;
+		public final String				where;
+		public final String				roleTable;
+		public final String				roleColumn;
+		public final String				roleUserColumn;
+		public final String				userQuery;
+		public final boolean			queryRoles;
+		public final boolean			customQuery;
+		public final int				bulkChunkSize;
+		public final String				bulkQuery;
+		public final int				queryTimeout;
+		public final CircuitBreaker		breaker;
+		public final ConcurrencyLimiter	limiter;
+		public final boolean			readYourWrites;
+		public final Database			database;
+
+		protected Config(DBLogin m)
+		{
+			super(m);
+
+			// what the database backend is made from
+			Map db = new TreeMap();
+			db.put("debug", Boolean.valueOf(debug));
+
+			String dsName = m.getOption("dataSource", null);
+			if (dsName != null)
+			{
+				db.put("dataSource", dsName);
+				for (Iterator i = m.options.entrySet().iterator(); i.hasNext(); ) {
+					Map.Entry e = (Map.Entry) i.next();
+					if (((String) e.getKey()).startsWith(DataSources.PROPERTY_PREFIX)) db.put(e.getKey(), e.getValue());
+				}
+				dbDriver = dbURL = dbUser = dbPassword = null;
+			}
+			else
+			{
+				dbDriver = m.getOption("dbDriver", null);
+				if (dbDriver == null) throw new Error("No database driver named (dbDriver=?)");
+				dbURL = m.getOption("dbURL", null);
+				if (dbURL == null) throw new Error("No database URL specified (dbURL=?)");
+				dbUser = m.getOption("dbUser", null);
+				dbPassword = m.getOption("dbPassword", null);
+				if ((dbUser == null && dbPassword != null) || (dbUser != null && dbPassword == null))
+				   throw new Error("Either provide dbUser and dbPassword or encode both in dbURL");
+				db.put("dbDriver", dbDriver);
+				db.put("dbURL", dbURL);
+				db.put("dbUser", dbUser);
+				db.put("dbPassword", dbPassword);
+			}
+
+			userTable    = m.getOption("userTable",    "User");
+			userColumn   = m.getOption("userColumn", "user_name");
+			passColumn   = m.getOption("passColumn",    "user_passwd");
+			String w     = m.getOption("where",        "");
+			if (null != w && w.length() > 0)
+				where = " AND " + w;
+			else
+				where = "";
+			roleTable      = m.getOption("roleTable",      null);
+			roleColumn     = m.getOption("roleColumn",     "role_name");
+			roleUserColumn = m.getOption("roleUserColumn", userColumn);
+			String query   = m.getOption("roleQuery",      null);
+			customQuery    = query != null;
+			bulkChunkSize  = Math.max(1, m.getOption("bulkChunkSize", 100));
+			if (customQuery)
+			{
+				// must take the username as its only parameter and return the
+				// password and a role (or NULL) in each row
+				queryRoles = true;
+			}
+			else if (roleTable != null)
+			{
+				queryRoles = true;
+				query = "SELECT " + userTable + "." + passColumn + ", " + roleTable + "." + roleColumn +
+						" FROM " + userTable + " LEFT OUTER JOIN " + roleTable +
+						" ON " + roleTable + "." + roleUserColumn + "=" + userTable + "." + userColumn +
+						" WHERE " + userTable + "." + userColumn + "=?" + where;
+			}
+			else
+			{
+				queryRoles = false;
+				query = "SELECT " + passColumn + " FROM " + userTable +
+						" WHERE " + userColumn + "=?" + where;
+			}
+			userQuery = query;
+			bulkQuery = bulkQuery(bulkChunkSize);
+
+			queryTimeout = m.getOption("queryTimeout", 0);
+			readYourWrites = m.getOption("readYourWrites", false);
+			db.put("userQuery", userQuery);
+
+			if (dsName == null)
+			{
+				db.put("dbReplicaURLs", m.getOption("dbReplicaURLs", null));
+				db.put("replicaLeastLatency", Boolean.valueOf("leastLatency".equalsIgnoreCase(m.getOption("replicaBalance", "roundRobin"))));
+				db.put("replicaHealthCheck", Long.valueOf(m.getOption("replicaHealthCheck", 30) * 1000L));
+				if (m.getOption("pool", false))
+				{
+					db.put("poolMin", Integer.valueOf(m.getOption("poolMin", 1)));
+					db.put("poolMax", Integer.valueOf(m.getOption("poolMax", 10)));
+					db.put("poolIdleTimeout", Long.valueOf(m.getOption("poolIdleTimeout", 300) * 1000L));
+					db.put("poolValidate", Boolean.valueOf(m.getOption("poolValidate", true)));
+					db.put("connectTimeout", Long.valueOf(m.getOption("connectTimeout", 0) * 1000L));
+				}
+			}
+
+			if (m.getOption("snapshot", false))
+			{
+				if (customQuery) throw new Error("A snapshot can't be made with a roleQuery");
+				String lastModified = m.getOption("lastModifiedColumn", null);
+				db.put("fullQuery", selectUsers("1=1"));
+				db.put("watermarkQuery", lastModified == null ? null : "SELECT MAX(" + lastModified + ") FROM " + userTable);
+				db.put("changedQuery", lastModified == null ? null : "SELECT " + userColumn + ", " + lastModified + " FROM " +
+																	 userTable + " WHERE " + lastModified + ">=?");
+				String changeLog = m.getOption("snapshotChangeLog", null);
+				if (changeLog != null && lastModified == null) throw new Error("A snapshotChangeLog needs a lastModifiedColumn");
+				db.put("changeLogQuery", changeLog);
+				db.put("bulkQuery", bulkQuery);
+				db.put("bulkChunkSize", Integer.valueOf(bulkChunkSize));
+				db.put("queryRoles", Boolean.valueOf(queryRoles));
+				db.put("snapshotRefresh", Long.valueOf(m.getOption("snapshotRefresh", 60) * 1000L));
+				db.put("snapshotFullReload", Long.valueOf(m.getOption("snapshotFullReload", 300) * 1000L));
+			}
+
+			database = (Database) acquire("DBLogin:" + dbKey(dsName) + '\u0000' + userQuery,
+										  Collections.unmodifiableMap(db), Database.FACTORY);
+
+			// overload protection is shared by every module using the same database
+			String dbKey = dbKey(dsName);
+			breaker = !m.getOption("circuitBreaker", false) ? null :
+					CircuitBreaker.getBreaker(dbKey, m.getOption("breakerThreshold", 5),
+							m.getOption("breakerSlowCall", 0) * 1000000L, m.getOption("breakerOpenTime", 30) * 1000L);
+			limiter = !m.getOption("concurrencyLimit", false) ? null :
+					ConcurrencyLimiter.getLimiter(dbKey, m.getOption("limitInitial", 20),
+							m.getOption("limitMin", 1), m.getOption("limitMax", 200),
+							m.getOption("limitLatency", 250) * 1000000L);
+
+			if (stats != null)
+			{
+				if (database.getDataSource() instanceof ConnectionPool)
+					stats.setPool((ConnectionPool) database.getDataSource());
+				if (database.getSnapshot() != null) stats.setSnapshot(database.getSnapshot());
+			}
+		}
+
+		/**
+		 * Build a query returning the username, password and (if roles are
+		 * configured) one role per row for the users matching a condition.
+		 */
+		String selectUsers(String condition)
+		{
+			if (queryRoles)
+				return "SELECT " + userTable + "." + userColumn + ", " + userTable + "." + passColumn + ", " +
+					   roleTable + "." + roleColumn +
+					   " FROM " + userTable + " LEFT OUTER JOIN " + roleTable +
+					   " ON " + roleTable + "." + roleUserColumn + "=" + userTable + "." + userColumn +
+					   " WHERE " + condition + where;
+			else
+				return "SELECT " + userColumn + ", " + passColumn + " FROM " + userTable +
+					   " WHERE " + condition + where;
+		}
+
+		/**
+		 * Build the query that fetches <code>count</code> users at once.
+		 */
+		String bulkQuery(int count)
+		{
+			StringBuffer in = new StringBuffer(count * 2);
+			for (int c = 0; c < count; c++) {
+				in.append(c == 0 ? "?" : ",?");
+			}
+			return selectUsers((queryRoles ? userTable + "." : "") + userColumn + " IN (" + in + ")");
+		}
+
+		/**
+		 * Identifies the database this module uses.
+		 */
+		private String dbKey(String dsName)
+		{
+			return dsName != null ? dsName : dbURL + '\u0000' + dbUser;
+		}
+	}
+
+	/**
+	 * The connections to a user database, and the snapshot of its users if
+	 * there is one, shared by every module reading the same users from it.
+	 * The settings are a Map built by {@link Config}.
+	 */
+	protected static class Database extends Backend
+	{
+		final static Backend.Factory	FACTORY	= new Backend.Factory() {
+			public Backend create(String key, Object settings)
+			{
+				return new Database(key, settings);
+			}
+		};
+
+		private volatile DataSource		dataSource;
+		private volatile ReplicaRouter	router;
+		private volatile UserSnapshot	snapshot;
+		private ConnectionPool			pools[]	= null;
+
+		protected Database(String key, Object settings)
+		{
+			super(key, settings);
+		}
+
+		public DataSource getDataSource()
+		{
+			return dataSource;
+		}
+
+		public ReplicaRouter getRouter()
+		{
+			return router;
+		}
+
+		public UserSnapshot getSnapshot()
+		{
+			return snapshot;
+		}
+
+		protected void start() throws Exception
+		{
+			Map s = (Map) getSettings();
+			boolean debug = ((Boolean) s.get("debug")).booleanValue();
+			String dbDriver = (String) s.get("dbDriver");
+			String dbURL = (String) s.get("dbURL");
+			String dbUser = (String) s.get("dbUser");
+			String dbPassword = (String) s.get("dbPassword");
+			String userQuery = (String) s.get("userQuery");
+
+			DataSource ds = null;
+			String dsName = (String) s.get("dataSource");
+			if (dsName != null)
+			{
+				try {
+					ds = DataSources.getDataSource(dsName, s);
+				} catch (Exception e) {
+					throw new Error("Can't get DataSource " + dsName + " (" + e.getMessage() + ")");
+				}
+			}
+			else
+			{
+				try {
+					Class.forName(dbDriver);
+				} catch (ClassNotFoundException e) {
+					throw new Error("Can't load database driver " + dbDriver);
+				}
+			}
+
+			String replicaURLs[] = null;
+			if (s.get("dbReplicaURLs") != null)
+			{
+				StringTokenizer t = new StringTokenizer((String) s.get("dbReplicaURLs"), ", \t");
+				replicaURLs = new String[t.countTokens()];
+				for (int r = 0; r < replicaURLs.length; r++) {
+					replicaURLs[r] = t.nextToken();
+				}
+			}
+
+			ConnectionPool p[] = null;
+			if (s.containsKey("poolMax"))
+			{
+				// one pool for the primary and one per replica
+				long connectTimeout = ((Long) s.get("connectTimeout")).longValue();
+				p = new ConnectionPool[replicaURLs == null ? 1 : replicaURLs.length + 1];
+				for (int u = 0; u < p.length; u++)
+				{
+					String url = u == 0 ? dbURL : replicaURLs[u - 1];
+					p[u] = new ConnectionPool(url, dbUser, dbPassword,
+							((Integer) s.get("poolMin")).intValue(), ((Integer) s.get("poolMax")).intValue(),
+							((Long) s.get("poolIdleTimeout")).longValue(), ((Boolean) s.get("poolValidate")).booleanValue());
+					if (connectTimeout > 0) p[u].setMaxWait(connectTimeout);
+					try {
+						p[u].prepare(userQuery);
+					} catch (SQLException e) {
+						// The database may not be up yet; the pool fills on first use
+						if (debug) System.err.println("DBLogin: can't prefill pool for " + url + " (" + e.getMessage() + ")");
+					}
+				}
+				ds = p[0];
+			}
+
+			ReplicaRouter rr = null;
+			if (replicaURLs != null)
+			{
+				rr = new ReplicaRouter(dbURL, replicaURLs, dbUser, dbPassword, p,
+									   ((Boolean) s.get("replicaLeastLatency")).booleanValue(),
+									   ((Long) s.get("replicaHealthCheck")).longValue());
+			}
+
+			UserSnapshot us = null;
+			if (s.containsKey("fullQuery"))
+			{
+				int chunk = ((Integer) s.get("bulkChunkSize")).intValue();
+				us = UserSnapshot.getSnapshot(getKey(),
+						connector(ds, rr, dbDriver, dbURL, dbUser, dbPassword),
+						(String) s.get("fullQuery"), (String) s.get("watermarkQuery"), (String) s.get("changedQuery"),
+						(String) s.get("changeLogQuery"), (String) s.get("bulkQuery"), chunk, ((Boolean) s.get("queryRoles")).booleanValue(),
+						((Long) s.get("snapshotRefresh")).longValue(),
+						((Long) s.get("snapshotFullReload")).longValue(), debug);
+			}
+
+			pools = p;
+			dataSource = ds;
+			router = rr;
+			snapshot = us;
+		}
+
+		/**
+		 * Only debug output changes without a restart; it is used when
+		 * starting, so the new value applies to the next restart.
+		 */
+		protected void configChanged(Object settings) throws Exception
+		{
+			Map now = new TreeMap((Map) getSettings());
+			Map next = new TreeMap((Map) settings);
+			now.remove("debug");
+			next.remove("debug");
+			if (now.equals(next))
+				setSettings(settings);
+			else
+				super.configChanged(settings);
+		}
+
+		protected void stop()
+		{
+			if (snapshot != null) snapshot.close();
+			if (router != null) router.close();
+			for (int u = 0; pools != null && u < pools.length; u++) {
+				pools[u].close();
+			}
+			pools = null;
+		}
+	}
+
+	protected BasicLogin.Config compile()
+	{
+		return new Config(this);
 	}
 }
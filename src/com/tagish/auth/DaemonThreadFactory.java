@@ -0,0 +1,33 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes named daemon threads for the background work done by the login
+ * modules, so that none of it keeps the JVM (or a container being shut
+ * down) alive.
+ *
+ * @version 1.0.3
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+	private final String		name;
+	private final AtomicInteger	count	= new AtomicInteger();
+
+	/**
+	 * @param name prefix for the names of the threads
+	 */
+	public DaemonThreadFactory(String name)
+	{
+		this.name = name;
+	}
+
+	public Thread newThread(Runnable r)
+	{
+		Thread t = new Thread(r, name + " " + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,165 @@
+// $Id$
+package com.tagish.auth;
+
+import java.beans.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+/**
+ * Locates the <code>javax.sql.DataSource</code> named by a module's
+ * <code>dataSource</code> option. The name is either a JNDI name, which lets
+ * DBLogin borrow from a pool configured in the container, or the name of a
+ * class implementing DataSource, which is instantiated and configured from
+ * the module's <code>dataSource.*</code> options using its bean properties.
+ *
+ * <p>DataSources are looked up or created once and shared by every module
+ * that names them with the same properties. All the methods in here are
+ * static so DataSources should never be instantiated.
+ *
+ * @version 1.0.3
+ */
+public class DataSources
+{
+	/**
+	 * Prefix of the options that are passed to a DataSource's bean properties.
+	 */
+	public final static String		PROPERTY_PREFIX	= "dataSource.";
+
+	private final static Map		cache			= new HashMap();
+
+	/**
+	 * Can't make these: all the methods are static
+	 */
+	private DataSources()
+	{
+	}
+
+	/**
+	 * Get the DataSource named by the <code>dataSource</code> option.
+	 *
+	 * @param name JNDI name or DataSource class name
+	 * @param options the module's options; any whose names start with
+	 * <code>dataSource.</code> are set as bean properties on a DataSource
+	 * created from a class name.
+	 * @return the DataSource
+	 * @throws Exception if the name can't be resolved or the DataSource
+	 * can't be configured
+	 */
+	public static DataSource getDataSource(String name, Map options) throws Exception
+	{
+		Map props = new TreeMap();
+		for (Iterator i = options.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry) i.next();
+			String key = (String) e.getKey();
+			if (key.startsWith(PROPERTY_PREFIX))
+				props.put(key.substring(PROPERTY_PREFIX.length()), e.getValue());
+		}
+
+		String key = name + props;
+		synchronized (cache) {
+			DataSource ds = (DataSource) cache.get(key);
+			if (ds == null) {
+				ds = create(name, props);
+				cache.put(key, ds);
+			}
+			return ds;
+		}
+	}
+
+	/**
+	 * Forget every DataSource looked up or created, for
+	 * {@link BasicLogin#shutdown}. DataSources created from a class name are
+	 * not closed: javax.sql.DataSource has no way to.
+	 */
+	static void shutdown()
+	{
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	private static DataSource create(String name, Map props) throws Exception
+	{
+		Class cls = null;
+		if (name.indexOf(':') == -1 && name.indexOf('/') == -1) {
+			try {
+				cls = Class.forName(name, true, contextClassLoader());
+			} catch (ClassNotFoundException e) {
+				// not a class - try it as a JNDI name
+			}
+		}
+
+		if (cls == null) {
+			Object o = lookup(name);
+			if (!(o instanceof DataSource))
+				throw new Exception(name + " is not a DataSource");
+			return (DataSource) o;
+		}
+
+		if (!DataSource.class.isAssignableFrom(cls))
+			throw new Exception(name + " does not implement javax.sql.DataSource");
+		DataSource ds = (DataSource) cls.getDeclaredConstructor().newInstance();
+		configure(ds, props);
+		return ds;
+	}
+
+	private static Object lookup(String name) throws NamingException
+	{
+		InitialContext ctx = new InitialContext();
+		try {
+			return ctx.lookup(name);
+		} catch (NamingException e) {
+			// Tomcat and friends bind resources under java:comp/env
+			if (name.startsWith("java:")) throw e;
+			return ctx.lookup("java:comp/env/" + name);
+		} finally {
+			ctx.close();
+		}
+	}
+
+	private static ClassLoader contextClassLoader()
+	{
+		ClassLoader cl = Thread.currentThread().getContextClassLoader();
+		return cl == null ? DataSources.class.getClassLoader() : cl;
+	}
+
+	/**
+	 * Set bean properties on a newly created DataSource.
+	 */
+	private static void configure(Object bean, Map props) throws Exception
+	{
+		PropertyDescriptor pds[] = Introspector.getBeanInfo(bean.getClass()).getPropertyDescriptors();
+		for (Iterator i = props.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry) i.next();
+			String prop = (String) e.getKey();
+			Method setter = null;
+			for (int p = 0; p < pds.length && setter == null; p++) {
+				if (pds[p].getName().equals(prop)) setter = pds[p].getWriteMethod();
+			}
+			if (setter == null)
+				throw new Exception(bean.getClass().getName() + " has no property " + prop);
+			setter.invoke(bean, new Object[] { convert(((String) e.getValue()).trim(), setter.getParameterTypes()[0]) });
+		}
+	}
+
+	private static Object convert(String value, Class type)
+	{
+		if (type == String.class)
+			return value;
+		else if (type == int.class || type == Integer.class)
+			return Integer.valueOf(value);
+		else if (type == long.class || type == Long.class)
+			return Long.valueOf(value);
+		else if (type == boolean.class || type == Boolean.class)
+			return Boolean.valueOf(value);
+		else if (type == short.class || type == Short.class)
+			return Short.valueOf(value);
+		else if (type == double.class || type == Double.class)
+			return Double.valueOf(value);
+		else
+			throw new IllegalArgumentException("Can't set a " + type.getName() + " property from an option");
+	}
+}
@@ -11,83 +11,247 @@ import javax.security.auth.login.*;
 public class FileLogin extends SimpleLogin
 {
 	private String              pwdFile;
-	private long                lastModified    = 0;
-	private Hashtable           users           = null;
+	private Store               store;
 
-	private class User
+	/**
+	 * Get the current contents of the password file or compiled database,
+	 * which all modules naming the same file share.
+	 *
+	 * @return a PasswordFile.Snapshot or a PasswordDatabase.Mapping
+	 */
+	private Object users() throws LoginException
 	{
-		char        password[];
-		Vector      principals;
+		try {
+			// the store's file is replaced when it restarts
+			PasswordDatabase database = store.getDatabase();
+			if (database != null) return database.getMapping();
+			return store.getFile().getSnapshot();
+		} catch (Exception e) {
+			throw new LoginException("Error reading " + pwdFile + " (" + e.getMessage() + ")");
+		}
 	}
 
-	private void load(File f) throws Exception
+	protected Vector validateUser(String username, char password[]) throws LoginException
 	{
-		//System.out.println("Reading " + f);
-		lastModified = f.lastModified();
-		BufferedReader r = new BufferedReader(new FileReader(f));
-		users = new Hashtable();
-		String l = r.readLine();
-		while (l != null)
-		{
-			int hash = l.indexOf('#');
-			if (hash != -1) l = l.substring(0, hash);
-			l = l.trim();
-			if (l.length() != 0)
-			{
-				StringTokenizer t = new StringTokenizer(l, ":");
-				User u = new User();
-				u.principals = new Vector();
-				String user = t.nextToken();
-				u.password = t.nextToken().toCharArray();
-				u.principals.add(new TypedPrincipal(user, TypedPrincipal.USER));
-				while (t.hasMoreTokens())
-					u.principals.add(new TypedPrincipal(t.nextToken(), TypedPrincipal.GROUP));
-				users.put(user, u);
-			}
-			l = r.readLine();
-		}
-		r.close();
+		return checkUser(users(), username, password);
 	}
 
-	private void reload() throws Exception
+	/**
+	 * Unknown users have always been reported as expired accounts here.
+	 */
+	protected boolean isUnknownUser(LoginException e)
 	{
-		File f = new File(pwdFile);
-		if (users == null || f.lastModified() != lastModified)
-		   load(f);
+		return e instanceof AccountExpiredException || super.isUnknownUser(e);
 	}
 
-	protected synchronized Vector validateUser(String username, char password[]) throws LoginException
+	private Vector checkUser(Object users, String username, char password[]) throws LoginException
 	{
-		try {
-			reload();
-		} catch (Exception e) {
-			throw new LoginException("Error reading " + pwdFile + " (" + e.getMessage() + ")");
+		if (users instanceof PasswordDatabase.Mapping)
+		{
+			PasswordDatabase.Mapping m = (PasswordDatabase.Mapping) users;
+			int record = m.find(username);
+			if (record < 0)
+			   throw new AccountExpiredException("Unknown user");
+			if (!verifyPassword(password, m.getPassword(record)))
+			   throw new FailedLoginException("Bad password");
+			return m.getPrincipals(username, record);
 		}
 
-		if (users == null || !users.containsKey(username))
+		PasswordFile.User u = ((PasswordFile.Snapshot) users).get(username);
+		if (u == null)
 		   throw new AccountExpiredException("Unknown user");
-		User u = (User) users.get(username);
-		char pwd[];
+		if (!verifyPassword(password, u.getPassword()))
+		   throw new FailedLoginException("Bad password");
+		return u.getPrincipals();
+	}
+
+	/**
+	 * Validate many users' credentials against one reading of the password
+	 * file, hashing the passwords in parallel.
+	 *
+	 * @param credentials a Map of username to password (a char array)
+	 * @return a Map of username to {@link ValidationResult}
+	 */
+	public Map validateUsers(Map credentials)
+	{
+		final Object table;
 		try {
-			pwd = Utils.cryptPassword(password);
-		} catch (Exception e) {
-			throw new LoginException("Error encoding password (" + e.getMessage() + ")");
+			table = users();
+		} catch (LoginException e) {
+			return super.validateUsers(credentials);	// each fails the same way
 		}
-		int c;
-		for (c = 0; c < pwd.length && c < u.password.length; c++)
-			if (pwd[c] != u.password[c])
-			   break;
-		if (c != pwd.length || c != u.password.length)
-		   throw new FailedLoginException("Bad password");
-		return u.principals;
+
+		return checkInParallel(credentials, new Check() {
+			public ValidationResult check(String username, char password[])
+			{
+				try {
+					return new ValidationResult(username, checkUser(table, username, password));
+				} catch (LoginException e) {
+					return new ValidationResult(username, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Password files hold MD5 hashes unless passwordVerifier says otherwise.
+	 */
+	protected String defaultVerifier()
+	{
+		return "md5";
 	}
 
 	public void initialize(Subject subject, CallbackHandler callbackHandler, Map sharedState, Map options)
 	{
 		super.initialize(subject, callbackHandler, sharedState, options);
 
-		pwdFile = getOption("pwdFile", null);
-		if (null == pwdFile)
-		   throw new Error("A password file must be named (pwdFile=?)");
+		Config c = (Config) config;
+		pwdFile		= c.pwdFile;
+		store		= c.store;
+	}
+
+	/**
+	 * The password file or compiled database.
+	 */
+	protected static class Config extends SimpleLogin.Config
+	{
+		public final String		pwdFile;
+		public final Store		store;
+
+		protected Config(FileLogin m)
+		{
+			super(m);
+
+			List settings = Arrays.asList(new Object[] {
+					Boolean.valueOf(m.getOption("watch", true)),
+					Long.valueOf(m.getOption("reloadCheck", 5) * 1000L),
+					Integer.valueOf(m.getOption("journalCompact", 1000)) });
+
+			String db = m.getOption("pwdDatabase", null);
+			if (db != null)
+			{
+				// compiled with PasswordDatabase and mapped rather than read
+				pwdFile = db;
+				store = (Store) acquire("FileLogin.pwdDatabase:" + canonical(db), settings, Store.FACTORY);
+			}
+			else
+			{
+				pwdFile = m.getOption("pwdFile", null);
+				if (null == pwdFile)
+				   throw new Error("A password file must be named (pwdFile=? or pwdDatabase=?)");
+				store = (Store) acquire("FileLogin.pwdFile:" + canonical(pwdFile), settings, Store.FACTORY);
+			}
+			if (stats != null) store.addStats(stats);
+		}
+
+		private static String canonical(String path)
+		{
+			try {
+				return new File(path).getCanonicalPath();
+			} catch (IOException e) {
+				return new File(path).getAbsolutePath();
+			}
+		}
+	}
+
+	/**
+	 * A password file or compiled database being watched for changes. The
+	 * settings are a List of watch, the check interval in milliseconds and
+	 * journalCompact.
+	 */
+	protected static class Store extends Backend
+	{
+		final static Backend.Factory	FACTORY	= new Backend.Factory() {
+			public Backend create(String key, Object settings)
+			{
+				return new Store(key, settings);
+			}
+		};
+
+		private final String				path;
+		private final boolean				compiled;
+		private final List					stats		= new ArrayList();
+		private volatile PasswordFile		file		= null;
+		private volatile PasswordDatabase	database	= null;
+
+		protected Store(String key, Object settings)
+		{
+			super(key, settings);
+			compiled = key.startsWith("FileLogin.pwdDatabase:");
+			path = key.substring(key.indexOf(':') + 1);
+		}
+
+		public PasswordFile getFile()
+		{
+			return file;
+		}
+
+		public PasswordDatabase getDatabase()
+		{
+			return database;
+		}
+
+		/**
+		 * Have each reading of the file recorded, now and after restarts.
+		 */
+		public synchronized void addStats(LoginStats s)
+		{
+			if (!stats.contains(s)) stats.add(s);
+			if (file != null) file.addStats(s);
+			if (database != null) database.addStats(s);
+		}
+
+		protected synchronized void start()
+		{
+			List s = (List) getSettings();
+			boolean watch = ((Boolean) s.get(0)).booleanValue();
+			long reloadCheck = ((Long) s.get(1)).longValue();
+
+			if (compiled)
+			{
+				PasswordDatabase d = PasswordDatabase.getDatabase(path);
+				for (int i = 0; i < stats.size(); i++) {
+					d.addStats((LoginStats) stats.get(i));
+				}
+				d.monitor(watch, reloadCheck);
+				database = d;
+			}
+			else
+			{
+				PasswordFile f = PasswordFile.getFile(path);
+				for (int i = 0; i < stats.size(); i++) {
+					f.addStats((LoginStats) stats.get(i));
+				}
+				f.monitor(watch, reloadCheck);
+				f.setCompactAt(((Integer) s.get(2)).intValue());
+				file = f;
+			}
+		}
+
+		/**
+		 * journalCompact is adjusted in place; only a change in how the file
+		 * is watched calls for a restart.
+		 */
+		protected synchronized void configChanged(Object settings) throws Exception
+		{
+			List s = (List) settings;
+			if (!s.subList(0, 2).equals(((List) getSettings()).subList(0, 2))) {
+				super.configChanged(settings);
+				return;
+			}
+			setSettings(settings);
+			if (file != null) file.setCompactAt(((Integer) s.get(2)).intValue());
+		}
+
+		protected synchronized void stop()
+		{
+			if (file != null) file.close();
+			if (database != null) database.close();
+		}
+	}
+
+	protected BasicLogin.Config compile()
+	{
+		return new Config(this);
 	}
 }
@@ -0,0 +1,223 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells the file based credential stores when their files change, so they
+ * can read them again in the background rather than checking on every
+ * login. Changes are noticed through the file system's change
+ * notifications (a WatchService on the file's directory) where possible,
+ * and otherwise by checking the file's timestamp and length periodically.
+ *
+ * @version 1.0.3
+ */
+public class FileMonitor
+{
+	/**
+	 * Told when a file may have changed.
+	 */
+	public interface Listener
+	{
+		void changed(File f);
+	}
+
+	// checks the files that can't be watched; made when first needed
+	private static Timer		poller		= null;
+
+	// directories being watched, and the files being watched in each
+	private static WatchService	watcher		= null;
+	private final static Map	watched		= new HashMap();
+
+	// how long to let a burst of changes to a file settle before reporting it
+	private final static long	SETTLE		= 50;
+
+	private FileMonitor()
+	{
+	}
+
+	/**
+	 * A file being watched and who to tell about it.
+	 */
+	public static class Watch
+	{
+		final File		file;
+		final Listener	listener;
+		TimerTask		poll		= null;
+
+		Watch(File file, Listener listener)
+		{
+			this.file		= file;
+			this.listener	= listener;
+		}
+
+		/**
+		 * Stop watching the file. The listener may still be called once if
+		 * a change is being reported.
+		 */
+		public void cancel()
+		{
+			if (poll != null) {
+				poll.cancel();
+				return;
+			}
+			synchronized (watched) {
+				List l = (List) watched.get(file.getAbsoluteFile().getParentFile().toPath());
+				if (l != null) l.remove(this);
+			}
+		}
+	}
+
+	/**
+	 * Start watching a file. The listener is called on a background thread
+	 * after each change, or burst of changes, to the file.
+	 *
+	 * @param f the file
+	 * @param notify true to use the file system's change notifications if
+	 * it has them, false to only check the file periodically
+	 * @param interval milliseconds between periodic checks
+	 * @param listener told about changes
+	 * @return the watch, to cancel when the file is no longer of interest
+	 */
+	public static Watch monitor(final File f, boolean notify, long interval, final Listener listener)
+	{
+		Watch w = new Watch(f, listener);
+		if (notify && watch(w)) return w;
+
+		w.poll = new TimerTask() {
+			private long	modified	= f.lastModified();
+			private long	length		= f.length();
+
+			public void run()
+			{
+				long m = f.lastModified(), l = f.length();
+				if (m == modified && l == length) return;
+				modified = m;
+				length = l;
+				listener.changed(f);
+			}
+		};
+		schedule(w.poll, interval);
+		return w;
+	}
+
+	private static synchronized void schedule(TimerTask task, long interval)
+	{
+		if (poller == null) poller = new Timer("FileMonitor poll", true);
+		poller.schedule(task, interval, Math.max(1, interval));
+	}
+
+	/**
+	 * Stop the poll and watch threads and forget every watch, for
+	 * {@link BasicLogin#shutdown}. Files monitored afterwards start them
+	 * again.
+	 */
+	static void shutdown()
+	{
+		synchronized (FileMonitor.class) {
+			if (poller != null) poller.cancel();
+			poller = null;
+		}
+		synchronized (watched) {
+			if (watcher != null) {
+				try { watcher.close(); } catch (IOException e) { }
+			}
+			watcher = null;
+			watched.clear();
+		}
+	}
+
+	/**
+	 * Register a file's directory with the JVM's watch service, starting
+	 * the service if need be.
+	 *
+	 * @return false if the file system can't report changes
+	 */
+	private static boolean watch(Watch w)
+	{
+		Path dir = w.file.getAbsoluteFile().getParentFile().toPath();
+		synchronized (watched) {
+			try {
+				if (watcher == null) {
+					final WatchService ws = FileSystems.getDefault().newWatchService();
+					watcher = ws;
+					Thread t = new DaemonThreadFactory("FileMonitor watch").newThread(new Runnable() {
+						public void run()
+						{
+							watchLoop(ws);
+						}
+					});
+					t.start();
+				}
+				List l = (List) watched.get(dir);
+				if (l == null) {
+					dir.register(watcher, new WatchEvent.Kind[] { StandardWatchEventKinds.ENTRY_CREATE,
+																   StandardWatchEventKinds.ENTRY_MODIFY,
+																   StandardWatchEventKinds.ENTRY_DELETE });
+					l = new ArrayList();
+					watched.put(dir, l);
+				}
+				l.add(w);
+				return true;
+			} catch (Exception e) {
+				return false;
+			}
+		}
+	}
+
+	private static void watchLoop(WatchService watcher)
+	{
+		try {
+			for (;;) {
+				Set due = new LinkedHashSet();
+				collect(watcher.take(), due);
+
+				// files are often written in several steps
+				WatchKey key;
+				while ((key = watcher.poll(SETTLE, TimeUnit.MILLISECONDS)) != null) {
+					collect(key, due);
+				}
+
+				for (Iterator i = due.iterator(); i.hasNext(); ) {
+					Watch w = (Watch) i.next();
+					try {
+						w.listener.changed(w.file);
+					} catch (RuntimeException e) {
+						System.err.println("FileMonitor: " + w.file + " (" + e + ")");
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// shutting down
+		} catch (ClosedWatchServiceException e) {
+			// shutting down
+		}
+	}
+
+	/**
+	 * Note the watched files affected by the events of a watch key.
+	 */
+	private static void collect(WatchKey key, Set due)
+	{
+		List l;
+		synchronized (watched) {
+			l = (List) watched.get(key.watchable());
+			l = l == null ? Collections.EMPTY_LIST : new ArrayList(l);
+		}
+
+		for (Iterator e = key.pollEvents().iterator(); e.hasNext(); ) {
+			WatchEvent ev = (WatchEvent) e.next();
+			for (int f = 0; f < l.size(); f++) {
+				Watch w = (Watch) l.get(f);
+				if (ev.kind() == StandardWatchEventKinds.OVERFLOW ||
+					w.file.getName().equals(String.valueOf(ev.context())))
+					due.add(w);
+			}
+		}
+		key.reset();
+	}
+}
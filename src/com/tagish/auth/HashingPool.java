@@ -0,0 +1,126 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.security.auth.login.LoginException;
+
+/**
+ * A bounded pool of threads that does password verification for the login
+ * modules. Adaptive hashes such as PBKDF2 are deliberately expensive, so
+ * running them on the threads that call login() lets a burst of logins take
+ * every CPU. Here at most one verification per processor runs at a time
+ * and only a limited number may wait; beyond that logins are refused with a
+ * {@link BackendUnavailableException} rather than queued without limit.
+ *
+ * <p>There is one pool per JVM. The queue depth is set by the first module
+ * that asks for it.
+ *
+ * @version 1.0.3
+ */
+public class HashingPool
+{
+	private static HashingPool			pool;
+
+	private final ThreadPoolExecutor	executor;
+
+	/**
+	 * Get the JVM's hashing pool, creating it if necessary.
+	 *
+	 * @param queueDepth how many verifications may wait for a thread
+	 * @return the pool
+	 */
+	public static synchronized HashingPool getPool(int queueDepth)
+	{
+		if (pool == null) pool = new HashingPool(Runtime.getRuntime().availableProcessors(), queueDepth);
+		return pool;
+	}
+
+	/**
+	 * Shut the JVM's pool down once the verifications it has been given are
+	 * done, for {@link BasicLogin#shutdown}. The next module to ask for a
+	 * pool gets a new one.
+	 */
+	static synchronized void shutdown()
+	{
+		if (pool != null) pool.executor.shutdown();
+		pool = null;
+	}
+
+	public HashingPool(int threads, int queueDepth)
+	{
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+										  new ArrayBlockingQueue(Math.max(1, queueDepth)),
+										  new DaemonThreadFactory("HashingPool"),
+										  new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Verify a password on one of the pool's threads and wait for the
+	 * answer.
+	 *
+	 * @param verifier the verifier to use
+	 * @param password the password supplied by the user; it is copied so the
+	 * caller's array is never touched by the pool, and the copy smudged once
+	 * checked, or if the check is cancelled before it starts
+	 * @param stored the password as held by the credential store
+	 * @return true if they match
+	 * @throws LoginException if the verification fails or the pool is full
+	 */
+	public boolean verify(final PasswordVerifier verifier, char password[], final String stored) throws LoginException
+	{
+		final char copy[] = password.clone();
+		final AtomicBoolean claimed = new AtomicBoolean();
+		FutureTask f = new FutureTask(new Callable() {
+			public Object call() throws Exception
+			{
+				if (!claimed.compareAndSet(false, true)) return Boolean.FALSE;		// cancelled, and the copy smudged
+				try {
+					return Boolean.valueOf(verifier.verify(copy, stored));
+				} finally {
+					Utils.smudge(copy);
+				}
+			}
+		}) {
+			protected void done()
+			{
+				// cancelled before it ran
+				if (claimed.compareAndSet(false, true)) Utils.smudge(copy);
+			}
+		};
+		try {
+			executor.execute(f);
+		} catch (RejectedExecutionException e) {
+			Utils.smudge(copy);
+			throw new BackendUnavailableException("Too many logins waiting for password hashing");
+		}
+
+		try {
+			return ((Boolean) f.get()).booleanValue();
+		} catch (InterruptedException e) {
+			f.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new LoginException("Interrupted waiting for password hashing");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof LoginException) throw (LoginException) e.getCause();
+			throw new LoginException("Error checking password (" + e.getCause() + ")");
+		}
+	}
+
+	/**
+	 * @return the number of verifications waiting for a thread
+	 */
+	public int getQueueLength()
+	{
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return the number of verifications running
+	 */
+	public int getActiveCount()
+	{
+		return executor.getActiveCount();
+	}
+}
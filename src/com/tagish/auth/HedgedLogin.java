@@ -0,0 +1,293 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.*;
+
+/**
+ * A login module for equivalent, redundant credential stores - two copies
+ * of the user database in different racks, say - that keeps one slow store
+ * from setting the login time. The login is sent to the first store and,
+ * if it hasn't answered within the hedge delay, to the next as well; the
+ * first definite answer (the user's principals, or a FailedLoginException
+ * or AccountException) wins and the other requests are cancelled. A store
+ * that fails outright is replaced by the next at once.
+ *
+ * <p>The stores, or backends, are named in order by the
+ * <code>backends</code> option and configured as the tiers of a
+ * {@link TieredLogin} are, with their name and a dot in front of their
+ * options:
+ * <table border="0">
+ * 	<tr><td>backends</td><td>The backends' names, first choice first</td></tr>
+ * 	<tr><td><i>backend</i>.module</td><td>file, db or the name of a
+ * 	{@link SimpleLogin} class (default the backend's name)</td></tr>
+ * 	<tr><td>hedgeDelay</td><td>Milliseconds to wait for a backend before
+ * 	asking the next (default 50)</td></tr>
+ * 	<tr><td>hedgePercentile</td><td>Wait instead for this percentile of the
+ * 	first backend's recent latency, once it has answered 100 logins; 0 to
+ * 	always use hedgeDelay (default 0)</td></tr>
+ * 	<tr><td>hedgeBudget</td><td>Percentage of logins that may be hedged
+ * 	(default 10)</td></tr>
+ * </table>
+ * The budget stops hedging from doubling the load on the stores when the
+ * first of them is slow for everyone: beyond it, logins wait for the
+ * backends already asked. Each backend's latency, and the hedges made and
+ * refused, are published with the module's statistics.
+ *
+ * @version 1.0.3
+ */
+public class HedgedLogin extends SimpleLogin
+{
+	// answers needed before hedgePercentile is used, and how often it is read
+	private final static int	MIN_SAMPLES		= 100;
+	private final static long	DELAY_REFRESH	= 1000L * 1000 * 1000;
+
+	// hedges the budget can save up, in hundredths
+	private final static long	BUDGET_CAP		= 10 * 100;
+
+	protected TieredLogin.Tier	backends[];
+
+	/**
+	 * The outcome of one login sent to several backends.
+	 */
+	private static class Race
+	{
+		Vector			principals	= null;
+		LoginException	answer		= null;
+		LoginException	error		= null;
+		boolean			done		= false;
+		int				running		= 0;
+	}
+
+	/**
+	 * Send the login to the backends, hedging after the delay.
+	 */
+	protected Vector validateUser(String username, char password[]) throws LoginException
+	{
+		Config c = (Config) config;
+		c.deposit();
+
+		Race race = new Race();
+		Future attempts[] = new Future[backends.length];
+		try {
+			synchronized (race) {
+				int next = 0;
+				attempts[next] = start(c, next, race, username, password);
+				next++;
+
+				long delay = c.hedgeDelay();
+				long hedgeAt = System.nanoTime() + delay;
+				boolean refused = false;
+				while (!race.done) {
+					if (race.running == 0) {
+						// every backend asked so far has failed
+						if (next == backends.length) break;
+						attempts[next] = start(c, next, race, username, password);
+						next++;
+						hedgeAt = System.nanoTime() + delay;
+						continue;
+					}
+					if (next == backends.length || refused) {
+						race.wait();
+						continue;
+					}
+
+					long wait = hedgeAt - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.timedWait(race, wait);
+					} else if (c.withdraw()) {
+						if (stats != null) stats.hedged();
+						attempts[next] = start(c, next, race, username, password);
+						next++;
+						hedgeAt = System.nanoTime() + delay;
+					} else {
+						if (stats != null) stats.hedgeRefused();
+						refused = true;
+					}
+				}
+
+				if (race.principals != null) return race.principals;
+				if (race.answer != null) throw race.answer;
+				throw race.error;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LoginException("Interrupted waiting for " + username + " to be validated");
+		} finally {
+			for (int a = 0; a < attempts.length; a++) {
+				if (attempts[a] != null) attempts[a].cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Ask one backend, on the executor used by {@link AsyncLogin}. The
+	 * attempt has its own copy of the password, as it may outlive the
+	 * caller's; the copy is smudged when the attempt finishes, or when it
+	 * is cancelled before it starts.
+	 */
+	private Future start(final Config c, final int b, final Race race, final String username, char password[])
+	{
+		final char copy[] = password.clone();
+		final AtomicBoolean claimed = new AtomicBoolean();
+		race.running++;
+		FutureTask task = new FutureTask(new Runnable() {
+			public void run()
+			{
+				if (!claimed.compareAndSet(false, true)) return;		// cancelled, and the copy smudged
+
+				long start = System.nanoTime();
+				Vector p = null;
+				LoginException e = null;
+				try {
+					p = backends[b].validate(username, copy);
+				} catch (LoginException le) {
+					e = le;
+				} catch (RuntimeException re) {
+					e = new LoginException(backends[b] + " (" + re + ")");
+				} finally {
+					Utils.smudge(copy);
+				}
+
+				synchronized (race) {
+					race.running--;
+					// a loser cancelled by the winner still took at least this long
+					c.latency[b].record(System.nanoTime() - start);
+					if (race.done) return;
+
+					if (p != null) {
+						race.principals = p;
+						race.done = true;
+					} else if (e instanceof FailedLoginException || e instanceof AccountException) {
+						race.answer = e;
+						race.done = true;
+					} else {
+						if (debug) System.err.println("HedgedLogin: " + backends[b] + " (" + e.getMessage() + ")");
+						race.error = e;
+					}
+					race.notifyAll();
+				}
+			}
+		}, null) {
+			protected void done()
+			{
+				if (claimed.compareAndSet(false, true)) Utils.smudge(copy);
+			}
+		};
+		try {
+			AsyncLogin.defaultExecutor().execute(task);
+		} catch (RejectedExecutionException e) {
+			// as though the backend had failed, so the next is tried
+			Utils.smudge(copy);
+			race.running--;
+			race.error = new BackendUnavailableException("Too many logins waiting for " + backends[b]);
+		}
+		return task;
+	}
+
+	public void initialize(Subject subject, CallbackHandler callbackHandler, Map sharedState, Map options)
+	{
+		super.initialize(subject, callbackHandler, sharedState, options);
+		backends = ((Config) config).backends;
+	}
+
+	/**
+	 * The backends, their latencies and the hedging budget, shared by every
+	 * module with the same options.
+	 */
+	protected static class Config extends SimpleLogin.Config
+	{
+		public final TieredLogin.Tier	backends[];
+		public final LatencyHistogram	latency[];
+		public final long				hedgeDelay;
+		public final int				hedgePercentile;
+		public final int				hedgeBudget;
+
+		// hundredths of a hedge: each login adds hedgeBudget, each hedge takes 100
+		private final AtomicLong		budget		= new AtomicLong(BUDGET_CAP);
+
+		private volatile long			delay;
+		private volatile long			delayRead;
+
+		protected Config(HedgedLogin m)
+		{
+			super(m);
+
+			String names = m.getOption("backends", null);
+			List l = new ArrayList();
+			if (names != null) {
+				for (StringTokenizer st = new StringTokenizer(names, ", "); st.hasMoreTokens(); ) {
+					l.add(TieredLogin.createTier(m, id, st.nextToken()));
+				}
+			}
+			if (l.isEmpty())
+				throw new Error("The credential stores must be listed (backends=?)");
+			backends = (TieredLogin.Tier[]) l.toArray(new TieredLogin.Tier[l.size()]);
+
+			latency = new LatencyHistogram[backends.length];
+			for (int b = 0; b < backends.length; b++) {
+				latency[b] = new LatencyHistogram();
+				if (stats != null) stats.setBackendHistogram(backends[b].name, latency[b]);
+			}
+
+			hedgeDelay		= m.getOption("hedgeDelay", 50) * 1000L * 1000;
+			hedgePercentile	= m.getOption("hedgePercentile", 0);
+			hedgeBudget		= m.getOption("hedgeBudget", 10);
+			delay			= hedgeDelay;
+			delayRead		= System.nanoTime();
+		}
+
+		/**
+		 * @return nanoseconds to wait for a backend before hedging
+		 */
+		long hedgeDelay()
+		{
+			if (hedgePercentile <= 0) return hedgeDelay;
+
+			long now = System.nanoTime();
+			if (now - delayRead > DELAY_REFRESH) {
+				delayRead = now;
+				LatencyHistogram h = latency[0];
+				long n = h.getCount();
+				if (n >= MIN_SAMPLES) delay = h.getPercentile(hedgePercentile);
+				// forget old answers, so the percentile follows the backend
+				if (n >= MIN_SAMPLES * 100) h.reset();
+			}
+			return delay;
+		}
+
+		/**
+		 * Add a login's share to the hedging budget.
+		 */
+		void deposit()
+		{
+			for (;;) {
+				long b = budget.get();
+				long n = Math.min(BUDGET_CAP, b + hedgeBudget);
+				if (n == b || budget.compareAndSet(b, n)) return;
+			}
+		}
+
+		/**
+		 * @return true if the budget allows another hedge, which it pays for
+		 */
+		boolean withdraw()
+		{
+			for (;;) {
+				long b = budget.get();
+				if (b < 100) return false;
+				if (budget.compareAndSet(b, b - 100)) return true;
+			}
+		}
+	}
+
+	protected BasicLogin.Config compile()
+	{
+		return new Config(this);
+	}
+}
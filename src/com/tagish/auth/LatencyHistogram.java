@@ -0,0 +1,178 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds. Values are counted in
+ * log-linear buckets, in the manner of an HDR histogram: each power of two
+ * is split into 16 equal buckets, so any value is known to within about 6%
+ * whatever its size. Recording is a few arithmetic operations and two
+ * uncontended atomic increments, with no allocation.
+ *
+ * @version 1.0.3
+ */
+public class LatencyHistogram
+{
+	// 16 buckets per power of two
+	private final static int	SUB_BITS	= 4;
+	private final static int	SUB_COUNT	= 1 << SUB_BITS;
+	private final static int	BUCKETS		= (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray	counts	= new AtomicLongArray(BUCKETS);
+	private final LongAdder			total	= new LongAdder();
+	private final LongAdder			sum		= new LongAdder();
+	private final AtomicLong		max		= new AtomicLong();
+
+	/**
+	 * Count one value.
+	 *
+	 * @param nanos the latency in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		total.increment();
+		sum.add(nanos);
+
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos)) {
+			m = max.get();
+		}
+	}
+
+	private static int index(long v)
+	{
+		if (v < SUB_COUNT) return (int) v;
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	/**
+	 * @return the middle of the range of values counted in a bucket
+	 */
+	private static long value(int index)
+	{
+		if (index < SUB_COUNT) return index;
+		int shift = index / SUB_COUNT - 1;
+		long low = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+		return low + ((1L << shift) >> 1);
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long getCount()
+	{
+		return total.sum();
+	}
+
+	/**
+	 * @return the largest value recorded
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the values recorded, or 0 if there are none
+	 */
+	public long getMean()
+	{
+		long n = total.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	/**
+	 * Estimate a percentile. Values recorded while this runs may or may not
+	 * be included.
+	 *
+	 * @param percentile between 0 and 100
+	 * @return the estimated value, or 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long c[] = new long[BUCKETS];
+		long n = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			c[b] = counts.get(b);
+			n += c[b];
+		}
+		if (n == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += c[b];
+			if (seen >= rank) return Math.min(value(b), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return the count, mean, common percentiles and maximum
+	 */
+	public Summary getSummary()
+	{
+		return new Summary(getCount(), getMean(), getPercentile(50), getPercentile(90),
+						   getPercentile(99), getPercentile(99.9), getMax());
+	}
+
+	/**
+	 * Forget everything recorded so far. Values recorded during the reset
+	 * may be partly kept.
+	 */
+	public void reset()
+	{
+		for (int b = 0; b < BUCKETS; b++) {
+			counts.set(b, 0);
+		}
+		total.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * A histogram's state at one moment, in nanoseconds.
+	 */
+	public static class Summary
+	{
+		private final long	count;
+		private final long	mean;
+		private final long	p50;
+		private final long	p90;
+		private final long	p99;
+		private final long	p999;
+		private final long	max;
+
+		public Summary(long count, long mean, long p50, long p90, long p99, long p999, long max)
+		{
+			this.count	= count;
+			this.mean	= mean;
+			this.p50	= p50;
+			this.p90	= p90;
+			this.p99	= p99;
+			this.p999	= p999;
+			this.max	= max;
+		}
+
+		public long getCount()	{ return count; }
+		public long getMean()	{ return mean; }
+		public long getP50()	{ return p50; }
+		public long getP90()	{ return p90; }
+		public long getP99()	{ return p99; }
+		public long getP999()	{ return p999; }
+		public long getMax()	{ return max; }
+
+		public String toString()
+		{
+			return "count=" + count + " mean=" + mean + " p50=" + p50 + " p90=" + p90 +
+				   " p99=" + p99 + " p99.9=" + p999 + " max=" + max;
+		}
+	}
+}
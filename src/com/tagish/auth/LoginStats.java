@@ -0,0 +1,362 @@
+// $Id$
+package com.tagish.auth;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * Counters and latency histograms for the login modules configured with
+ * the same <code>statsName</code> option, published through JMX as
+ * <code>com.tagish.auth:type=LoginModule,name=<i>statsName</i></code>.
+ *
+ * <p>A login is timed in phases: the callback handler, validation (the
+ * whole of validateUser() including any cache), the database query or file
+ * reload done by the module, the password hash, commit() and logout().
+ * The module's connection pool, credential cache and user snapshot, where
+ * it has them, are reported alongside, as are the latency of each backend
+ * and the number of hedged requests for a {@link HedgedLogin}.
+ *
+ * @version 1.0.3
+ */
+public class LoginStats implements LoginStatsMXBean
+{
+	public final static int		CALLBACK	= 0;
+	public final static int		VALIDATE	= 1;
+	public final static int		QUERY		= 2;
+	public final static int		HASH		= 3;
+	public final static int		COMMIT		= 4;
+	public final static int		LOGOUT		= 5;
+	public final static int		RELOAD		= 6;
+
+	private final static Map	allStats	= new HashMap();
+
+	private final String				name;
+	private final LatencyHistogram		phases[]	= new LatencyHistogram[RELOAD + 1];
+	private final LongAdder				successes	= new LongAdder();
+	private final LongAdder				failures	= new LongAdder();
+	private final LongAdder				cacheHits	= new LongAdder();
+	private final LongAdder				cacheMisses	= new LongAdder();
+	private final ConcurrentHashMap		failureTypes	= new ConcurrentHashMap();
+	private final ConcurrentHashMap		backends	= new ConcurrentHashMap();
+	private final LongAdder				hedges		= new LongAdder();
+	private final LongAdder				hedgesRefused	= new LongAdder();
+
+	private volatile CredentialCache	cache;
+	private volatile ConnectionPool		pool;
+	private volatile UserSnapshot		snapshot;
+	private volatile long				lastReload	= -1;
+	private volatile String				reloadError	= null;
+
+	/**
+	 * Get the statistics with the given name, creating and registering them
+	 * with the platform MBean server if necessary.
+	 *
+	 * @param name the statsName option
+	 * @return the statistics
+	 */
+	public static LoginStats getStats(String name)
+	{
+		synchronized (allStats) {
+			LoginStats stats = (LoginStats) allStats.get(name);
+			if (stats == null) {
+				stats = new LoginStats(name);
+				allStats.put(name, stats);
+				try {
+					ManagementFactory.getPlatformMBeanServer().registerMBean(stats, stats.getObjectName());
+				} catch (Exception e) {
+					// still worth collecting: they can be read through getStats()
+					System.err.println("LoginStats: can't register " + name + " (" + e + ")");
+				}
+			}
+			return stats;
+		}
+	}
+
+	/**
+	 * Unregister and forget every set of statistics, for
+	 * {@link BasicLogin#shutdown}.
+	 */
+	static void shutdown()
+	{
+		synchronized (allStats) {
+			for (Iterator i = allStats.values().iterator(); i.hasNext(); ) {
+				LoginStats stats = (LoginStats) i.next();
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(stats.getObjectName());
+				} catch (Exception e) {
+					// never registered
+				}
+			}
+			allStats.clear();
+		}
+	}
+
+	protected LoginStats(String name)
+	{
+		this.name = name;
+		for (int p = 0; p < phases.length; p++) {
+			phases[p] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return the name the statistics are registered under
+	 */
+	public ObjectName getObjectName() throws MalformedObjectNameException
+	{
+		return new ObjectName("com.tagish.auth:type=LoginModule,name=" + ObjectName.quote(name));
+	}
+
+	/**
+	 * Record how long a phase of a login took.
+	 *
+	 * @param phase CALLBACK, VALIDATE, QUERY, HASH, COMMIT, LOGOUT or RELOAD
+	 * @param nanos the time taken
+	 */
+	public void record(int phase, long nanos)
+	{
+		phases[phase].record(nanos);
+	}
+
+	public void success()
+	{
+		successes.increment();
+	}
+
+	/**
+	 * Count a failed login.
+	 *
+	 * @param e why it failed
+	 */
+	public void failure(Exception e)
+	{
+		failures.increment();
+		String type = e.getClass().getName();
+		LongAdder n = (LongAdder) failureTypes.get(type);
+		if (n == null) {
+			LongAdder fresh = new LongAdder();
+			n = (LongAdder) failureTypes.putIfAbsent(type, fresh);
+			if (n == null) n = fresh;
+		}
+		n.increment();
+	}
+
+	/**
+	 * Count a validation answered by, or missing, the credential cache.
+	 *
+	 * @param hit true if the cache answered
+	 */
+	public void cacheLookup(boolean hit)
+	{
+		if (hit) cacheHits.increment(); else cacheMisses.increment();
+	}
+
+	public void reloaded()
+	{
+		lastReload = System.currentTimeMillis();
+		reloadError = null;
+	}
+
+	/**
+	 * Note that the credential store couldn't be read again.
+	 *
+	 * @param error what went wrong
+	 */
+	public void reloadFailed(String error)
+	{
+		reloadError = error;
+	}
+
+	public void setCache(CredentialCache cache)
+	{
+		this.cache = cache;
+	}
+
+	public void setPool(ConnectionPool pool)
+	{
+		this.pool = pool;
+	}
+
+	public void setSnapshot(UserSnapshot snapshot)
+	{
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Report the latency of one of a module's backends.
+	 *
+	 * @param backend the backend's name
+	 * @param h its latencies, recorded by the module
+	 */
+	public void setBackendHistogram(String backend, LatencyHistogram h)
+	{
+		backends.put(backend, h);
+	}
+
+	/**
+	 * Count a request sent to a further backend because the first was slow.
+	 */
+	public void hedged()
+	{
+		hedges.increment();
+	}
+
+	/**
+	 * Count a request that would have been hedged but for the hedge budget.
+	 */
+	public void hedgeRefused()
+	{
+		hedgesRefused.increment();
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public long getLogins()
+	{
+		return successes.sum() + failures.sum();
+	}
+
+	public long getSuccesses()
+	{
+		return successes.sum();
+	}
+
+	public long getFailures()
+	{
+		return failures.sum();
+	}
+
+	public Map<String, Long> getFailuresByType()
+	{
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (Iterator i = failureTypes.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry) i.next();
+			m.put((String) e.getKey(), Long.valueOf(((LongAdder) e.getValue()).sum()));
+		}
+		return m;
+	}
+
+	public Map<String, LatencyHistogram.Summary> getBackendLatency()
+	{
+		Map<String, LatencyHistogram.Summary> m = new TreeMap<String, LatencyHistogram.Summary>();
+		for (Iterator i = backends.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry) i.next();
+			m.put((String) e.getKey(), ((LatencyHistogram) e.getValue()).getSummary());
+		}
+		return m;
+	}
+
+	public long getHedges()
+	{
+		return hedges.sum();
+	}
+
+	public long getHedgesRefused()
+	{
+		return hedgesRefused.sum();
+	}
+
+	public LatencyHistogram getHistogram(int phase)
+	{
+		return phases[phase];
+	}
+
+	public LatencyHistogram.Summary getCallbackLatency()	{ return phases[CALLBACK].getSummary(); }
+	public LatencyHistogram.Summary getValidateLatency()	{ return phases[VALIDATE].getSummary(); }
+	public LatencyHistogram.Summary getQueryLatency()		{ return phases[QUERY].getSummary(); }
+	public LatencyHistogram.Summary getHashLatency()		{ return phases[HASH].getSummary(); }
+	public LatencyHistogram.Summary getCommitLatency()		{ return phases[COMMIT].getSummary(); }
+	public LatencyHistogram.Summary getLogoutLatency()		{ return phases[LOGOUT].getSummary(); }
+	public LatencyHistogram.Summary getReloadLatency()		{ return phases[RELOAD].getSummary(); }
+
+	public long getCacheHits()
+	{
+		return cache == null ? -1 : cacheHits.sum();
+	}
+
+	public long getCacheMisses()
+	{
+		return cache == null ? -1 : cacheMisses.sum();
+	}
+
+	public long getCacheSize()
+	{
+		CredentialCache c = cache;
+		return c == null ? -1 : c.size();
+	}
+
+	public long getCacheEvictions()
+	{
+		CredentialCache c = cache;
+		return c == null ? -1 : c.getEvictions();
+	}
+
+	public long getPoolSize()
+	{
+		ConnectionPool p = pool;
+		return p == null ? -1 : p.getSize();
+	}
+
+	public long getPoolIdle()
+	{
+		ConnectionPool p = pool;
+		return p == null ? -1 : p.getIdleCount();
+	}
+
+	public long getSnapshotSize()
+	{
+		UserSnapshot s = snapshot;
+		return s == null ? -1 : s.size();
+	}
+
+	public long getSnapshotRefreshes()
+	{
+		UserSnapshot s = snapshot;
+		return s == null ? -1 : s.getRefreshCount();
+	}
+
+	public long getSnapshotLastRefresh()
+	{
+		UserSnapshot s = snapshot;
+		return s == null ? -1 : s.getLastRefresh();
+	}
+
+	public String getSnapshotLastError()
+	{
+		UserSnapshot s = snapshot;
+		return s == null ? null : s.getLastError();
+	}
+
+	public long getLastReload()
+	{
+		return lastReload;
+	}
+
+	public String getLastReloadError()
+	{
+		return reloadError;
+	}
+
+	public void reset()
+	{
+		for (int p = 0; p < phases.length; p++) {
+			phases[p].reset();
+		}
+		successes.reset();
+		failures.reset();
+		cacheHits.reset();
+		cacheMisses.reset();
+		failureTypes.clear();
+		for (Iterator i = backends.values().iterator(); i.hasNext(); ) {
+			((LatencyHistogram) i.next()).reset();
+		}
+		hedges.reset();
+		hedgesRefused.reset();
+	}
+}
@@ -0,0 +1,62 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link LoginStats}. Latencies are in
+ * nanoseconds. Statistics of features a module doesn't use are -1.
+ *
+ * @version 1.0.3
+ */
+public interface LoginStatsMXBean
+{
+	String getName();
+
+	long getLogins();
+	long getSuccesses();
+	long getFailures();
+
+	/**
+	 * @return the number of failed logins by exception class
+	 */
+	Map<String, Long> getFailuresByType();
+
+	LatencyHistogram.Summary getCallbackLatency();
+	LatencyHistogram.Summary getValidateLatency();
+	LatencyHistogram.Summary getQueryLatency();
+	LatencyHistogram.Summary getHashLatency();
+	LatencyHistogram.Summary getCommitLatency();
+	LatencyHistogram.Summary getLogoutLatency();
+	LatencyHistogram.Summary getReloadLatency();
+
+	Map<String, LatencyHistogram.Summary> getBackendLatency();
+	long getHedges();
+	long getHedgesRefused();
+
+	long getCacheHits();
+	long getCacheMisses();
+	long getCacheSize();
+	long getCacheEvictions();
+
+	long getPoolSize();
+	long getPoolIdle();
+
+	long getSnapshotSize();
+	long getSnapshotRefreshes();
+	long getSnapshotLastRefresh();
+	String getSnapshotLastError();
+
+	long getLastReload();
+
+	/**
+	 * @return why the last attempt to read the credential store again
+	 * failed, or null if it succeeded
+	 */
+	String getLastReloadError();
+
+	/**
+	 * Zero the counters and histograms.
+	 */
+	void reset();
+}
@@ -0,0 +1,37 @@
+// $Id$
+package com.tagish.auth;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * Verifies passwords stored as the hex encoded, unsalted MD5 hash produced
+ * by {@link Utils#cryptPassword}. This is the format of FileLogin's password
+ * files and remains its default.
+ *
+ * @version 1.0.3
+ */
+public class MD5PasswordVerifier implements PasswordVerifier
+{
+	public boolean verify(char password[], String stored) throws LoginException
+	{
+		try {
+			return Utils.verifyPassword(password, stored);
+		} catch (Exception e) {
+			throw new LoginException("Error encoding password (" + e.getMessage() + ")");
+		}
+	}
+
+	public String hash(char password[]) throws LoginException
+	{
+		return new String(crypt(password));
+	}
+
+	private static char[] crypt(char password[]) throws LoginException
+	{
+		try {
+			return Utils.cryptPassword(password);
+		} catch (Exception e) {
+			throw new LoginException("Error encoding password (" + e.getMessage() + ")");
+		}
+	}
+}
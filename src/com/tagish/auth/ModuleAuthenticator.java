@@ -0,0 +1,129 @@
+// $Id$
+package com.tagish.auth;
+
+import java.security.Principal;
+import java.util.*;
+import javax.security.auth.Subject;
+import javax.security.auth.login.*;
+
+/**
+ * An {@link Authenticator} backed by one of the com.tagish.auth.* login
+ * modules, so that services can check credentials exactly as the module's
+ * JAAS login would - same options, cache, rate limits and statistics -
+ * without the cost of a LoginContext for every call.
+ *
+ * <p>A single module instance is initialized with the options and then
+ * used by every call; the part of the module doing the check,
+ * {@link SimpleLogin#check}, keeps no per-login state. Given the options
+ * map from the login configuration the module shares its compiled options
+ * and backends with the JAAS logins using the same entry. After
+ * {@link BasicLogin#shutdown} the module is replaced by a new one, which
+ * starts the backends again.
+ *
+ * @version 1.0.3
+ */
+public class ModuleAuthenticator implements Authenticator
+{
+	private final Map			options;
+	private volatile SimpleLogin	module;
+
+	/**
+	 * Authenticate with the given module.
+	 *
+	 * @param module a new, uninitialized module
+	 * @param options the module's options
+	 */
+	public ModuleAuthenticator(SimpleLogin module, Map options)
+	{
+		module.initialize(new Subject(), null, new HashMap(), options);
+		this.options = options;
+		this.module = module;
+	}
+
+	/**
+	 * Authenticate with the first com.tagish.auth module of an entry in the
+	 * JVM's login configuration.
+	 *
+	 * @param name the entry's name, as given to a LoginContext
+	 * @return the authenticator
+	 * @throws LoginException if there is no such entry or it has no
+	 * suitable module
+	 */
+	public static Authenticator getAuthenticator(String name) throws LoginException
+	{
+		return getAuthenticator(name, Configuration.getConfiguration());
+	}
+
+	/**
+	 * Authenticate with the first com.tagish.auth module of an entry in a
+	 * login configuration.
+	 *
+	 * @param name the entry's name, as given to a LoginContext
+	 * @param config the login configuration
+	 * @return the authenticator
+	 * @throws LoginException if there is no such entry or it has no
+	 * suitable module
+	 */
+	public static Authenticator getAuthenticator(String name, Configuration config) throws LoginException
+	{
+		AppConfigurationEntry entries[] = config.getAppConfigurationEntry(name);
+		if (entries == null) throw new LoginException("No login configuration for " + name);
+
+		for (int e = 0; e < entries.length; e++) {
+			Class cls;
+			try {
+				cls = Class.forName(entries[e].getLoginModuleName());
+			} catch (ClassNotFoundException ex) {
+				continue;
+			}
+			if (!SimpleLogin.class.isAssignableFrom(cls)) continue;
+
+			try {
+				return new ModuleAuthenticator((SimpleLogin) cls.getDeclaredConstructor().newInstance(),
+											   entries[e].getOptions());
+			} catch (ReflectiveOperationException ex) {
+				throw new LoginException("Can't create " + cls.getName() + " (" + ex + ")");
+			}
+		}
+		throw new LoginException("No com.tagish.auth module configured for " + name);
+	}
+
+	/**
+	 * Check a user's credentials with the module. The module's
+	 * TypedPrincipals may be shared with other callers through its cache or
+	 * user snapshot, and can be renamed, so each caller is given copies.
+	 */
+	public List authenticate(String username, char password[]) throws LoginException
+	{
+		Vector p = module().check(username, password, null);
+		Object copies[] = new Object[p.size()];
+		for (int i = 0; i < copies.length; i++) {
+			copies[i] = SimpleLogin.copyPrincipal((Principal) p.get(i));
+		}
+		return Collections.unmodifiableList(Arrays.asList(copies));
+	}
+
+	/**
+	 * @return the module, replaced by a new one of the same class if the
+	 * backends it was initialized with have been shut down
+	 */
+	private SimpleLogin module() throws LoginException
+	{
+		SimpleLogin m = module;
+		if (m.isCurrent()) return m;
+
+		synchronized (this) {
+			if (!module.isCurrent()) {
+				try {
+					// login modules have a public no-argument constructor, as JAAS requires
+					m = (SimpleLogin) module.getClass().getDeclaredConstructor().newInstance();
+				} catch (ReflectiveOperationException e) {
+					throw new LoginException("Can't create " + module.getClass().getName() + " (" + e + ")");
+				}
+				m.initialize(new Subject(), null, new HashMap(), options);
+				module = m;
+			}
+			return module;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+// $Id$
+package com.tagish.auth;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+/**
+ * Verifies passwords hashed with PBKDF2 using the JDK's own implementation.
+ * Each stored password carries its own algorithm, iteration count and salt
+ * so the cost can be raised for new passwords without invalidating old
+ * ones:
+ *
+ * <pre>
+ *     $pbkdf2-sha256$&lt;iterations&gt;$&lt;base64 salt&gt;$&lt;base64 hash&gt;
+ * </pre>
+ *
+ * <code>sha1</code> and <code>sha512</code> may be used in place of
+ * <code>sha256</code>. The format contains no ':' or '#' characters so it
+ * can be used in FileLogin's password files.
+ *
+ * @version 1.0.3
+ */
+public class PBKDF2PasswordVerifier implements PasswordVerifier
+{
+	/**
+	 * Iterations used by hash() unless told otherwise.
+	 */
+	public final static int				DEFAULT_ITERATIONS	= 210000;
+
+	private final static int			SALT_LENGTH			= 16;
+	private final static SecureRandom	random				= new SecureRandom();
+
+	private final int					iterations;
+
+	public PBKDF2PasswordVerifier()
+	{
+		this(DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * @param iterations the iteration count used by hash()
+	 */
+	public PBKDF2PasswordVerifier(int iterations)
+	{
+		if (iterations < 1) throw new IllegalArgumentException("Bad iteration count");
+		this.iterations = iterations;
+	}
+
+	public boolean verify(char password[], String stored) throws LoginException
+	{
+		if (stored == null) return false;
+		String part[] = stored.split("\\$");
+		// a stored password in some other format is a bad password, not a
+		// failure of the store
+		if (part.length != 5 || part[0].length() != 0 || !part[1].startsWith("pbkdf2-"))
+			throw new FailedLoginException("Unrecognised password hash");
+
+		int iter;
+		byte salt[], hash[];
+		try {
+			iter = Integer.parseInt(part[2]);
+			salt = Base64.getDecoder().decode(part[3]);
+			hash = Base64.getDecoder().decode(part[4]);
+		} catch (IllegalArgumentException e) {
+			throw new FailedLoginException("Unrecognised password hash (" + e.getMessage() + ")");
+		}
+		if (iter < 1 || salt.length == 0 || hash.length == 0)
+			throw new FailedLoginException("Unrecognised password hash");
+
+		byte test[] = derive(algorithm(part[1].substring(7)), password, salt, iter, hash.length * 8);
+		return MessageDigest.isEqual(hash, test);
+	}
+
+	public String hash(char password[]) throws LoginException
+	{
+		byte salt[] = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		byte hash[] = derive("PBKDF2WithHmacSHA256", password, salt, iterations, 256);
+		return "$pbkdf2-sha256$" + iterations + "$" +
+			   Base64.getEncoder().encodeToString(salt) + "$" +
+			   Base64.getEncoder().encodeToString(hash);
+	}
+
+	private static String algorithm(String prf) throws LoginException
+	{
+		if (prf.equals("sha1"))
+			return "PBKDF2WithHmacSHA1";
+		else if (prf.equals("sha256"))
+			return "PBKDF2WithHmacSHA256";
+		else if (prf.equals("sha512"))
+			return "PBKDF2WithHmacSHA512";
+		else
+			throw new FailedLoginException("Unsupported PBKDF2 variant " + prf);
+	}
+
+	private static byte[] derive(String algorithm, char password[], byte salt[], int iterations, int bits)
+		throws LoginException
+	{
+		PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, bits);
+		try {
+			return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+		} catch (Exception e) {
+			throw new LoginException("Error hashing password (" + e.getMessage() + ")");
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
@@ -0,0 +1,507 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.security.auth.login.LoginException;
+
+/**
+ * A password file compiled into an indexed binary form that FileLogin maps
+ * into memory instead of reading. Lookups are done directly on the mapped
+ * file, so the heap holds nothing per user and reading a new version of the
+ * file is just mapping it.
+ *
+ * <p>Compile a password file with
+ * <pre>
+ * java com.tagish.auth.PasswordDatabase passwd passwd.db
+ * </pre>
+ * The output is written to a temporary file and renamed into place, so a
+ * database in use is never modified. Always replace a database this way:
+ * truncating a file that is mapped can crash the JVM.
+ *
+ * <p>The format is a constant database. All numbers are big-endian ints
+ * and strings are an unsigned short count of UTF-16 chars followed by the
+ * chars.
+ * <pre>
+ * header   magic, version, users, slots, groups, records offset, groups offset, 0
+ * slots    slots * (hash of username, offset of record or 0 if empty)
+ * records  username, password, unsigned short group count, group ids
+ * groups   groups * offset of name, then the names
+ * </pre>
+ * The slot table is an open addressed hash table, at most half full and
+ * probed linearly.
+ *
+ * @version 1.0.3
+ */
+public class PasswordDatabase
+{
+	private final static int	MAGIC		= 0x54505744;		// "TPWD"
+	private final static int	VERSION		= 1;
+	private final static int	HEADER		= 32;
+
+	private final static Map	databases	= new HashMap();
+
+	private final File				file;
+	private final List				stats		= new CopyOnWriteArrayList();
+	private volatile Mapping		current		= null;
+	private volatile String			lastError	= null;
+	private FileMonitor.Watch		watch		= null;
+
+	/**
+	 * One version of the database, mapped into memory. Never modified once
+	 * made; it may be used by any number of threads at once.
+	 */
+	public static class Mapping
+	{
+		private final ByteBuffer		buf;
+		private final File				file;
+		private final int				users;
+		private final int				mask;
+		private final int				recordsAt;
+		private final int				groupsAt;
+		private final TypedPrincipal	groups[];
+		private final long				loaded;
+
+		Mapping(ByteBuffer buf, File f) throws IOException
+		{
+			this.buf = buf;
+			this.file = f;
+			if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC)
+				throw new IOException(f + ": not a compiled password file");
+			if (buf.getInt(4) != VERSION)
+				throw new IOException(f + ": unknown version " + buf.getInt(4));
+
+			users = buf.getInt(8);
+			int slots = buf.getInt(12);
+			int groupCount = buf.getInt(16);
+			recordsAt = buf.getInt(20);
+			groupsAt = buf.getInt(24);
+			if (slots <= 0 || (slots & (slots - 1)) != 0 || slots > (buf.capacity() - HEADER) / 8 ||
+				recordsAt != HEADER + slots * 8 || groupCount < 0 || groupsAt < recordsAt ||
+				groupCount > (buf.capacity() - groupsAt) / 4)
+				throw new IOException(f + ": damaged header");
+			mask = slots - 1;
+
+			// the groups are few, so their principals are made once
+			groups = new TypedPrincipal[groupCount];
+			try {
+				for (int g = 0; g < groupCount; g++) {
+					groups[g] = new TypedPrincipal(string(buf.getInt(groupsAt + g * 4)), TypedPrincipal.GROUP);
+				}
+			} catch (IndexOutOfBoundsException e) {
+				throw new IOException(f + ": damaged group names");
+			}
+			loaded = System.currentTimeMillis();
+		}
+
+		/**
+		 * Report a record or slot that points outside the file, which can
+		 * only happen if it has been damaged or modified in place.
+		 */
+		private LoginException damaged()
+		{
+			return new LoginException("Damaged password database " + file);
+		}
+
+		/**
+		 * Find a user's record. No objects are created.
+		 *
+		 * @param username The username
+		 * @return the offset of the user's record, or -1 if there is none
+		 * @throws LoginException if the file is damaged
+		 */
+		public int find(String username) throws LoginException
+		{
+			int h = hash(username);
+			// the table always has an empty slot, unless it is damaged
+			for (int n = 0, s = mix(h) & mask; n <= mask; n++, s = (s + 1) & mask) {
+				int slot = HEADER + s * 8;
+				int record = buf.getInt(slot + 4);
+				if (record == 0) return -1;
+				if (record < recordsAt || record >= groupsAt) throw damaged();
+				try {
+					if (buf.getInt(slot) == h && matches(record, username)) return record;
+				} catch (IndexOutOfBoundsException e) {
+					throw damaged();
+				}
+			}
+			throw damaged();
+		}
+
+		private boolean matches(int at, String s)
+		{
+			int len = buf.getChar(at);
+			if (len != s.length()) return false;
+			at += 2;
+			for (int c = 0; c < len; c++, at += 2) {
+				if (buf.getChar(at) != s.charAt(c)) return false;
+			}
+			return true;
+		}
+
+		private String string(int at)
+		{
+			char c[] = new char[buf.getChar(at)];
+			at += 2;
+			for (int i = 0; i < c.length; i++, at += 2) {
+				c[i] = buf.getChar(at);
+			}
+			return new String(c);
+		}
+
+		private int skip(int at)
+		{
+			return at + 2 + buf.getChar(at) * 2;
+		}
+
+		/**
+		 * @param record as returned by find()
+		 * @return the user's password as held in the file
+		 * @throws LoginException if the file is damaged
+		 */
+		public String getPassword(int record) throws LoginException
+		{
+			try {
+				return string(skip(record));
+			} catch (IndexOutOfBoundsException e) {
+				throw damaged();
+			}
+		}
+
+		/**
+		 * @param username The username
+		 * @param record as returned by find()
+		 * @return a new Vector of the user's USER and GROUP principals
+		 * @throws LoginException if the file is damaged
+		 */
+		public Vector getPrincipals(String username, int record) throws LoginException
+		{
+			try {
+				int at = skip(skip(record));
+				int n = buf.getChar(at);
+				at += 2;
+				Vector v = new Vector(n + 1);
+				v.add(new TypedPrincipal(username, TypedPrincipal.USER));
+				for (int g = 0; g < n; g++, at += 4) {
+					v.add(groups[buf.getInt(at)]);
+				}
+				return v;
+			} catch (IndexOutOfBoundsException e) {
+				throw damaged();
+			}
+		}
+
+		public int size()
+		{
+			return users;
+		}
+
+		/**
+		 * @return when the file was mapped
+		 */
+		public long getLoaded()
+		{
+			return loaded;
+		}
+	}
+
+	/**
+	 * Get the shared mapping of a compiled password file, creating it if
+	 * necessary. The file is not mapped until it is first used.
+	 *
+	 * @param path the file's name
+	 * @return the database
+	 */
+	public static PasswordDatabase getDatabase(String path)
+	{
+		File f = new File(path);
+		try {
+			f = f.getCanonicalFile();
+		} catch (IOException e) {
+			f = f.getAbsoluteFile();
+		}
+
+		synchronized (databases) {
+			PasswordDatabase db = (PasswordDatabase) databases.get(f.getPath());
+			if (db == null) {
+				db = new PasswordDatabase(f);
+				databases.put(f.getPath(), db);
+			}
+			return db;
+		}
+	}
+
+	protected PasswordDatabase(File file)
+	{
+		this.file = file;
+	}
+
+	public File getPath()
+	{
+		return file;
+	}
+
+	/**
+	 * Have each mapping of the file recorded.
+	 *
+	 * @param s the statistics to record it in
+	 */
+	public void addStats(LoginStats s)
+	{
+		if (!stats.contains(s)) stats.add(s);
+	}
+
+	/**
+	 * Start looking for a new version of the file in the background, unless
+	 * that has already been done.
+	 *
+	 * @param notify true to use the file system's change notifications if
+	 * it has them, false to only check the file periodically
+	 * @param interval milliseconds between periodic checks
+	 */
+	public synchronized void monitor(boolean notify, long interval)
+	{
+		if (watch != null) return;
+		watch = FileMonitor.monitor(file, notify, interval, new FileMonitor.Listener() {
+			public void changed(File f)
+			{
+				refresh();
+			}
+		});
+	}
+
+	/**
+	 * Stop monitoring the file and forget it, so the next
+	 * {@link #getDatabase} maps it afresh. Mappings already handed out stay
+	 * usable.
+	 */
+	public void close()
+	{
+		synchronized (databases) {
+			if (databases.get(file.getPath()) == this) databases.remove(file.getPath());
+		}
+		synchronized (this) {
+			if (watch != null) watch.cancel();
+			watch = null;
+			current = null;
+		}
+	}
+
+	/**
+	 * Get the current version of the database, mapping it if this is the
+	 * first use.
+	 *
+	 * @return the mapped file
+	 * @throws IOException if the file has never been mapped successfully
+	 */
+	public Mapping getMapping() throws IOException
+	{
+		Mapping m = current;
+		if (m != null) return m;
+
+		synchronized (this) {
+			if (current == null) {
+				refresh();
+				if (current == null) throw new IOException(lastError);
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * @return the last error mapping the file, or null if the last attempt
+	 * succeeded
+	 */
+	public String getLastError()
+	{
+		return lastError;
+	}
+
+	/**
+	 * Map the file and, if it is valid, make it the current version.
+	 * Otherwise report the problem and keep the current version.
+	 */
+	synchronized void refresh()
+	{
+		long start = System.nanoTime();
+		try {
+			current = new Mapping(map(file), file);
+			lastError = null;
+		} catch (IOException e) {
+			lastError = e.getMessage();
+			System.err.println("PasswordDatabase: " + lastError +
+							   (current == null ? "" : "; still using the version mapped before"));
+			for (Iterator i = stats.iterator(); i.hasNext(); ) {
+				((LoginStats) i.next()).reloadFailed(lastError);
+			}
+			return;
+		}
+
+		long nanos = System.nanoTime() - start;
+		for (Iterator i = stats.iterator(); i.hasNext(); ) {
+			LoginStats ls = (LoginStats) i.next();
+			ls.record(LoginStats.RELOAD, nanos);
+			ls.reloaded();
+		}
+	}
+
+	private static ByteBuffer map(File f) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			if (ch.size() > Integer.MAX_VALUE) throw new IOException(f + ": too large to map");
+			// the mapping stays valid once the file is closed
+			return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * FNV-1a over the chars of a username.
+	 */
+	static int hash(String s)
+	{
+		int h = 0x811C9DC5;
+		for (int c = 0; c < s.length(); c++) {
+			h ^= s.charAt(c);
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	private static int mix(int h)
+	{
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Compile a password file.
+	 *
+	 * @param in the password file
+	 * @param out where to put the compiled file; it is replaced atomically
+	 * @return the number of users compiled
+	 * @throws IOException if in is malformed or out can't be written
+	 */
+	public static int compile(File in, File out) throws IOException
+	{
+		Map users = PasswordFile.load(in);
+
+		// number the groups
+		Map groupIds = new LinkedHashMap();
+		for (Iterator i = users.values().iterator(); i.hasNext(); ) {
+			PasswordFile.User u = (PasswordFile.User) i.next();
+			for (int p = 1; p < u.principals.length; p++) {
+				String g = u.principals[p].getName();
+				if (!groupIds.containsKey(g)) groupIds.put(g, Integer.valueOf(groupIds.size()));
+			}
+		}
+
+		int slots = 16;
+		while (slots < users.size() * 2) slots <<= 1;
+		int slotHash[] = new int[slots];
+		int slotRecord[] = new int[slots];
+
+		// place the records, in the order they will be written
+		long at = HEADER + (long) slots * 8;
+		for (Iterator i = users.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry) i.next();
+			String name = (String) e.getKey();
+			PasswordFile.User u = (PasswordFile.User) e.getValue();
+			if (at > Integer.MAX_VALUE) throw new IOException(in + ": too many users to compile");
+
+			int h = hash(name);
+			int s = mix(h) & (slots - 1);
+			while (slotRecord[s] != 0) s = (s + 1) & (slots - 1);
+			slotHash[s] = h;
+			slotRecord[s] = (int) at;
+			at += size(name) + size(u.password) + 2 + (u.principals.length - 1) * 4;
+		}
+		long groupsAt = at;
+		if (groupsAt + groupIds.size() * 4L > Integer.MAX_VALUE)
+			throw new IOException(in + ": too many users to compile");
+
+		File tmp = new File(out.getAbsoluteFile().getParentFile(), out.getName() + ".tmp");
+		DataOutputStream d = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			d.writeInt(MAGIC);
+			d.writeInt(VERSION);
+			d.writeInt(users.size());
+			d.writeInt(slots);
+			d.writeInt(groupIds.size());
+			d.writeInt(HEADER + slots * 8);
+			d.writeInt((int) groupsAt);
+			d.writeInt(0);
+			for (int s = 0; s < slots; s++) {
+				d.writeInt(slotHash[s]);
+				d.writeInt(slotRecord[s]);
+			}
+
+			for (Iterator i = users.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry e = (Map.Entry) i.next();
+				PasswordFile.User u = (PasswordFile.User) e.getValue();
+				write(d, (String) e.getKey());
+				write(d, u.password);
+				d.writeChar(u.principals.length - 1);
+				for (int p = 1; p < u.principals.length; p++) {
+					d.writeInt(((Integer) groupIds.get(u.principals[p].getName())).intValue());
+				}
+			}
+
+			int name = (int) groupsAt + groupIds.size() * 4;
+			for (Iterator i = groupIds.keySet().iterator(); i.hasNext(); ) {
+				d.writeInt(name);
+				name += size((String) i.next());
+			}
+			for (Iterator i = groupIds.keySet().iterator(); i.hasNext(); ) {
+				write(d, (String) i.next());
+			}
+		} catch (IOException e) {
+			d.close();
+			tmp.delete();
+			throw e;
+		}
+		d.close();
+
+		if (!tmp.renameTo(out)) {
+			// some platforms won't rename over an existing file
+			out.delete();
+			if (!tmp.renameTo(out)) throw new IOException("Can't rename " + tmp + " to " + out);
+		}
+		return users.size();
+	}
+
+	private static int size(String s) throws IOException
+	{
+		if (s.length() > 0xFFFF) throw new IOException("Field too long: " + s.substring(0, 20) + "...");
+		return 2 + s.length() * 2;
+	}
+
+	private static void write(DataOutputStream d, String s) throws IOException
+	{
+		d.writeChar(s.length());
+		d.writeChars(s);
+	}
+
+	/**
+	 * Compile a password file from the command line.
+	 */
+	public static void main(String args[])
+	{
+		if (args.length != 2) {
+			System.err.println("Usage: java com.tagish.auth.PasswordDatabase <password file> <compiled file>");
+			System.exit(2);
+		}
+		try {
+			int n = compile(new File(args[0]), new File(args[1]));
+			System.out.println("Compiled " + n + " users into " + args[1]);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
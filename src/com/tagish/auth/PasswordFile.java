@@ -0,0 +1,718 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A password file as read by FileLogin, shared by every module in the JVM
+ * that names the same file. Each line of the file is
+ * <pre>
+ * username:password:group:group...
+ * </pre>
+ * with anything after a '#' ignored.
+ *
+ * <p>The parsed file is held as an immutable snapshot. The file is read
+ * when first used; after that a {@link FileMonitor} notices changes to it
+ * and it is read again in the background. The new snapshot
+ * replaces the old one in a single write, so lookups never lock, never
+ * touch the file system and never see a half-read file. If the new version
+ * of the file is malformed the error is reported and the last good
+ * snapshot stays in use.
+ *
+ * <p>Small changes can be made without rewriting the file by appending
+ * them to a journal, <code><i>file</i>.journal</code>, one per line:
+ * <pre>
+ * +username:password:group:group...     add or replace a user
+ * -username                             remove a user
+ * </pre>
+ * Only the new lines of the journal are read when it grows, and they are
+ * laid over the file's contents, so the cost of a change doesn't depend on
+ * the size of the file. Once the journal has enough entries it is compacted:
+ * the file is rewritten with the changes folded in (sorted by username,
+ * without comments) and the journal emptied. Writers and compaction
+ * exclude each other by locking <code><i>file</i>.lock</code>; use
+ * {@link #update} and {@link #remove}, or take the same lock, to write to
+ * the journal.
+ *
+ * @version 1.0.3
+ */
+public class PasswordFile
+{
+	private final static Map	files		= new HashMap();
+
+	private final File				file;
+	private final File				journal;
+	private final File				lockFile;
+	private final List				stats		= new CopyOnWriteArrayList();
+	private volatile Snapshot		current		= null;
+	private volatile String			lastError	= null;
+	private FileMonitor.Watch		watches[]	= null;
+	private int						compactAt	= 0;
+
+	// the version of the file in the current snapshot
+	private String					baseVersion	= null;
+
+	// how much of which journal file has been read
+	private Object					journalKey	= null;
+	private long					journalRead	= 0;
+	private int						journalLine	= 0;
+
+	/**
+	 * A user as read from the file.
+	 */
+	public static class User
+	{
+		final String			password;
+		final TypedPrincipal	principals[];
+
+		User(String password, TypedPrincipal principals[])
+		{
+			this.password	= password;
+			this.principals	= principals;
+		}
+
+		public String getPassword()
+		{
+			return password;
+		}
+
+		/**
+		 * @return a new Vector of the user's USER and GROUP principals
+		 */
+		public Vector getPrincipals()
+		{
+			Vector v = new Vector(principals.length);
+			for (int p = 0; p < principals.length; p++) {
+				v.add(principals[p]);
+			}
+			return v;
+		}
+	}
+
+	/**
+	 * The contents of the file and journal at one moment. Never modified
+	 * once made.
+	 */
+	public static class Snapshot
+	{
+		private final Map		users;
+		private final Map		changes;
+		private final int		size;
+		private final long		loaded;
+
+		/**
+		 * @param users the file's users
+		 * @param changes the journal's users, with null for removed users
+		 */
+		Snapshot(Map users, Map changes, long loaded)
+		{
+			this.users		= users;
+			this.changes	= changes;
+			this.loaded		= loaded;
+
+			int n = users.size();
+			for (Iterator i = changes.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry e = (Map.Entry) i.next();
+				if (users.containsKey(e.getKey())) {
+					if (e.getValue() == null) n--;
+				} else if (e.getValue() != null) {
+					n++;
+				}
+			}
+			this.size = n;
+		}
+
+		/**
+		 * @param username The username
+		 * @return the user, or null if the file doesn't have them
+		 */
+		public User get(String username)
+		{
+			if (!changes.isEmpty() && changes.containsKey(username)) return (User) changes.get(username);
+			return (User) users.get(username);
+		}
+
+		public int size()
+		{
+			return size;
+		}
+
+		/**
+		 * @return the number of journal entries laid over the file
+		 */
+		public int getChanges()
+		{
+			return changes.size();
+		}
+
+		/**
+		 * @return when the file was read
+		 */
+		public long getLoaded()
+		{
+			return loaded;
+		}
+	}
+
+	/**
+	 * Get the shared copy of a password file, creating it if necessary. The
+	 * file is not read until it is first used.
+	 *
+	 * @param path the file's name
+	 * @return the password file
+	 */
+	public static PasswordFile getFile(String path)
+	{
+		File f = new File(path);
+		try {
+			f = f.getCanonicalFile();
+		} catch (IOException e) {
+			f = f.getAbsoluteFile();
+		}
+
+		synchronized (files) {
+			PasswordFile pf = (PasswordFile) files.get(f.getPath());
+			if (pf == null) {
+				pf = new PasswordFile(f);
+				files.put(f.getPath(), pf);
+			}
+			return pf;
+		}
+	}
+
+	protected PasswordFile(File file)
+	{
+		this.file		= file;
+		this.journal	= new File(file.getPath() + ".journal");
+		this.lockFile	= new File(file.getPath() + ".lock");
+	}
+
+	public File getPath()
+	{
+		return file;
+	}
+
+	/**
+	 * Have each reading of the file recorded.
+	 *
+	 * @param s the statistics to record it in
+	 */
+	public void addStats(LoginStats s)
+	{
+		if (!stats.contains(s)) stats.add(s);
+	}
+
+	/**
+	 * Start looking for changes to the file in the background, unless that
+	 * has already been done.
+	 *
+	 * @param notify true to use the file system's change notifications if
+	 * it has them, false to only check the file periodically
+	 * @param interval milliseconds between periodic checks
+	 */
+	public synchronized void monitor(boolean notify, long interval)
+	{
+		if (watches != null) return;
+		watches = new FileMonitor.Watch[2];
+		watches[0] = FileMonitor.monitor(file, notify, interval, new FileMonitor.Listener() {
+			public void changed(File f)
+			{
+				synchronized (PasswordFile.this) {
+					// ignore the rewrite done by compact()
+					if (current != null && version(file).equals(baseVersion)) return;
+				}
+				refresh();
+			}
+		});
+		watches[1] = FileMonitor.monitor(journal, notify, interval, new FileMonitor.Listener() {
+			public void changed(File f)
+			{
+				refreshJournal();
+			}
+		});
+	}
+
+	/**
+	 * Stop monitoring the file and forget it, so the next {@link #getFile}
+	 * reads it afresh. Snapshots already handed out stay usable.
+	 */
+	public void close()
+	{
+		synchronized (files) {
+			if (files.get(file.getPath()) == this) files.remove(file.getPath());
+		}
+		synchronized (this) {
+			for (int w = 0; watches != null && w < watches.length; w++) {
+				watches[w].cancel();
+			}
+			watches = null;
+			current = null;
+		}
+	}
+
+	/**
+	 * Compact the journal automatically once it has this many entries.
+	 *
+	 * @param entries the number of entries, 0 for never
+	 */
+	public synchronized void setCompactAt(int entries)
+	{
+		if (compactAt == 0 || (entries > 0 && entries < compactAt)) compactAt = entries;
+	}
+
+	/**
+	 * Get the current contents of the file. Only the first call reads the
+	 * file; after that changes are picked up in the background.
+	 *
+	 * @return the contents of the file
+	 * @throws IOException if the file has never been read successfully
+	 */
+	public Snapshot getSnapshot() throws IOException
+	{
+		Snapshot s = current;
+		if (s != null) return s;
+
+		synchronized (this) {
+			if (current == null) {
+				refresh();
+				if (current == null) throw new IOException(lastError);
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * @return the last error reading the file, or null if the last attempt
+	 * succeeded
+	 */
+	public String getLastError()
+	{
+		return lastError;
+	}
+
+	/**
+	 * Read the file and, if it is well formed, make it the current snapshot.
+	 * Otherwise report the problem and keep the current snapshot.
+	 */
+	synchronized void refresh()
+	{
+		long start = System.nanoTime();
+		try {
+			String version = version(file);
+			Map users = Collections.unmodifiableMap(load(file));
+			Map changes = new HashMap();
+			readJournal(changes, true);
+			current = new Snapshot(users, changes, System.currentTimeMillis());
+			baseVersion = version;
+			lastError = null;
+		} catch (IOException e) {
+			lastError = e.getMessage();
+			System.err.println("PasswordFile: " + lastError +
+							   (current == null ? "" : "; still using the version read before"));
+			for (Iterator i = stats.iterator(); i.hasNext(); ) {
+				((LoginStats) i.next()).reloadFailed(lastError);
+			}
+			return;
+		}
+
+		long nanos = System.nanoTime() - start;
+		for (Iterator i = stats.iterator(); i.hasNext(); ) {
+			LoginStats ls = (LoginStats) i.next();
+			ls.record(LoginStats.RELOAD, nanos);
+			ls.reloaded();
+		}
+	}
+
+	/**
+	 * Apply whatever has been added to the journal since it was last read.
+	 * If the journal has been replaced or truncated instead, most likely by
+	 * another JVM compacting it, the file is read again along with it.
+	 */
+	synchronized void refreshJournal()
+	{
+		Snapshot s = current;
+		if (s == null) return;			// read along with the file on first use
+
+		// an emptied journal laid over the old file would bring back the
+		// users the compaction removed
+		Object key = journal.exists() ? fileKey(journal) : null;
+		if (journalKey != null && (key == null || !key.equals(journalKey) || journal.length() < journalRead)) {
+			refresh();
+			return;
+		}
+
+		long start = System.nanoTime();
+		Map changes = new HashMap(s.changes);
+		try {
+			readJournal(changes, false);
+		} catch (IOException e) {
+			lastError = e.getMessage();
+			System.err.println("PasswordFile: " + lastError);
+			return;
+		}
+		current = new Snapshot(s.users, changes, System.currentTimeMillis());
+
+		long nanos = System.nanoTime() - start;
+		for (Iterator i = stats.iterator(); i.hasNext(); ) {
+			LoginStats ls = (LoginStats) i.next();
+			ls.record(LoginStats.RELOAD, nanos);
+			ls.reloaded();
+		}
+
+		if (compactAt > 0 && changes.size() >= compactAt) {
+			try {
+				compact();
+			} catch (IOException e) {
+				System.err.println("PasswordFile: can't compact " + journal + " (" + e.getMessage() + ")");
+			}
+		}
+	}
+
+	/**
+	 * Read the journal into a map of changes, starting where the last read
+	 * left off unless the journal has been replaced or truncated since.
+	 * Malformed entries are reported and skipped; a partly written last line
+	 * is left for next time.
+	 *
+	 * @param changes the changes read so far, updated in place
+	 * @param fromStart true to read the whole journal
+	 */
+	private void readJournal(Map changes, boolean fromStart) throws IOException
+	{
+		Object key = journal.exists() ? fileKey(journal) : null;
+		long length = journal.length();
+		if (fromStart || key == null || !key.equals(journalKey) || length < journalRead) {
+			changes.clear();
+			journalRead = 0;
+			journalLine = 0;
+		}
+		journalKey = key;
+		if (key == null || length == journalRead) return;
+
+		byte buf[] = new byte[(int) Math.min(length - journalRead, Integer.MAX_VALUE)];
+		RandomAccessFile raf = new RandomAccessFile(journal, "r");
+		try {
+			raf.seek(journalRead);
+			raf.readFully(buf);
+		} finally {
+			raf.close();
+		}
+
+		Map groups = new HashMap();
+		int from = 0;
+		for (int b = 0; b < buf.length; b++) {
+			if (buf[b] != '\n') continue;
+			journalLine++;
+			String l = new String(buf, from, b - from);
+			from = b + 1;
+
+			int hash = l.indexOf('#');
+			if (hash != -1) l = l.substring(0, hash);
+			l = l.trim();
+			if (l.length() == 0) continue;
+
+			if (l.charAt(0) == '+') {
+				User u = parse(l.substring(1), groups);
+				if (u != null) {
+					changes.put(u.principals[0].getName(), u);
+					continue;
+				}
+			} else if (l.charAt(0) == '-' && l.length() > 1) {
+				changes.put(l.substring(1).trim(), null);
+				continue;
+			}
+			System.err.println("PasswordFile: " + journal + ":" + journalLine +
+							   ": expected +username:password[:group...] or -username; ignored");
+		}
+		journalRead += from;
+	}
+
+	/**
+	 * Add a user to the journal, or replace them.
+	 *
+	 * @param username The username
+	 * @param password the password as it is to be stored (hashed, usually)
+	 * @param groups the user's groups
+	 * @throws IOException if the journal can't be written
+	 */
+	public void update(String username, String password, String groups[]) throws IOException
+	{
+		StringBuffer l = new StringBuffer("+");
+		l.append(check(username)).append(':').append(check(password));
+		for (int g = 0; g < groups.length; g++) {
+			l.append(':').append(check(groups[g]));
+		}
+		append(l.toString());
+	}
+
+	/**
+	 * Remove a user, through the journal.
+	 *
+	 * @param username The username
+	 * @throws IOException if the journal can't be written
+	 */
+	public void remove(String username) throws IOException
+	{
+		append("-" + check(username));
+	}
+
+	private static String check(String field)
+	{
+		if (field.length() == 0 || !field.trim().equals(field) || field.indexOf(':') != -1 ||
+			field.indexOf('#') != -1 || field.indexOf('\n') != -1 || field.indexOf('\r') != -1)
+			throw new IllegalArgumentException("Can't be stored in a password file: \"" + field + "\"");
+		return field;
+	}
+
+	private synchronized void append(String line) throws IOException
+	{
+		FileLock lock = lock();
+		try {
+			if (!journal.exists() && file.exists()) createLike(journal, file);
+			Writer w = new FileWriter(journal, true);
+			try {
+				w.write(line + "\n");
+			} finally {
+				w.close();
+			}
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Fold the journal into the file: rewrite the file with every change
+	 * applied and empty the journal. Both are replaced by renaming new files
+	 * into place, so readers always see whole files; the new files are given
+	 * the password file's permissions.
+	 *
+	 * @throws IOException if the files can't be read or written
+	 */
+	public synchronized void compact() throws IOException
+	{
+		FileLock lock = lock();
+		try {
+			// start from what is on disk now, which another JVM may have changed
+			Map users = load(file);
+			Map changes = new HashMap();
+			readJournal(changes, true);
+			if (changes.isEmpty()) return;
+
+			TreeMap all = new TreeMap(users);
+			for (Iterator i = changes.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry e = (Map.Entry) i.next();
+				if (e.getValue() == null)
+					all.remove(e.getKey());
+				else
+					all.put(e.getKey(), e.getValue());
+			}
+
+			File tmp = new File(file.getPath() + ".tmp");
+			tmp.delete();
+			createLike(tmp, file);
+			PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(tmp), 1 << 16));
+			try {
+				w.println("# compacted from " + journal.getName() + " " + new Date());
+				for (Iterator i = all.values().iterator(); i.hasNext(); ) {
+					User u = (User) i.next();
+					TypedPrincipal p[] = u.principals;
+					w.print(p[0].getName());
+					w.print(':');
+					w.print(u.password);
+					for (int g = 1; g < p.length; g++) {
+						w.print(':');
+						w.print(p[g].getName());
+					}
+					w.println();
+				}
+			} finally {
+				w.close();
+			}
+			if (w.checkError()) throw new IOException("Error writing " + tmp);
+			replace(tmp, file);
+
+			File empty = new File(journal.getPath() + ".tmp");
+			empty.delete();
+			createLike(empty, file);
+			replace(empty, journal);
+
+			current = new Snapshot(Collections.unmodifiableMap(new HashMap(all)), Collections.EMPTY_MAP,
+								   System.currentTimeMillis());
+			baseVersion = version(file);
+			journalKey = fileKey(journal);
+			journalRead = 0;
+			journalLine = 0;
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	private FileLock lock() throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+		try {
+			return raf.getChannel().lock();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private static void unlock(FileLock lock) throws IOException
+	{
+		try {
+			lock.release();
+		} finally {
+			lock.channel().close();
+		}
+	}
+
+	/**
+	 * Create an empty file with the same permissions as another, so the
+	 * hashes in a rewritten file or journal are no more widely readable than
+	 * those in the original.
+	 */
+	private static void createLike(File f, File like) throws IOException
+	{
+		Path p = f.toPath();
+		Set perms;
+		try {
+			perms = Files.getPosixFilePermissions(like.toPath());
+		} catch (UnsupportedOperationException e) {
+			Files.createFile(p);
+			return;
+		}
+		Files.createFile(p, new FileAttribute[] { PosixFilePermissions.asFileAttribute(perms) });
+		// the umask may have taken some away
+		Files.setPosixFilePermissions(p, perms);
+	}
+
+	private static void replace(File from, File to) throws IOException
+	{
+		if (!from.renameTo(to)) {
+			// some platforms won't rename over an existing file
+			to.delete();
+			if (!from.renameTo(to)) throw new IOException("Can't rename " + from + " to " + to);
+		}
+	}
+
+	/**
+	 * @return something that changes when the file is replaced
+	 */
+	private static Object fileKey(File f)
+	{
+		try {
+			Object key = Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+			if (key != null) return key;
+		} catch (IOException e) {
+			return null;
+		}
+		return f.getPath();
+	}
+
+	/**
+	 * @return something that changes when the file is replaced or modified
+	 */
+	private static String version(File f)
+	{
+		return fileKey(f) + "/" + f.lastModified() + "/" + f.length();
+	}
+
+	/**
+	 * Read a password file. Every non-blank line must have a username and a
+	 * password. If a username appears more than once the last line for it
+	 * is used, and the others are reported on stderr.
+	 *
+	 * <p>Large files are read in parallel by {@link PasswordFileParser}.
+	 * That only tells whether the file is malformed or repeats a username,
+	 * so if it does the file is read again line by line to say where.
+	 *
+	 * @return a Map of username to User
+	 * @throws IOException if the file can't be read or is malformed; the
+	 * message gives the file name and line number
+	 */
+	static Map load(File f) throws IOException
+	{
+		if (PasswordFileParser.suitable(f)) {
+			try {
+				return PasswordFileParser.parse(f);
+			} catch (PasswordFileParser.MalformedException e) {
+				// fall through to find the line
+			}
+		}
+		return read(f);
+	}
+
+	/**
+	 * Read a password file a line at a time.
+	 *
+	 * @see #load
+	 */
+	static Map read(File f) throws IOException
+	{
+		Map users = new HashMap();
+		Map groups = new HashMap();
+		BufferedReader r = new BufferedReader(new FileReader(f));
+		try {
+			int line = 0;
+			String l = r.readLine();
+			while (l != null)
+			{
+				line++;
+				int hash = l.indexOf('#');
+				if (hash != -1) l = l.substring(0, hash);
+				l = l.trim();
+				if (l.length() != 0)
+				{
+					User u = parse(l, groups);
+					if (u == null)
+						throw new IOException(f + ":" + line + ": expected username:password[:group...]");
+					String user = u.principals[0].getName();
+					if (users.put(user, u) != null)
+						System.err.println("PasswordFile: " + f + ":" + line + ": " + user +
+										   " appears more than once, using this line");
+				}
+				l = r.readLine();
+			}
+		} finally {
+			r.close();
+		}
+		return users;
+	}
+
+	/**
+	 * Parse a username:password:group... line, without comments and trimmed.
+	 *
+	 * @param groups group principals made so far, by name, to be shared
+	 * @return the user, or null if the line is malformed
+	 */
+	private static User parse(String l, Map groups)
+	{
+		StringTokenizer t = new StringTokenizer(l, ":");
+		if (t.countTokens() < 2) return null;
+		String user = t.nextToken();
+		String password = t.nextToken();
+
+		List p = new ArrayList();
+		p.add(new TypedPrincipal(user, TypedPrincipal.USER));
+		while (t.hasMoreTokens()) {
+			// one principal per group name, however many users are in it
+			String name = t.nextToken();
+			TypedPrincipal g = (TypedPrincipal) groups.get(name);
+			if (g == null) {
+				g = new TypedPrincipal(name, TypedPrincipal.GROUP);
+				groups.put(name, g);
+			}
+			p.add(g);
+		}
+		return new User(password, (TypedPrincipal[]) p.toArray(new TypedPrincipal[p.size()]));
+	}
+}
@@ -0,0 +1,330 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads large password files on several threads. The file is split into
+ * pieces at line boundaries and each piece is mapped into memory and parsed
+ * on the common fork-join pool, straight into a concurrent map of users.
+ * Lines are scanned byte by byte, so the only Strings made are the
+ * usernames and passwords themselves and the name of each distinct group.
+ *
+ * <p>The result is the same as that of reading the file a line at a time
+ * with a StringTokenizer: anything after a '#' is ignored, lines are
+ * trimmed, and empty fields are skipped. The file must be in an encoding
+ * in which ':', '#' and line ends are single ASCII bytes; it is decoded
+ * with the platform's default charset, as FileReader does. If the file is
+ * malformed, or a username appears twice, {@link #parse} gives up and the
+ * caller should read the file line by line to find out where.
+ *
+ * @version 1.0.3
+ */
+public class PasswordFileParser
+{
+	// below this a file is read on one thread
+	final static long			MIN_PARALLEL	= 1 << 20;
+
+	private final static int	MIN_PIECE		= 1 << 20;
+
+	private final static Set	SUPPORTED		= new HashSet(Arrays.asList(new String[] {
+			"UTF-8", "US-ASCII", "ISO-8859-1", "windows-1252" }));
+
+	private PasswordFileParser()
+	{
+	}
+
+	/**
+	 * Thrown when a piece of the file is malformed.
+	 */
+	static class MalformedException extends IOException
+	{
+		static final private long	serialVersionUID = 4418203958127336L;
+
+		MalformedException()
+		{
+			super("Malformed password file");
+		}
+	}
+
+	/**
+	 * @return true if the file is big enough to be worth reading in
+	 * parallel and the default charset can be parsed byte by byte
+	 */
+	static boolean suitable(File f)
+	{
+		return f.length() >= MIN_PARALLEL && SUPPORTED.contains(Charset.defaultCharset().name());
+	}
+
+	/**
+	 * Read a password file in parallel.
+	 *
+	 * @param f the file
+	 * @return a Map of username to PasswordFile.User
+	 * @throws MalformedException if a line lacks a password or a user
+	 * appears twice
+	 * @throws IOException if the file can't be read
+	 */
+	static Map parse(File f) throws IOException
+	{
+		long pieces = Math.max(1, Math.min(f.length() / MIN_PIECE, ForkJoinPool.getCommonPoolParallelism() * 4L));
+		return parse(f, (int) pieces);
+	}
+
+	/**
+	 * Read a password file in parallel, in a given number of pieces.
+	 *
+	 * @see #parse(File)
+	 */
+	static Map parse(File f, int pieces) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			long size = ch.size();
+
+			// about 64 bytes a line is typical
+			final ConcurrentHashMap users = new ConcurrentHashMap((int) Math.min(size / 64, 1 << 28));
+			final ConcurrentHashMap groups = new ConcurrentHashMap();
+			final Charset cs = Charset.defaultCharset();
+
+			List tasks = new ArrayList(pieces);
+			for (int p = 0; p < pieces; p++) {
+				long from = size * p / pieces;
+				long to = size * (p + 1) / pieces;
+				// a piece owns the lines starting in it, and reads on to finish the last
+				final ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, from,
+											  Math.min(size - from, Integer.MAX_VALUE));
+				final int end = (int) (to - from);
+
+				// a line starting exactly at the boundary is this piece's; one
+				// already in progress is the previous piece's
+				boolean inLine = false;
+				if (from > 0) {
+					ByteBuffer before = ByteBuffer.allocate(1);
+					ch.read(before, from - 1);
+					inLine = !Piece.isEOL(before.get(0));
+				}
+				final boolean partial = inLine;
+				tasks.add(new Callable() {
+					public Object call() throws IOException
+					{
+						new Piece(buf, end, partial, users, groups, cs).parse();
+						return null;
+					}
+				});
+			}
+
+			List results = ForkJoinPool.commonPool().invokeAll(tasks);
+			for (Iterator i = results.iterator(); i.hasNext(); ) {
+				try {
+					((Future) i.next()).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted reading " + f);
+				} catch (ExecutionException e) {
+					// the pool wraps checked exceptions
+					Throwable t = e.getCause();
+					while (t instanceof RuntimeException && t.getCause() != null) t = t.getCause();
+					if (t instanceof IOException) throw (IOException) t;
+					throw new IOException(f + " (" + t + ")");
+				}
+			}
+			return users;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Parses the lines starting in one piece of the file.
+	 */
+	private static class Piece
+	{
+		private final ByteBuffer		buf;
+		private final int				end;
+		private final boolean			partial;
+		private final ConcurrentHashMap	users;
+		private final ConcurrentHashMap	groups;
+		private final Charset			cs;
+
+		private byte					scratch[]	= new byte[256];
+
+		// the groups this piece has met, keyed on their bytes
+		private int						groupHash[]		= new int[64];
+		private byte					groupName[][]	= new byte[64][];
+		private TypedPrincipal			groupValue[]	= new TypedPrincipal[64];
+		private int						groupCount		= 0;
+
+		/**
+		 * @param partial true if the piece starts part way through a line
+		 */
+		Piece(ByteBuffer buf, int end, boolean partial, ConcurrentHashMap users, ConcurrentHashMap groups, Charset cs)
+		{
+			this.buf		= buf;
+			this.end		= end;
+			this.partial	= partial;
+			this.users	= users;
+			this.groups	= groups;
+			this.cs		= cs;
+		}
+
+		private static boolean isEOL(byte b)
+		{
+			return b == '\n' || b == '\r';
+		}
+
+		void parse() throws IOException
+		{
+			int limit = buf.limit();
+			int at = 0;
+			if (partial) {
+				// the line in progress belongs to the previous piece
+				while (at < limit && !isEOL(buf.get(at))) at++;
+			}
+
+			while (at < end && at < limit) {
+				if (isEOL(buf.get(at))) {
+					at++;
+					continue;
+				}
+				int eol = at;
+				while (eol < limit && !isEOL(buf.get(eol))) eol++;
+				line(at, eol);
+				at = eol;
+			}
+		}
+
+		private void line(int from, int to) throws IOException
+		{
+			for (int b = from; b < to; b++) {
+				if (buf.get(b) == '#') {
+					to = b;
+					break;
+				}
+			}
+			while (from < to && (buf.get(from) & 0xFF) <= ' ') from++;
+			while (to > from && (buf.get(to - 1) & 0xFF) <= ' ') to--;
+			if (from == to) return;
+
+			// fields, skipping empty ones as StringTokenizer does
+			int fields = 0;
+			for (int b = from; b < to; ) {
+				while (b < to && buf.get(b) == ':') b++;
+				if (b == to) break;
+				fields++;
+				while (b < to && buf.get(b) != ':') b++;
+			}
+			if (fields < 2) throw new MalformedException();
+
+			int b = next(from, to);
+			int e = fieldEnd(b, to);
+			String user = string(b, e);
+			b = next(e, to);
+			e = fieldEnd(b, to);
+			String password = string(b, e);
+
+			TypedPrincipal p[] = new TypedPrincipal[fields - 1];
+			p[0] = new TypedPrincipal(user, TypedPrincipal.USER);
+			for (int g = 1; g < p.length; g++) {
+				b = next(e, to);
+				e = fieldEnd(b, to);
+				p[g] = group(b, e);
+			}
+
+			if (users.putIfAbsent(user, new PasswordFile.User(password, p)) != null)
+				throw new MalformedException();
+		}
+
+		private int next(int b, int to)
+		{
+			while (b < to && buf.get(b) == ':') b++;
+			return b;
+		}
+
+		private int fieldEnd(int b, int to)
+		{
+			while (b < to && buf.get(b) != ':') b++;
+			return b;
+		}
+
+		private String string(int from, int to)
+		{
+			int len = to - from;
+			if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+			for (int b = 0; b < len; b++) {
+				scratch[b] = buf.get(from + b);
+			}
+			return new String(scratch, 0, len, cs);
+		}
+
+		private TypedPrincipal group(int from, int to)
+		{
+			int h = 0x811C9DC5;
+			for (int b = from; b < to; b++) {
+				h ^= buf.get(b);
+				h *= 0x01000193;
+			}
+
+			int mask = groupHash.length - 1;
+			int s = (h ^ (h >>> 16)) & mask;
+			for (; groupName[s] != null; s = (s + 1) & mask) {
+				if (groupHash[s] == h && same(groupName[s], from, to)) return groupValue[s];
+			}
+
+			// first time this piece has seen the group
+			String name = string(from, to);
+			TypedPrincipal g = (TypedPrincipal) groups.get(name);
+			if (g == null) {
+				TypedPrincipal fresh = new TypedPrincipal(name, TypedPrincipal.GROUP);
+				g = (TypedPrincipal) groups.putIfAbsent(name, fresh);
+				if (g == null) g = fresh;
+			}
+
+			byte key[] = new byte[to - from];
+			for (int b = 0; b < key.length; b++) {
+				key[b] = buf.get(from + b);
+			}
+			groupHash[s] = h;
+			groupName[s] = key;
+			groupValue[s] = g;
+			if (++groupCount * 2 > groupHash.length) grow();
+			return g;
+		}
+
+		private boolean same(byte name[], int from, int to)
+		{
+			if (name.length != to - from) return false;
+			for (int b = 0; b < name.length; b++) {
+				if (name[b] != buf.get(from + b)) return false;
+			}
+			return true;
+		}
+
+		private void grow()
+		{
+			int oldHash[] = groupHash;
+			byte oldName[][] = groupName;
+			TypedPrincipal oldValue[] = groupValue;
+			groupHash = new int[oldHash.length * 2];
+			groupName = new byte[oldHash.length * 2][];
+			groupValue = new TypedPrincipal[oldHash.length * 2];
+
+			int mask = groupHash.length - 1;
+			for (int o = 0; o < oldHash.length; o++) {
+				if (oldName[o] == null) continue;
+				int h = oldHash[o];
+				int s = (h ^ (h >>> 16)) & mask;
+				while (groupName[s] != null) s = (s + 1) & mask;
+				groupHash[s] = h;
+				groupName[s] = oldName[o];
+				groupValue[s] = oldValue[o];
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+// $Id$
+package com.tagish.auth;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * Checks a password supplied at login against the form in which it is
+ * stored. Implementations must be thread safe since one verifier is shared
+ * by every login through a module.
+ *
+ * <p>A module chooses its verifier with the <code>passwordVerifier</code>
+ * option, which can be <code>plain</code>, <code>md5</code>,
+ * <code>pbkdf2</code> or the name of a class implementing this interface
+ * that has a public no argument constructor.
+ *
+ * @version 1.0.3
+ */
+public interface PasswordVerifier
+{
+	/**
+	 * Check a password.
+	 *
+	 * @param password the password supplied by the user; it must not be
+	 * modified or retained
+	 * @param stored the password as held by the credential store
+	 * @return true if they match
+	 * @throws LoginException if the stored form can't be understood
+	 */
+	boolean verify(char password[], String stored) throws LoginException;
+
+	/**
+	 * Produce the stored form of a password, for tools that maintain
+	 * credential stores.
+	 *
+	 * @param password the password; it must not be modified or retained
+	 * @return the stored form
+	 * @throws LoginException if the password can't be encoded
+	 */
+	String hash(char password[]) throws LoginException;
+}
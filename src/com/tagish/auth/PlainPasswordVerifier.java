@@ -0,0 +1,26 @@
+// $Id$
+package com.tagish.auth;
+
+/**
+ * Verifies passwords that are stored as plain text. This is what DBLogin
+ * has always done and remains its default.
+ *
+ * @version 1.0.3
+ */
+public class PlainPasswordVerifier implements PasswordVerifier
+{
+	public boolean verify(char password[], String stored)
+	{
+		if (stored == null || stored.length() != password.length) return false;
+		int diff = 0;
+		for (int c = 0; c < password.length; c++) {
+			diff |= password[c] ^ stored.charAt(c);
+		}
+		return diff == 0;
+	}
+
+	public String hash(char password[])
+	{
+		return new String(password);
+	}
+}
@@ -0,0 +1,29 @@
+// $Id$
+package com.tagish.auth;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * Signals that a login was refused without checking the credentials
+ * because too many attempts have been made recently for the same username
+ * or from the same client address.
+ *
+ * @version 1.0.3
+ */
+public class RateLimitedException extends LoginException
+{
+	static final private long	serialVersionUID = 5512093847120364L;
+
+	public RateLimitedException()
+	{
+		super();
+	}
+
+	/**
+	 * @param msg the detail message
+	 */
+	public RateLimitedException(String msg)
+	{
+		super(msg);
+	}
+}
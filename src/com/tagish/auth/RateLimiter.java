@@ -0,0 +1,200 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets that limit how often logins may be attempted for each key
+ * (a username or a client address). Every attempt takes a token; a bucket
+ * holds at most <code>burst</code> tokens and refills at a steady rate. An
+ * attempt finding its bucket empty is refused.
+ *
+ * <p>The buckets are spread over independently locked segments, each
+ * holding a bounded number of keys in access order. A bucket that has been
+ * idle long enough to fill up again is the same as no bucket at all, so
+ * such buckets are dropped as they are found; when a segment is full the
+ * least recently used bucket is dropped regardless.
+ *
+ * @version 1.0.3
+ */
+public class RateLimiter
+{
+	private final static Map	limiters	= new HashMap();
+
+	private final Segment		segments[];
+	private final int			segmentMask;
+	private final double		perNano;
+	private final double		burst;
+	private final long			fillTime;
+
+	private final AtomicLong	rejected	= new AtomicLong();
+
+	/**
+	 * The tokens left for one key.
+	 */
+	private static class Bucket
+	{
+		double	tokens;
+		long	updated;
+
+		Bucket(double tokens, long updated)
+		{
+			this.tokens		= tokens;
+			this.updated	= updated;
+		}
+	}
+
+	/**
+	 * One lock's worth of buckets, kept in access order.
+	 */
+	private static class Segment extends LinkedHashMap
+	{
+		final int	capacity;
+
+		Segment(int capacity)
+		{
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * Get the limiter shared by all modules with the given identity, creating
+	 * it if necessary.
+	 *
+	 * @param id identifies the module configuration and what is being limited
+	 * @param perMinute attempts allowed per key per minute
+	 * @param burst attempts allowed in quick succession
+	 * @param maxKeys maximum number of keys tracked
+	 * @return the limiter
+	 */
+	public static RateLimiter getLimiter(String id, int perMinute, int burst, int maxKeys)
+	{
+		synchronized (limiters) {
+			RateLimiter limiter = (RateLimiter) limiters.get(id);
+			if (limiter == null) {
+				limiter = new RateLimiter(perMinute, burst, maxKeys);
+				limiters.put(id, limiter);
+			}
+			return limiter;
+		}
+	}
+
+	/**
+	 * Forget every shared limiter, for {@link BasicLogin#shutdown}.
+	 */
+	static void shutdown()
+	{
+		synchronized (limiters) {
+			limiters.clear();
+		}
+	}
+
+	public RateLimiter(int perMinute, int burst, int maxKeys)
+	{
+		if (perMinute < 1) throw new IllegalArgumentException("Rate must be at least 1 per minute");
+		if (maxKeys < 1) throw new IllegalArgumentException("At least 1 key must be tracked");
+
+		int n = 1;
+		while (n < Runtime.getRuntime().availableProcessors() * 4 && n * 8 < maxKeys) n <<= 1;
+		segments	= new Segment[n];
+		segmentMask	= n - 1;
+		for (int s = 0; s < n; s++) {
+			segments[s] = new Segment((maxKeys + n - 1) / n);
+		}
+
+		this.perNano	= perMinute / 60e9;
+		this.burst		= Math.max(1, burst);
+		this.fillTime	= (long) (this.burst / perNano);
+	}
+
+	private Segment segmentFor(String key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & segmentMask];
+	}
+
+	/**
+	 * Take a token for an attempt.
+	 *
+	 * @param key the username or client address
+	 * @return true if the attempt may go ahead, false if it must be refused
+	 */
+	public boolean tryAcquire(String key)
+	{
+		Segment seg = segmentFor(key);
+		long now = System.nanoTime();
+		synchronized (seg) {
+			Bucket b = (Bucket) seg.get(key);
+			if (b == null) {
+				expire(seg, now);
+				seg.put(key, new Bucket(burst - 1, now));
+				return true;
+			}
+
+			b.tokens = Math.min(burst, b.tokens + (now - b.updated) * perNano);
+			b.updated = now;
+			if (b.tokens >= 1) {
+				b.tokens -= 1;
+				return true;
+			}
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Give back the token taken for an attempt, for example because the
+	 * login succeeded and only failures are to be limited.
+	 *
+	 * @param key the username or client address
+	 */
+	public void release(String key)
+	{
+		Segment seg = segmentFor(key);
+		synchronized (seg) {
+			Bucket b = (Bucket) seg.get(key);
+			if (b != null) b.tokens = Math.min(burst, b.tokens + 1);
+		}
+	}
+
+	/**
+	 * Make room in a segment before a new bucket is added: drop the least
+	 * recently used buckets that have filled up again, and if the segment is
+	 * still full, the least recently used one.
+	 */
+	private void expire(Segment seg, long now)
+	{
+		Iterator i = seg.values().iterator();
+		while (i.hasNext()) {
+			Bucket b = (Bucket) i.next();
+			if (now - b.updated < fillTime && seg.size() < seg.capacity) break;
+			i.remove();
+			if (now - b.updated < fillTime) break;
+		}
+	}
+
+	/**
+	 * @return the number of keys being tracked
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (int s = 0; s < segments.length; s++) {
+			synchronized (segments[s]) {
+				size += segments[s].size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of attempts refused
+	 */
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+}
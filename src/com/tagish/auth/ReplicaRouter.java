@@ -0,0 +1,246 @@
+// $Id$
+package com.tagish.auth;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+
+/**
+ * Spreads DBLogin's lookups over read replicas of the user database. Each
+ * lookup is offered a list of endpoints to try in order: the healthy
+ * replicas, either in rotation or fastest first, followed by the primary.
+ * An endpoint that can't be reached is marked down and skipped until a
+ * background health check finds it answering again.
+ *
+ * @version 1.0.3
+ */
+public class ReplicaRouter
+{
+	// runs the health checks of every router; made when first needed
+	private static Timer		checker		= null;
+
+	// seconds allowed for a health check
+	private final static int	CHECK_TIMEOUT	= 5;
+
+	private final Endpoint		primary;
+	private final Endpoint		replicas[];
+	private final boolean		leastLatency;
+	private final AtomicInteger	next		= new AtomicInteger();
+	private TimerTask			check		= null;
+
+	/**
+	 * One database: the primary or a replica.
+	 */
+	public static class Endpoint
+	{
+		private final String		url;
+		private final String		dbUser;
+		private final String		dbPassword;
+		private final DataSource	pool;
+		private final boolean		primary;
+
+		private volatile boolean	healthy		= true;
+		private volatile long		latency		= 0;		// smoothed, in nanoseconds
+
+		Endpoint(String url, String dbUser, String dbPassword, DataSource pool, boolean primary)
+		{
+			this.url		= url;
+			this.dbUser		= dbUser;
+			this.dbPassword	= dbPassword;
+			this.pool		= pool;
+			this.primary	= primary;
+		}
+
+		/**
+		 * @return a connection to this database
+		 */
+		public Connection getConnection() throws SQLException
+		{
+			if (pool != null) return pool.getConnection();
+			if (dbUser != null)
+				return DriverManager.getConnection(url, dbUser, dbPassword);
+			else
+				return DriverManager.getConnection(url);
+		}
+
+		public String getURL()
+		{
+			return url;
+		}
+
+		public boolean isPrimary()
+		{
+			return primary;
+		}
+
+		public boolean isHealthy()
+		{
+			return healthy;
+		}
+
+		/**
+		 * @return the smoothed response time of this database in nanoseconds
+		 */
+		public long getLatency()
+		{
+			return latency;
+		}
+
+		void record(long nanos)
+		{
+			long l = latency;
+			// exponentially weighted moving average, weight 1/8
+			latency = l == 0 ? nanos : l + (nanos - l) / 8;
+		}
+
+		public String toString()
+		{
+			return (primary ? "primary " : "replica ") + url;
+		}
+	}
+
+	protected ReplicaRouter(String primaryURL, String replicaURLs[], String dbUser, String dbPassword,
+							DataSource pools[], boolean leastLatency, long checkInterval)
+	{
+		this.primary = new Endpoint(primaryURL, dbUser, dbPassword, pools == null ? null : pools[0], true);
+		this.replicas = new Endpoint[replicaURLs.length];
+		for (int r = 0; r < replicaURLs.length; r++) {
+			replicas[r] = new Endpoint(replicaURLs[r], dbUser, dbPassword,
+									   pools == null ? null : pools[r + 1], false);
+		}
+		this.leastLatency = leastLatency;
+
+		if (checkInterval > 0) {
+			check = new TimerTask() {
+				public void run()
+				{
+					checkHealth();
+				}
+			};
+			schedule(check, checkInterval);
+		}
+	}
+
+	private static synchronized void schedule(TimerTask task, long interval)
+	{
+		if (checker == null) checker = new Timer("ReplicaRouter health check", true);
+		checker.schedule(task, interval, interval);
+	}
+
+	/**
+	 * Stop the health check thread, for {@link BasicLogin#shutdown}. A
+	 * router made afterwards starts a new one.
+	 */
+	static synchronized void shutdown()
+	{
+		if (checker != null) checker.cancel();
+		checker = null;
+	}
+
+	/**
+	 * Stop the health checks. The pools the router was given are not
+	 * closed.
+	 */
+	public void close()
+	{
+		if (check != null) check.cancel();
+	}
+
+	/**
+	 * Get the endpoints a lookup should try, in order: the healthy replicas
+	 * followed by the primary. The primary is always included, even when it
+	 * is marked down, as the last resort.
+	 *
+	 * @return the endpoints to try
+	 */
+	public Endpoint[] route()
+	{
+		List up = new ArrayList(replicas.length + 1);
+		int start = leastLatency ? 0 : (next.getAndIncrement() & Integer.MAX_VALUE);
+		for (int r = 0; r < replicas.length; r++) {
+			Endpoint e = replicas[(start + r) % replicas.length];
+			if (e.healthy) up.add(e);
+		}
+		if (leastLatency) {
+			Collections.sort(up, new Comparator() {
+				public int compare(Object a, Object b)
+				{
+					long la = ((Endpoint) a).latency, lb = ((Endpoint) b).latency;
+					return la < lb ? -1 : (la == lb ? 0 : 1);
+				}
+			});
+		}
+		up.add(primary);
+		return (Endpoint[]) up.toArray(new Endpoint[up.size()]);
+	}
+
+	/**
+	 * @return the primary endpoint
+	 */
+	public Endpoint getPrimary()
+	{
+		return primary;
+	}
+
+	/**
+	 * Record a lookup that an endpoint answered.
+	 *
+	 * @param e the endpoint
+	 * @param nanos how long the lookup took
+	 */
+	public void succeeded(Endpoint e, long nanos)
+	{
+		e.record(nanos);
+	}
+
+	/**
+	 * Record a lookup that couldn't reach an endpoint. The endpoint is
+	 * skipped until the health check finds it working again.
+	 *
+	 * @param e the endpoint
+	 */
+	public void failed(Endpoint e)
+	{
+		e.healthy = false;
+	}
+
+	/**
+	 * Tell whether an exception means the connection to a database failed,
+	 * rather than the statement run on it.
+	 *
+	 * @param e the exception
+	 * @return true for connection exceptions (SQLState class 08)
+	 */
+	public static boolean isConnectionFailure(SQLException e)
+	{
+		if (e instanceof SQLNonTransientConnectionException || e instanceof SQLTransientConnectionException)
+			return true;
+		String state = e.getSQLState();
+		return state != null && state.startsWith("08");
+	}
+
+	/**
+	 * Check every endpoint, marking each up or down.
+	 */
+	void checkHealth()
+	{
+		check(primary);
+		for (int r = 0; r < replicas.length; r++) {
+			check(replicas[r]);
+		}
+	}
+
+	private void check(Endpoint e)
+	{
+		Connection con = null;
+		try {
+			con = e.getConnection();
+			e.healthy = con.isValid(CHECK_TIMEOUT);
+		} catch (SQLException ex) {
+			e.healthy = false;
+		} finally {
+			try { if (con != null) con.close(); } catch (Exception ex) { }
+		}
+	}
+}
@@ -2,7 +2,10 @@
 package com.tagish.auth;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.security.MessageDigest;
 import java.security.Principal;
+import javax.security.auth.Subject;
 import javax.security.auth.callback.*;
 import javax.security.auth.login.*;
 
@@ -21,6 +24,204 @@ public abstract class SimpleLogin extends BasicLogin
 	// the authentication status
 	protected boolean			commitSucceeded = false;
 
+	// verification results shared by modules with the same configuration
+	protected CredentialCache	cache			= null;
+
+	// how passwords are checked, and where
+	protected PasswordVerifier	verifier		= null;
+	protected HashingPool		hashPool		= null;
+
+	// counters and timings published through JMX, or null
+	protected LoginStats		stats			= null;
+
+	// limits on login attempts per username and per client address, or null
+	protected RateLimiter		userLimiter		= null;
+	protected RateLimiter		addressLimiter	= null;
+
+	// validations running now, shared by modules with the same configuration
+	protected ConcurrentHashMap	inFlight		= null;
+
+	/**
+	 * Module initialization. In addition to 'debug' this reads the options
+	 * that control the credential cache:
+	 * <table border="0">
+	 * 	<tr><td>cache</td><td>Cache verification results (default false)</td></tr>
+	 * 	<tr><td>cacheSize</td><td>Maximum number of cached results (default 1000)</td></tr>
+	 * 	<tr><td>cacheTTL</td><td>Seconds a successful login is cached (default 300)</td></tr>
+	 * 	<tr><td>cacheNegativeTTL</td><td>Seconds a failed login is cached, 0 for never (default 30)</td></tr>
+	 * 	<tr><td>cacheRefreshAhead</td><td>Percentage of cacheTTL after which a hit
+	 * 	revalidates the entry in the background, 0 for never (default 0)</td></tr>
+	 * </table>
+	 * and the options that control password checking:
+	 * <table border="0">
+	 * 	<tr><td>passwordVerifier</td><td>plain, md5, pbkdf2 or the name of a
+	 * 	{@link PasswordVerifier} class (the default depends on the module)</td></tr>
+	 * 	<tr><td>pbkdf2Iterations</td><td>Iterations for new PBKDF2 hashes</td></tr>
+	 * 	<tr><td>hashPool</td><td>Check passwords on the JVM's bounded
+	 * 	{@link HashingPool} (default false)</td></tr>
+	 * 	<tr><td>hashQueueDepth</td><td>Checks that may wait for the pool before
+	 * 	logins are refused (default 1000)</td></tr>
+	 * </table>
+	 * the options that limit the rate of login attempts:
+	 * <table border="0">
+	 * 	<tr><td>rateLimit</td><td>Attempts per minute allowed for a username,
+	 * 	0 for no limit (default 0)</td></tr>
+	 * 	<tr><td>rateLimitBurst</td><td>Attempts allowed in quick succession
+	 * 	(default rateLimit)</td></tr>
+	 * 	<tr><td>addressRateLimit</td><td>Attempts per minute allowed from a
+	 * 	client address, 0 for no limit (default 0)</td></tr>
+	 * 	<tr><td>addressRateLimitBurst</td><td>Attempts allowed in quick
+	 * 	succession (default addressRateLimit)</td></tr>
+	 * 	<tr><td>rateLimitKeys</td><td>Usernames and addresses tracked by each
+	 * 	limit (default 100000)</td></tr>
+	 * </table>
+	 * <code>coalesce</code>, true to let concurrent logins with the same
+	 * username and password share one validation (default false),
+	 * and <code>statsName</code>, the name under which the module's
+	 * {@link LoginStats} are published (default none, not collected).
+	 */
+	public void initialize(Subject subject, CallbackHandler callbackHandler, Map sharedState, Map options)
+	{
+		super.initialize(subject, callbackHandler, sharedState, options);
+
+		Config c = (Config) config;
+		cache			= c.cache;
+		verifier		= c.verifier;
+		hashPool		= c.hashPool;
+		userLimiter		= c.userLimiter;
+		addressLimiter	= c.addressLimiter;
+		inFlight		= c.inFlight;
+		stats			= c.stats;
+	}
+
+	/**
+	 * The options understood by every SimpleLogin, and the shared objects
+	 * they call for.
+	 */
+	protected static class Config extends BasicLogin.Config
+	{
+		// identifies modules configured identically
+		public final String				id;
+		public final CredentialCache	cache;
+		public final PasswordVerifier	verifier;
+		public final HashingPool		hashPool;
+		public final RateLimiter		userLimiter;
+		public final RateLimiter		addressLimiter;
+		public final ConcurrentHashMap	inFlight;
+		public final LoginStats			stats;
+
+		protected Config(SimpleLogin m)
+		{
+			super(m);
+
+			// modules configured identically share a cache and rate limits
+			id = m.getClass().getName() + ':' + digest(m.options);
+			if (m.getOption("cache", false)) {
+				cache = CredentialCache.getCache(id, m.getOption("cacheSize", 1000),
+						m.getOption("cacheTTL", 300) * 1000L, m.getOption("cacheNegativeTTL", 30) * 1000L,
+						m.getOption("cacheRefreshAhead", 0) / 100.0);
+			} else {
+				cache = null;
+			}
+
+			verifier = m.createVerifier(m.getOption("passwordVerifier", m.defaultVerifier()).trim());
+			hashPool = m.getOption("hashPool", false) ? HashingPool.getPool(m.getOption("hashQueueDepth", 1000)) : null;
+
+			int rate = m.getOption("rateLimit", 0);
+			userLimiter = rate <= 0 ? null :
+					RateLimiter.getLimiter(id + "user", rate, m.getOption("rateLimitBurst", rate),
+										   m.getOption("rateLimitKeys", 100000));
+			rate = m.getOption("addressRateLimit", 0);
+			addressLimiter = rate <= 0 ? null :
+					RateLimiter.getLimiter(id + "address", rate, m.getOption("addressRateLimitBurst", rate),
+										   m.getOption("rateLimitKeys", 100000));
+
+			// the configuration is shared, so its modules see each other's validations
+			inFlight = m.getOption("coalesce", false) ? new ConcurrentHashMap() : null;
+
+			String statsName = m.getOption("statsName", null);
+			if (statsName != null) {
+				stats = LoginStats.getStats(statsName);
+				if (cache != null) stats.setCache(cache);
+			} else {
+				stats = null;
+			}
+		}
+	}
+
+	/**
+	 * Identify a set of options without spelling them out, so secrets among
+	 * them such as dbPassword aren't copied into the keys of the shared
+	 * caches and limiters.
+	 *
+	 * @return a SHA-256 digest of the options, in hex
+	 */
+	private static String digest(Map options)
+	{
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			return new String(Utils.hexDump(md.digest(new TreeMap(options).toString().getBytes("UTF-8"))));
+		} catch (Exception e) {
+			throw new Error("Can't identify the module's options (" + e + ")");
+		}
+	}
+
+	protected BasicLogin.Config compile()
+	{
+		return new Config(this);
+	}
+
+	/**
+	 * @return the name of the password verifier used if the
+	 * passwordVerifier option is not given
+	 */
+	protected String defaultVerifier()
+	{
+		return "plain";
+	}
+
+	/**
+	 * Make the password verifier named by the passwordVerifier option.
+	 *
+	 * @param name plain, md5, pbkdf2 or a class name
+	 * @return the verifier
+	 */
+	protected PasswordVerifier createVerifier(String name)
+	{
+		if (name.equalsIgnoreCase("plain"))
+			return new PlainPasswordVerifier();
+		else if (name.equalsIgnoreCase("md5"))
+			return new MD5PasswordVerifier();
+		else if (name.equalsIgnoreCase("pbkdf2"))
+			return new PBKDF2PasswordVerifier(getOption("pbkdf2Iterations", PBKDF2PasswordVerifier.DEFAULT_ITERATIONS));
+
+		try {
+			return (PasswordVerifier) Class.forName(name).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new Error("Can't create password verifier " + name + " (" + e + ")");
+		}
+	}
+
+	/**
+	 * Check a password with the configured verifier, on the hashing pool if
+	 * one is configured.
+	 *
+	 * @param password the password supplied by the user
+	 * @param stored the password as held by the credential store
+	 * @return true if they match
+	 * @throws LoginException if the password can't be checked
+	 */
+	protected boolean verifyPassword(char password[], String stored) throws LoginException
+	{
+		long start = stats == null ? 0 : System.nanoTime();
+		try {
+			if (hashPool != null) return hashPool.verify(verifier, password, stored);
+			return verifier.verify(password, stored);
+		} finally {
+			if (stats != null) stats.record(LoginStats.HASH, System.nanoTime() - start);
+		}
+	}
+
 	/**
 	 * Validate a user's credentials and either throw a LoginException (if
 	 * validation fails) or return a Vector of Principals if validation
@@ -33,6 +234,196 @@ public abstract class SimpleLogin extends BasicLogin
 	 */
 	protected abstract Vector validateUser(String username, char password[]) throws LoginException;
 
+	/**
+	 * @param e a failure thrown by validateUser()
+	 * @return true if it means the credential store doesn't know the user,
+	 * rather than that the password was wrong or the store unreachable
+	 */
+	protected boolean isUnknownUser(LoginException e)
+	{
+		return e instanceof UnknownUserException;
+	}
+
+	/**
+	 * Check a user's credentials, consulting the credential cache (if it is
+	 * enabled) before calling validateUser().
+	 *
+	 * @param username The username
+	 * @param password The password
+	 * @return a Vector of Principals that apply for this user.
+	 * @throws LoginException if the login fails.
+	 */
+	protected Vector authenticate(String username, char password[]) throws LoginException
+	{
+		if (cache == null) return validateShared(username, password);
+
+		final boolean loaded[] = new boolean[1];
+		try {
+			return cache.verify(username, password, new CredentialCache.Loader() {
+				public Vector load(String username, char password[]) throws LoginException
+				{
+					loaded[0] = true;
+					return validateShared(username, password);
+				}
+			});
+		} finally {
+			if (stats != null) stats.cacheLookup(!loaded[0]);
+		}
+	}
+
+	/**
+	 * Call validateUser(), unless the same username and password are already
+	 * being validated by another thread, in which case wait for and share
+	 * its result. Validations in flight are keyed on the username and a
+	 * salted digest of the password, so a different password never sees
+	 * another's result.
+	 *
+	 * @param username The username
+	 * @param password The password
+	 * @return a Vector of Principals that apply for this user.
+	 * @throws LoginException if the login fails.
+	 */
+	protected Vector validateShared(String username, char password[]) throws LoginException
+	{
+		if (inFlight == null) return validateUser(username, password);
+
+		CredentialKey key = CredentialKey.create(username, password);
+		CompletableFuture mine = new CompletableFuture();
+		CompletableFuture running = (CompletableFuture) inFlight.putIfAbsent(key, mine);
+		if (running != null) {
+			try {
+				return (Vector) running.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new LoginException("Interrupted waiting for " + username + " to be validated");
+			} catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				if (t instanceof LoginException) throw CredentialCache.copy((LoginException) t);
+				if (t instanceof RuntimeException) throw (RuntimeException) t;
+				if (t instanceof Error) throw (Error) t;
+				throw new LoginException(t.toString());
+			}
+		}
+
+		try {
+			Vector principals = validateUser(username, password);
+			mine.complete(principals);
+			return principals;
+		} catch (LoginException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} catch (Error e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, mine);
+		}
+	}
+
+	/**
+	 * Ask the CallbackHandler for the client's address with a
+	 * {@link ClientAddressCallback}.
+	 *
+	 * @return the address, or null if the handler doesn't supply one
+	 */
+	protected String getClientAddress()
+	{
+		ClientAddressCallback cb = new ClientAddressCallback();
+		try {
+			callbackHandler.handle(new Callback[] { cb });
+		} catch (UnsupportedCallbackException e) {
+			// the handler doesn't know
+		} catch (java.io.IOException e) {
+			// nor can it find out
+		}
+		return cb.getAddress();
+	}
+
+	/**
+	 * Validate many users' credentials at once, for batch jobs that would
+	 * otherwise need a LoginContext per user. Subclasses override this to
+	 * fetch the users from their backing store in bulk; this implementation
+	 * simply calls validateUser() for each of them.
+	 *
+	 * @param credentials a Map of username to password (a char array)
+	 * @return a Map of username to {@link ValidationResult}, in the
+	 * iteration order of credentials
+	 */
+	public Map validateUsers(Map credentials)
+	{
+		Map results = new LinkedHashMap();
+		for (Iterator i = credentials.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry) i.next();
+			String username = (String) e.getKey();
+			try {
+				results.put(username, new ValidationResult(username, validateUser(username, (char[]) e.getValue())));
+			} catch (LoginException le) {
+				results.put(username, new ValidationResult(username, le));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * The check of one user's credentials done by checkInParallel().
+	 */
+	protected interface Check
+	{
+		ValidationResult check(String username, char password[]);
+	}
+
+	/**
+	 * Apply a check to every user in credentials, spreading the work (which
+	 * is mostly password hashing) over the common fork-join pool.
+	 *
+	 * @param credentials a Map of username to password (a char array)
+	 * @param check the check to apply
+	 * @return a Map of username to {@link ValidationResult}, in the
+	 * iteration order of credentials
+	 */
+	protected static Map checkInParallel(Map credentials, final Check check)
+	{
+		final String names[] = (String[]) credentials.keySet().toArray(new String[credentials.size()]);
+		final char passwords[][] = new char[names.length][];
+		for (int n = 0; n < names.length; n++) {
+			passwords[n] = (char[]) credentials.get(names[n]);
+		}
+		final ValidationResult results[] = new ValidationResult[names.length];
+
+		class Slice extends RecursiveAction
+		{
+			private final int from, to;
+
+			Slice(int from, int to)
+			{
+				this.from = from;
+				this.to   = to;
+			}
+
+			protected void compute()
+			{
+				if (to - from <= 16) {
+					for (int n = from; n < to; n++) {
+						results[n] = check.check(names[n], passwords[n]);
+					}
+				} else {
+					int mid = (from + to) >>> 1;
+					invokeAll(new Slice(from, mid), new Slice(mid, to));
+				}
+			}
+		}
+		ForkJoinPool.commonPool().invoke(new Slice(0, names.length));
+
+		Map map = new LinkedHashMap();
+		for (int n = 0; n < names.length; n++) {
+			map.put(names[n], results[n]);
+		}
+		return map;
+	}
+
 	/**
 	 * Authenticate the user.
 	 *
@@ -46,35 +437,45 @@ public abstract class SimpleLogin extends BasicLogin
 		// username and password
 		String	username;
 		char	password[] = null;
+		long	start = stats == null ? 0 : System.nanoTime();
 
 		try {
-			// prompt for a username and password
-			if (callbackHandler == null)
-				throw new LoginException("Error: no CallbackHandler available to garner authentication information from the user");
+			try {
+				// prompt for a username and password
+				if (callbackHandler == null)
+					throw new LoginException("Error: no CallbackHandler available to garner authentication information from the user");
 
-			Callback[] callbacks = new Callback[2];
-			callbacks[0] = new NameCallback("Username: ");
-			callbacks[1] = new PasswordCallback("Password: ", false);
+				Callback[] callbacks = new Callback[2];
+				callbacks[0] = new NameCallback("Username: ");
+				callbacks[1] = new PasswordCallback("Password: ", false);
 
-			try {
-				callbackHandler.handle(callbacks);
-
-				// Get username...
-				username = ((NameCallback) callbacks[0]).getName();
-
-				// ...password...
-				password = ((PasswordCallback) callbacks[1]).getPassword();
-				((PasswordCallback)callbacks[1]).clearPassword();
-			} catch (java.io.IOException ioe) {
-				throw new LoginException(ioe.toString());
-			} catch (UnsupportedCallbackException uce) {
-				throw new LoginException("Error: " + uce.getCallback().toString() +
-						" not available to garner authentication information from the user");
+				try {
+					callbackHandler.handle(callbacks);
+
+					// Get username...
+					username = ((NameCallback) callbacks[0]).getName();
+
+					// ...password...
+					password = ((PasswordCallback) callbacks[1]).getPassword();
+					((PasswordCallback)callbacks[1]).clearPassword();
+				} catch (java.io.IOException ioe) {
+					throw new LoginException(ioe.toString());
+				} catch (UnsupportedCallbackException uce) {
+					throw new LoginException("Error: " + uce.getCallback().toString() +
+							" not available to garner authentication information from the user");
+				}
+			} catch (LoginException e) {
+				if (stats != null) stats.failure(e);
+				throw e;
+			} catch (RuntimeException e) {
+				if (stats != null) stats.failure(e);
+				throw e;
 			}
+			if (stats != null) stats.record(LoginStats.CALLBACK, System.nanoTime() - start);
 
 			// Attempt to logon using the supplied credentials
 			pending = null;
-			pending = validateUser(username, password);     // may throw
+			pending = check(username, password, addressLimiter == null ? null : getClientAddress());     // may throw
 		} finally {
 			Utils.smudge(password);
 		}
@@ -82,6 +483,69 @@ public abstract class SimpleLogin extends BasicLogin
 		return true;
 	}
 
+	/**
+	 * Check a user's credentials as login() does once it has them: subject
+	 * to the rate limits, through the cache and coalescing if they are
+	 * configured, and with the outcome recorded in the statistics. Used by
+	 * login() and by {@link ModuleAuthenticator}, and safe to call from any
+	 * number of threads at once.
+	 *
+	 * @param username The username
+	 * @param password The password
+	 * @param address the client's address, or null if not known
+	 * @return a Vector of Principals that apply for this user.
+	 * @throws LoginException if the login fails.
+	 */
+	protected Vector check(String username, char password[], String address) throws LoginException
+	{
+		long start = stats == null ? 0 : System.nanoTime();
+		if (addressLimiter == null) address = null;
+		try {
+			if (username == null) throw new FailedLoginException("No username given");
+
+			// Refuse at once if there have been too many recent attempts
+			if (address != null && !addressLimiter.tryAcquire(address))
+				throw new RateLimitedException("Too many login attempts from " + address);
+			if (userLimiter != null && !userLimiter.tryAcquire(username)) {
+				if (address != null) addressLimiter.release(address);
+				throw new RateLimitedException("Too many login attempts for " + username);
+			}
+
+			Vector p = authenticate(username, password);
+
+			// only failed attempts count against the limits
+			if (address != null) addressLimiter.release(address);
+			if (userLimiter != null) userLimiter.release(username);
+			if (stats != null) {
+				stats.record(LoginStats.VALIDATE, System.nanoTime() - start);
+				stats.success();
+			}
+			return p;
+		} catch (LoginException e) {
+			if (stats != null) stats.failure(e);
+			throw e;
+		} catch (RuntimeException e) {
+			if (stats != null) stats.failure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Copy a TypedPrincipal for one login. Principals may be shared between
+	 * logins through the cache or a user snapshot, and a TypedPrincipal can
+	 * be renamed, so each Subject gets its own; other Principals are
+	 * returned as they are.
+	 *
+	 * @param p the Principal
+	 * @return a copy of p if it is a TypedPrincipal, otherwise p
+	 */
+	static Principal copyPrincipal(Principal p)
+	{
+		if (p == null || p.getClass() != TypedPrincipal.class) return p;
+		TypedPrincipal t = (TypedPrincipal) p;
+		return new TypedPrincipal(t.getName(), t.getType());
+	}
+
 	/**
 	 * Place the specified <CODE>Principle</CODE> in the subject and also record it in our
 	 * principles <CODE>Vector</CODE> so we can remove them all later.
@@ -121,14 +585,16 @@ public abstract class SimpleLogin extends BasicLogin
 			return false;
 		}
 
+		long start = stats == null ? 0 : System.nanoTime();
 		principals = new Vector();
 		Set s = subject.getPrincipals();
 
 		for (int p = 0; p < pending.size(); p++) {
-			putPrincipal(s, (Principal) pending.get(p));
+			putPrincipal(s, copyPrincipal((Principal) pending.get(p)));
 		}
 
 		commitSucceeded = true;
+		if (stats != null) stats.record(LoginStats.COMMIT, System.nanoTime() - start);
 		return true;
 	}
 
@@ -174,6 +640,7 @@ public abstract class SimpleLogin extends BasicLogin
 	 */
 	public boolean logout() throws LoginException
 	{
+		long start = stats == null ? 0 : System.nanoTime();
 		pending         = null;
 		commitSucceeded	= false;
 		// Remove all the principals we added
@@ -183,6 +650,7 @@ public abstract class SimpleLogin extends BasicLogin
 			s.remove(principals.get(p));
 		}
 		principals = null;
+		if (stats != null) stats.record(LoginStats.LOGOUT, System.nanoTime() - start);
 
 		return true;
 	}
@@ -0,0 +1,331 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.*;
+
+/**
+ * A login module that consults several credential stores in turn, fastest
+ * first - typically memory, then a password file, then the database - and
+ * stops at the first that gives a definite answer. A store that doesn't
+ * know the user, can't be reached or takes too long is passed over for the
+ * next; a store that knows the user decides, whether the password is right
+ * or wrong. Answers from the slower stores can be kept for a while in
+ * memory so the next login for the same user stops sooner.
+ *
+ * <p>The stores, or tiers, are named in order by the <code>tiers</code>
+ * option, for example <code>tiers="memory,file,db"</code>. Each tier's
+ * options are given with its name and a dot in front, so
+ * <code>file.pwdFile</code> is the pwdFile option of the file tier. The
+ * options every tier understands are:
+ * <table border="0">
+ * 	<tr><td><i>tier</i>.module</td><td>memory, file ({@link FileLogin}), db
+ * 	({@link DBLogin}) or the name of a {@link SimpleLogin} class (default the
+ * 	tier's name)</td></tr>
+ * 	<tr><td><i>tier</i>.timeout</td><td>Milliseconds to wait for the tier
+ * 	before moving on, 0 to wait as long as it takes (default 0)</td></tr>
+ * 	<tr><td><i>tier</i>.promote</td><td>Copy the answers of slower tiers
+ * 	into this one (memory tiers only, default true)</td></tr>
+ * </table>
+ * A memory tier holds nothing until answers are promoted into it, and also
+ * reads <i>tier</i>.size (default 10000), <i>tier</i>.ttl (seconds a
+ * successful login is kept, default 300) and <i>tier</i>.negativeTTL
+ * (seconds a wrong password is kept, default 30). Other tiers take no
+ * promotions: a copy that never expired would go on answering for the user
+ * after their password changed in the slower store.
+ *
+ * @version 1.0.3
+ */
+public class TieredLogin extends SimpleLogin
+{
+	protected Tier	tiers[];
+
+	/**
+	 * One credential store, and how to treat it.
+	 */
+	protected abstract static class Tier
+	{
+		public final String		name;
+		public final long		timeout;
+		public final boolean	promote;
+
+		protected Tier(String name, long timeout, boolean promote)
+		{
+			this.name		= name;
+			this.timeout	= timeout;
+			this.promote	= promote;
+		}
+
+		/**
+		 * Check the credentials against this tier.
+		 *
+		 * @return the user's Principals
+		 * @throws LoginException if the login fails here; see isUnknownUser()
+		 */
+		protected abstract Vector validate(String username, char password[]) throws LoginException;
+
+		/**
+		 * @return true if the failure means this tier doesn't know the user
+		 */
+		protected abstract boolean isUnknownUser(LoginException e);
+
+		/**
+		 * Keep the answer of a slower tier. This implementation ignores it.
+		 *
+		 * @param principals the user's Principals, or null if the login failed
+		 * @param failure why the login failed, if it did
+		 */
+		protected void promote(String username, char password[], Vector principals, LoginException failure)
+				throws Exception
+		{
+		}
+
+		/**
+		 * Call validate(), giving up after the timeout if there is one. A
+		 * timed call has its own copy of the password, as it may outlive the
+		 * caller's; the copy is smudged when the call finishes, or when it is
+		 * cancelled before it starts.
+		 */
+		Vector call(final String username, char password[]) throws LoginException
+		{
+			if (timeout <= 0) return validate(username, password);
+
+			final char copy[] = password.clone();
+			final AtomicBoolean claimed = new AtomicBoolean();
+			FutureTask task = new FutureTask(new Callable() {
+				public Object call() throws LoginException
+				{
+					if (!claimed.compareAndSet(false, true)) return null;		// cancelled, and the copy smudged
+					try {
+						return validate(username, copy);
+					} finally {
+						Utils.smudge(copy);
+					}
+				}
+			}) {
+				protected void done()
+				{
+					if (claimed.compareAndSet(false, true)) Utils.smudge(copy);
+				}
+			};
+			try {
+				AsyncLogin.defaultExecutor().execute(task);
+			} catch (RejectedExecutionException e) {
+				Utils.smudge(copy);
+				throw new BackendUnavailableException("Too many logins waiting for " + name);
+			}
+			try {
+				return (Vector) task.get(timeout, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				task.cancel(true);
+				throw new BackendUnavailableException("No answer from " + name + " within " + timeout + "ms");
+			} catch (InterruptedException e) {
+				task.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new LoginException("Interrupted waiting for " + name);
+			} catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				if (t instanceof LoginException) throw (LoginException) t;
+				if (t instanceof RuntimeException) throw (RuntimeException) t;
+				if (t instanceof Error) throw (Error) t;
+				throw new LoginException(t.toString());
+			}
+		}
+
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * Remembers the answers promoted into it.
+	 */
+	protected static class MemoryTier extends Tier
+	{
+		protected final CredentialCache	cache;
+
+		protected MemoryTier(String name, long timeout, boolean promote, CredentialCache cache)
+		{
+			super(name, timeout, promote);
+			this.cache = cache;
+		}
+
+		protected Vector validate(String username, char password[]) throws LoginException
+		{
+			Vector p = cache.lookup(username, password);
+			if (p == null) throw new UnknownUserException("Not in " + name);
+			return p;
+		}
+
+		protected boolean isUnknownUser(LoginException e)
+		{
+			return e instanceof UnknownUserException;
+		}
+
+		protected void promote(String username, char password[], Vector principals, LoginException failure)
+		{
+			cache.store(username, password, principals, failure);
+		}
+	}
+
+	/**
+	 * Asks a login module, with its own options, cache and statistics.
+	 */
+	protected static class ModuleTier extends Tier
+	{
+		protected final SimpleLogin	module;
+
+		protected ModuleTier(String name, long timeout, boolean promote, SimpleLogin module)
+		{
+			super(name, timeout, promote);
+			this.module = module;
+		}
+
+		protected Vector validate(String username, char password[]) throws LoginException
+		{
+			return module.authenticate(username, password);
+		}
+
+		protected boolean isUnknownUser(LoginException e)
+		{
+			return module.isUnknownUser(e);
+		}
+	}
+
+	/**
+	 * Try each tier in turn until one knows the user.
+	 *
+	 * @throws LoginException the answer of the first tier to know the user;
+	 * if none does, the last error from a tier that couldn't be asked, or
+	 * an {@link UnknownUserException}
+	 */
+	protected Vector validateUser(String username, char password[]) throws LoginException
+	{
+		LoginException error = null;
+		for (int t = 0; t < tiers.length; t++) {
+			Tier tier = tiers[t];
+			try {
+				Vector p = tier.call(username, password);
+				promote(t, username, password, p, null);
+				return p;
+			} catch (LoginException e) {
+				if (tier.isUnknownUser(e)) continue;
+				if (e instanceof FailedLoginException || e instanceof AccountException) {
+					promote(t, username, password, null, e);
+					throw e;
+				}
+				if (debug) System.err.println("TieredLogin: " + tier + " (" + e.getMessage() + ")");
+				error = e;
+			}
+		}
+		if (error != null) throw error;
+		throw new UnknownUserException();
+	}
+
+	/**
+	 * Pass the answer of one tier to the faster tiers that take promotions.
+	 */
+	private void promote(int from, String username, char password[], Vector principals, LoginException failure)
+	{
+		for (int t = 0; t < from; t++) {
+			if (!tiers[t].promote) continue;
+			try {
+				tiers[t].promote(username, password, principals, failure);
+			} catch (Exception e) {
+				if (debug) System.err.println("TieredLogin: can't promote " + username + " to " + tiers[t] + " (" + e + ")");
+			}
+		}
+	}
+
+	public void initialize(Subject subject, CallbackHandler callbackHandler, Map sharedState, Map options)
+	{
+		super.initialize(subject, callbackHandler, sharedState, options);
+		tiers = ((Config) config).tiers;
+	}
+
+	/**
+	 * The tiers, each with its module initialized and its backend running.
+	 */
+	protected static class Config extends SimpleLogin.Config
+	{
+		public final Tier	tiers[];
+
+		protected Config(TieredLogin m)
+		{
+			super(m);
+
+			String names = m.getOption("tiers", null);
+			if (names == null)
+				throw new Error("The credential stores must be listed (tiers=?)");
+
+			List l = new ArrayList();
+			for (StringTokenizer st = new StringTokenizer(names, ", "); st.hasMoreTokens(); ) {
+				l.add(createTier(m, id, st.nextToken()));
+			}
+			if (l.isEmpty())
+				throw new Error("The credential stores must be listed (tiers=?)");
+			tiers = (Tier[]) l.toArray(new Tier[l.size()]);
+		}
+	}
+
+	/**
+	 * Make a tier from the options of a module that names it.
+	 *
+	 * @param m the module, whose options include the tier's
+	 * @param id identifies the module's configuration
+	 * @param name the tier's name
+	 * @return the tier, with its module initialized
+	 * @throws Error if the tier's module can't be created or its options
+	 * are invalid
+	 */
+	protected static Tier createTier(SimpleLogin m, String id, String name)
+	{
+		// the tier's own options, without its name
+		String prefix = name + ".";
+		Map options = new HashMap();
+		for (Iterator i = m.options.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry) i.next();
+			String key = (String) e.getKey();
+			if (key.startsWith(prefix)) options.put(key.substring(prefix.length()), e.getValue());
+		}
+		if (m.getOption("debug", false) && !options.containsKey("debug")) options.put("debug", "true");
+
+		String module = (String) options.get("module");
+		if (module == null) module = name;
+		module = module.trim();
+		long timeout = m.getOption(prefix + "timeout", 0);
+
+		if (module.equalsIgnoreCase("memory")) {
+			CredentialCache cache = CredentialCache.getCache(id + prefix, m.getOption(prefix + "size", 10000),
+					m.getOption(prefix + "ttl", 300) * 1000L, m.getOption(prefix + "negativeTTL", 30) * 1000L, 0);
+			return new MemoryTier(name, timeout, m.getOption(prefix + "promote", true), cache);
+		}
+
+		SimpleLogin s;
+		if (module.equalsIgnoreCase("file"))
+			s = new FileLogin();
+		else if (module.equalsIgnoreCase("db"))
+			s = new DBLogin();
+		else {
+			try {
+				s = (SimpleLogin) Class.forName(module).getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				throw new Error("Can't create " + module + " for tier " + name + " (" + e + ")");
+			}
+		}
+		if (m.getOption(prefix + "promote", false))
+			throw new Error("Only memory tiers take promotions (" + prefix + "promote=true)");
+		s.initialize(new Subject(), null, new HashMap(), options);
+		return new ModuleTier(name, timeout, false, s);
+	}
+
+	protected BasicLogin.Config compile()
+	{
+		return new Config(this);
+	}
+}
@@ -0,0 +1,30 @@
+// $Id$
+package com.tagish.auth;
+
+import javax.security.auth.login.FailedLoginException;
+
+/**
+ * Signals that a credential store has no such user, as distinct from a bad
+ * password. It is still a FailedLoginException, so callers that don't care
+ * about the difference see no change; {@link TieredLogin} uses it to know
+ * when to ask the next store.
+ *
+ * @version 1.0.3
+ */
+public class UnknownUserException extends FailedLoginException
+{
+	static final private long	serialVersionUID = 5529018330461876L;
+
+	public UnknownUserException()
+	{
+		super("Unknown user");
+	}
+
+	/**
+	 * @param msg the detail message
+	 */
+	public UnknownUserException(String msg)
+	{
+		super(msg);
+	}
+}
@@ -0,0 +1,408 @@
+// $Id$
+package com.tagish.auth;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory copy of DBLogin's user table (passwords and roles) that
+ * logins are answered from instead of querying the database.
+ *
+ * <p>The whole table is read once when the snapshot is created. After that
+ * it is refreshed in the background. If a last-modified column is
+ * configured only the users whose rows changed since the previous refresh
+ * are read again; otherwise the table is re-read in full and swapped in.
+ * Lookups are plain reads of a concurrent hash map and never wait for a
+ * refresh.
+ *
+ * <p>A change to a user's roles is only noticed incrementally if it also
+ * updates the user's last-modified column, and a user deleted from the
+ * table leaves no row to notice. Both are picked up by a change log query,
+ * if one is configured, returning the users named in a table of deletions
+ * or changes kept by the application or a trigger; otherwise by the
+ * periodic full reload. Until then a deleted user can still log in.
+ *
+ * @version 1.0.3
+ */
+public class UserSnapshot
+{
+	/**
+	 * Where the snapshot gets its connections.
+	 */
+	public interface Source
+	{
+		Connection getConnection() throws Exception;
+	}
+
+	/**
+	 * A user as held in the snapshot.
+	 */
+	public static class Entry
+	{
+		final String			password;
+		final TypedPrincipal	groups[];
+
+		Entry(String password, TypedPrincipal groups[])
+		{
+			this.password	= password;
+			this.groups		= groups;
+		}
+
+		public String getPassword()
+		{
+			return password;
+		}
+
+		/**
+		 * @return the user's GROUP principals; the array must not be modified
+		 */
+		public TypedPrincipal[] getGroups()
+		{
+			return groups;
+		}
+	}
+
+	private final static TypedPrincipal	NO_GROUPS[]	= new TypedPrincipal[0];
+	private final static Map			snapshots	= new HashMap();
+	// refreshes every snapshot; made when first needed
+	private static Timer				timer		= null;
+
+	private final Source		source;
+	private final String		fullQuery;
+	private final String		watermarkQuery;
+	private final String		changedQuery;
+	private final String		changeLogQuery;
+	private final String		usersQuery;
+	private final int			chunkSize;
+	private final boolean		withRoles;
+	private final long			fullReload;
+	private final boolean		debug;
+
+	private volatile Map		users		= null;
+	private Object				watermark	= null;
+	private long				lastFull	= 0;
+	private volatile long		lastRefresh	= 0;
+	private volatile long		refreshes	= 0;
+	private volatile String		lastError	= null;
+	private volatile TimerTask	refresher	= null;
+
+	/**
+	 * Get the snapshot shared by every module with the same queries,
+	 * creating and loading it if necessary.
+	 *
+	 * @param key identifies the database and queries
+	 * @param source supplies connections to the database
+	 * @param fullQuery reads every user: username, password and (if
+	 * withRoles) one role per row
+	 * @param watermarkQuery returns the highest last-modified value, or null
+	 * to always reload in full
+	 * @param changedQuery takes a last-modified value and returns the
+	 * username and last-modified value of every row changed since
+	 * @param changeLogQuery like changedQuery, but for users deleted or
+	 * otherwise changed without their row's last-modified value; null if
+	 * there is none
+	 * @param usersQuery reads the users named by its chunkSize parameters,
+	 * in the same form as fullQuery
+	 * @param chunkSize number of parameters usersQuery takes
+	 * @param withRoles true if the queries return a role column
+	 * @param refresh milliseconds between refreshes
+	 * @param fullReload milliseconds between full reloads when refreshing
+	 * incrementally, 0 for never
+	 * @param debug true to report refresh failures on System.err
+	 * @return the snapshot
+	 */
+	public static UserSnapshot getSnapshot(String key, Source source, String fullQuery, String watermarkQuery,
+										   String changedQuery, String changeLogQuery, String usersQuery, int chunkSize,
+										   boolean withRoles, long refresh, long fullReload, boolean debug)
+	{
+		UserSnapshot snapshot;
+		synchronized (snapshots) {
+			snapshot = (UserSnapshot) snapshots.get(key);
+			if (snapshot != null) return snapshot;
+			snapshot = new UserSnapshot(source, fullQuery, watermarkQuery, changedQuery, changeLogQuery, usersQuery,
+										chunkSize, withRoles, fullReload, debug);
+			snapshots.put(key, snapshot);
+		}
+
+		snapshot.refresh();
+		final UserSnapshot s = snapshot;
+		if (refresh > 0) {
+			TimerTask t = new TimerTask() {
+				public void run()
+				{
+					s.refresh();
+				}
+			};
+			s.refresher = t;
+			schedule(t, refresh);
+		}
+		return snapshot;
+	}
+
+	private static synchronized void schedule(TimerTask task, long period)
+	{
+		if (timer == null) timer = new Timer("UserSnapshot refresh", true);
+		timer.schedule(task, period, period);
+	}
+
+	/**
+	 * Stop the refresh thread and forget every snapshot, for
+	 * {@link BasicLogin#shutdown}.
+	 */
+	static void shutdown()
+	{
+		synchronized (UserSnapshot.class) {
+			if (timer != null) timer.cancel();
+			timer = null;
+		}
+		synchronized (snapshots) {
+			snapshots.clear();
+		}
+	}
+
+	/**
+	 * Stop refreshing the snapshot and forget it, so the next
+	 * {@link #getSnapshot} loads a new one.
+	 */
+	public void close()
+	{
+		synchronized (snapshots) {
+			snapshots.values().remove(this);
+		}
+		TimerTask t = refresher;
+		if (t != null) t.cancel();
+	}
+
+	protected UserSnapshot(Source source, String fullQuery, String watermarkQuery, String changedQuery,
+						   String changeLogQuery, String usersQuery, int chunkSize, boolean withRoles,
+						   long fullReload, boolean debug)
+	{
+		this.source			= source;
+		this.fullQuery		= fullQuery;
+		this.watermarkQuery	= watermarkQuery;
+		this.changedQuery	= changedQuery;
+		this.changeLogQuery	= changeLogQuery;
+		this.usersQuery		= usersQuery;
+		this.chunkSize		= chunkSize;
+		this.withRoles		= withRoles;
+		this.fullReload		= fullReload;
+		this.debug			= debug;
+	}
+
+	/**
+	 * @return true once the table has been read; until then logins must
+	 * go to the database
+	 */
+	public boolean isLoaded()
+	{
+		return users != null;
+	}
+
+	/**
+	 * Look a user up.
+	 *
+	 * @param username The username
+	 * @return the user, or null if the user is unknown
+	 */
+	public Entry get(String username)
+	{
+		Map u = users;
+		return u == null ? null : (Entry) u.get(username);
+	}
+
+	/**
+	 * @return the number of users in the snapshot
+	 */
+	public int size()
+	{
+		Map u = users;
+		return u == null ? 0 : u.size();
+	}
+
+	/**
+	 * @return when the last successful refresh finished
+	 */
+	public long getLastRefresh()
+	{
+		return lastRefresh;
+	}
+
+	/**
+	 * @return the number of successful refreshes
+	 */
+	public long getRefreshCount()
+	{
+		return refreshes;
+	}
+
+	/**
+	 * @return the message of the last refresh that failed, or null
+	 */
+	public String getLastError()
+	{
+		return lastError;
+	}
+
+	/**
+	 * Bring the snapshot up to date. Failures leave the current contents in
+	 * place to be retried at the next refresh.
+	 */
+	public synchronized void refresh()
+	{
+		Connection con = null;
+		try {
+			con = source.getConnection();
+			long now = System.currentTimeMillis();
+			if (users == null || watermarkQuery == null || (fullReload > 0 && now - lastFull >= fullReload)) {
+				loadAll(con);
+				lastFull = now;
+			} else {
+				loadChanges(con);
+			}
+			lastRefresh = System.currentTimeMillis();
+			refreshes++;
+			lastError = null;
+		} catch (Exception e) {
+			lastError = e.toString();
+			if (debug) System.err.println("UserSnapshot: refresh failed (" + e.getMessage() + ")");
+		} finally {
+			try { if (con != null) con.close(); } catch (Exception e) { }
+		}
+	}
+
+	private void loadAll(Connection con) throws SQLException
+	{
+		Object mark = null;
+		if (watermarkQuery != null) {
+			// taken before the read so changes made during it are caught next time
+			PreparedStatement ps = con.prepareStatement(watermarkQuery);
+			try {
+				ResultSet rs = ps.executeQuery();
+				if (rs.next()) mark = rs.getObject(1);
+				rs.close();
+			} finally {
+				ps.close();
+			}
+		}
+
+		Map all = new ConcurrentHashMap();
+		PreparedStatement ps = con.prepareStatement(fullQuery);
+		try {
+			read(ps, all, new HashMap());
+		} finally {
+			ps.close();
+		}
+		users = all;
+		watermark = mark;
+	}
+
+	private void loadChanges(Connection con) throws SQLException
+	{
+		if (watermark == null) {
+			// the table was empty: everything in it is new
+			loadAll(con);
+			return;
+		}
+
+		Set changed = new HashSet();
+		Object mark = changed(con, changedQuery, watermark, changed);
+		if (changeLogQuery != null) {
+			Object m = changed(con, changeLogQuery, watermark, changed);
+			if (m instanceof Comparable && ((Comparable) m).compareTo(mark) > 0) mark = m;
+		}
+		if (changed.isEmpty()) return;
+
+		// read the changed users again; any that are missing have gone
+		Map fresh = new HashMap();
+		Map groups = new HashMap();
+		String names[] = (String[]) changed.toArray(new String[changed.size()]);
+		for (int from = 0; from < names.length; from += chunkSize) {
+			int n = Math.min(chunkSize, names.length - from);
+			PreparedStatement ps = con.prepareStatement(usersQuery);
+			try {
+				for (int p = 0; p < chunkSize; p++) {
+					ps.setString(p + 1, names[from + Math.min(p, n - 1)]);
+				}
+				read(ps, fresh, groups);
+			} finally {
+				ps.close();
+			}
+		}
+
+		Map live = users;
+		for (int n = 0; n < names.length; n++) {
+			Entry e = (Entry) fresh.get(names[n]);
+			if (e == null)
+				live.remove(names[n]);
+			else
+				live.put(names[n], e);
+		}
+		watermark = mark;
+	}
+
+	/**
+	 * Collect the usernames a query of changes since a last-modified value
+	 * returns.
+	 *
+	 * @return the highest last-modified value returned, or since if there
+	 * is none higher
+	 */
+	private Object changed(Connection con, String query, Object since, Set into) throws SQLException
+	{
+		Object mark = since;
+		PreparedStatement ps = con.prepareStatement(query);
+		try {
+			ps.setObject(1, since);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				into.add(rs.getString(1));
+				Object m = rs.getObject(2);
+				if (m instanceof Comparable && ((Comparable) m).compareTo(mark) > 0) mark = m;
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		return mark;
+	}
+
+	/**
+	 * Read rows of username, password and (optionally) role into a map of
+	 * Entry objects. Group principals are shared between users.
+	 */
+	private void read(PreparedStatement ps, Map into, Map groups) throws SQLException
+	{
+		Map roles = new HashMap();
+		ResultSet rs = ps.executeQuery();
+		try {
+			while (rs.next()) {
+				String user = rs.getString(1);
+				if (user == null) continue;
+				if (!into.containsKey(user)) into.put(user, new Entry(rs.getString(2), NO_GROUPS));
+				if (withRoles) {
+					String role = rs.getString(3);
+					if (role != null) {
+						TypedPrincipal g = (TypedPrincipal) groups.get(role);
+						if (g == null) {
+							g = new TypedPrincipal(role, TypedPrincipal.GROUP);
+							groups.put(role, g);
+						}
+						List l = (List) roles.get(user);
+						if (l == null) roles.put(user, l = new ArrayList(2));
+						l.add(g);
+					}
+				}
+			}
+		} finally {
+			rs.close();
+		}
+
+		for (Iterator i = roles.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry me = (Map.Entry) i.next();
+			List l = (List) me.getValue();
+			Entry e = (Entry) into.get(me.getKey());
+			into.put(me.getKey(), new Entry(e.password, (TypedPrincipal[]) l.toArray(new TypedPrincipal[l.size()])));
+		}
+	}
+}
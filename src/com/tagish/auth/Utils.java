@@ -2,6 +2,7 @@
 package com.tagish.auth;
 
 import java.security.*;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * Utility methods for com.tagish.auth.*. All the methods in here are static
@@ -13,7 +14,34 @@ import java.security.*;
 public class Utils
 {
 	private final static String     ALGORITHM   = "MD5";
-	private static MessageDigest    md = null;
+	private final static ArrayBlockingQueue scratch = new ArrayBlockingQueue(Runtime.getRuntime().availableProcessors() * 2);
+	private final static char       HEX[]       = "0123456789abcdef".toCharArray();
+	private final static byte       UNHEX[]     = new byte[128];
+
+	static {
+		for (int c = 0; c < UNHEX.length; c++) UNHEX[c] = -1;
+		for (int c = 0; c < HEX.length; c++) UNHEX[HEX[c]] = (byte) c;
+	}
+
+	/**
+	 * A digest and the buffers it hashes passwords with, pooled so that
+	 * hashing allocates nothing once the pool has warmed up. The pool is
+	 * held by this class rather than by each thread, so a container's
+	 * threads don't keep it, and the class loader, alive after an
+	 * application is undeployed.
+	 */
+	private static class Scratch
+	{
+		final MessageDigest md;
+		byte                in[]    = new byte[64];
+		final byte          out[];
+
+		Scratch() throws NoSuchAlgorithmException
+		{
+			md  = MessageDigest.getInstance(ALGORITHM);
+			out = new byte[md.getDigestLength()];
+		}
+	}
 
 	/**
 	 * Can't make these: all the methods are static
@@ -31,18 +59,12 @@ public class Utils
 	 * @return a char array containing a printable version of the source
 	 * data
 	 */
-	private static char[] hexDump(byte src[])
+	static char[] hexDump(byte src[])
 	{
 		char buf[] = new char[src.length * 2];
 		for (int b = 0; b < src.length; b++) {
-			String byt = Integer.toHexString((int) src[b] & 0xFF);
-			if (byt.length() < 2) {
-				buf[b * 2 + 0] = '0';
-				buf[b * 2 + 1] = byt.charAt(0);
-			} else {
-				buf[b * 2 + 0] = byt.charAt(0);
-				buf[b * 2 + 1] = byt.charAt(1);
-			}
+			buf[b * 2 + 0] = HEX[(src[b] >> 4) & 0xF];
+			buf[b * 2 + 1] = HEX[src[b] & 0xF];
 		}
 		return buf;
 	}
@@ -88,14 +110,96 @@ public class Utils
 	 */
 	public static char[] cryptPassword(char pwd[]) throws Exception
 	{
-		if (null == md) { md = MessageDigest.getInstance(ALGORITHM); }
-		md.reset();
-		byte pwdb[] = new byte[pwd.length];
+		Scratch s = digest(pwd);
+		try {
+			return hexDump(s.out);
+		} finally {
+			release(s);
+		}
+	}
+
+	/**
+	 * Check a password against a hash made by {@link #cryptPassword}. The
+	 * stored hash is decoded as it is compared with the raw digest, in time
+	 * that doesn't depend on where they differ, and nothing is allocated.
+	 *
+	 * @param pwd the password to check
+	 * @param stored the stored hash, 32 lower case hex digits
+	 * @return true if the password hashes to the stored value
+	 */
+	public static boolean verifyPassword(char pwd[], String stored) throws NoSuchAlgorithmException
+	{
+		Scratch s = digest(pwd);
+		try {
+			byte out[] = s.out;
+			if (stored == null || stored.length() != out.length * 2) return false;
+
+			int diff = 0;
+			for (int b = 0; b < out.length; b++) {
+				int hi = unhex(stored.charAt(b * 2));
+				int lo = unhex(stored.charAt(b * 2 + 1));
+				// a character that isn't a hex digit decodes as -1 and always differs
+				diff |= (hi | lo) & 0x100;
+				diff |= ((hi << 4) | (lo & 0xF)) ^ (out[b] & 0xFF);
+			}
+			return diff == 0;
+		} finally {
+			release(s);
+		}
+	}
+
+	private static int unhex(char c)
+	{
+		return c < UNHEX.length ? UNHEX[c] : -1;
+	}
+
+	/**
+	 * Hash a password into scratch buffers taken from the pool. The hash is
+	 * computed on the low 8 bits of each character. The caller hands the
+	 * buffers back with {@link #release} once it has used the digest.
+	 *
+	 * @return the buffers, with the digest in out
+	 */
+	private static Scratch digest(char pwd[]) throws NoSuchAlgorithmException
+	{
+		// MessageDigest isn't thread safe so each caller has its own until it is done
+		Scratch s = (Scratch) scratch.poll();
+		if (null == s) s = new Scratch();
+		if (s.in.length < pwd.length) s.in = new byte[Math.max(pwd.length, s.in.length * 2)];
+
+		byte in[] = s.in;
 		for (int b = 0; b < pwd.length; b++) {
-			pwdb[b] = (byte) pwd[b];
+			in[b] = (byte) pwd[b];
+		}
+		s.md.reset();
+		s.md.update(in, 0, pwd.length);
+		for (int b = 0; b < pwd.length; b++) {
+			in[b] = 0;
+		}
+		try {
+			s.md.digest(s.out, 0, s.out.length);
+		} catch (DigestException e) {
+			// can't happen: out is exactly the digest length
+			throw new NoSuchAlgorithmException(e.getMessage());
 		}
-		char crypt[] = hexDump(md.digest(pwdb));
-		smudge(pwdb);
-		return crypt;
+		return s;
+	}
+
+	/**
+	 * Smudge the digest left in a set of scratch buffers and return them to
+	 * the pool, or drop them if it is full.
+	 */
+	private static void release(Scratch s)
+	{
+		smudge(s.out);
+		scratch.offer(s);
+	}
+
+	/**
+	 * Empty the pool of scratch buffers, for {@link BasicLogin#shutdown}.
+	 */
+	static void shutdown()
+	{
+		scratch.clear();
 	}
 }
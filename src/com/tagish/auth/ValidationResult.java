@@ -0,0 +1,79 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.Vector;
+import javax.security.auth.login.LoginException;
+
+/**
+ * The outcome of checking one user's credentials in a bulk validation:
+ * either the Principals that apply to the user or the LoginException that
+ * validateUser() would have thrown.
+ *
+ * @version 1.0.3
+ */
+public class ValidationResult
+{
+	private final String			username;
+	private final Vector			principals;
+	private final LoginException	failure;
+
+	/**
+	 * A successful validation.
+	 *
+	 * @param username The username
+	 * @param principals the Principals that apply for this user
+	 */
+	public ValidationResult(String username, Vector principals)
+	{
+		this.username	= username;
+		this.principals	= principals;
+		this.failure	= null;
+	}
+
+	/**
+	 * A failed validation.
+	 *
+	 * @param username The username
+	 * @param failure why the validation failed
+	 */
+	public ValidationResult(String username, LoginException failure)
+	{
+		this.username	= username;
+		this.principals	= null;
+		this.failure	= failure;
+	}
+
+	public String getUsername()
+	{
+		return username;
+	}
+
+	/**
+	 * @return true if the credentials were valid
+	 */
+	public boolean isValid()
+	{
+		return failure == null;
+	}
+
+	/**
+	 * @return the Principals for the user, or null if validation failed
+	 */
+	public Vector getPrincipals()
+	{
+		return principals;
+	}
+
+	/**
+	 * @return the reason validation failed, or null if it succeeded
+	 */
+	public LoginException getFailure()
+	{
+		return failure;
+	}
+
+	public String toString()
+	{
+		return username + ": " + (failure == null ? principals.toString() : failure.toString());
+	}
+}
@@ -62,14 +62,67 @@ public class NTSystemLogin extends BasicLogin
 	{
 		super.initialize(subject, callbackHandler, sharedState, options);
 
-		// Construct the native proxy
+		// Construct the native proxy; the DLL was checked when the options were compiled
 		ntSystem = new NTSystem();
-		ntSystem.checkVersion();
 
 		// initialize any configured options
-		returnNames		= getOption("returnNames",		returnNames);
-		returnSIDs		= getOption("returnSIDs",		returnSIDs);
-		defaultDomain	= getOption("defaultDomain",	defaultDomain);
+		Config c = (Config) config;
+		returnNames		= c.returnNames;
+		returnSIDs		= c.returnSIDs;
+		defaultDomain	= c.defaultDomain;
+	}
+
+	/**
+	 * The options that choose the principals returned and the domain.
+	 */
+	protected static class Config extends BasicLogin.Config
+	{
+		public final boolean	returnNames;
+		public final boolean	returnSIDs;
+		public final String		defaultDomain;
+
+		protected Config(NTSystemLogin m)
+		{
+			super(m);
+			returnNames		= m.getOption("returnNames",	true);
+			returnSIDs		= m.getOption("returnSIDs",		true);
+			defaultDomain	= m.getOption("defaultDomain",	null);
+			acquire(NTSystem.class.getName(), null, Library.FACTORY);
+		}
+	}
+
+	/**
+	 * The native library, loaded and its version checked once. Each login
+	 * still needs its own NTSystem, which holds that user's logon.
+	 */
+	protected static class Library extends Backend
+	{
+		final static Backend.Factory	FACTORY	= new Backend.Factory() {
+			public Backend create(String key, Object settings)
+			{
+				return new Library(key);
+			}
+		};
+
+		protected Library(String key)
+		{
+			super(key, null);
+		}
+
+		protected void start()
+		{
+			new NTSystem().checkVersion();
+		}
+
+		protected void stop()
+		{
+			// a native library can't be unloaded while its class is
+		}
+	}
+
+	protected BasicLogin.Config compile()
+	{
+		return new Config(this);
 	}
 
 	/**
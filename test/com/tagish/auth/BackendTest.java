@@ -0,0 +1,182 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.ObjectName;
+import javax.security.auth.Subject;
+
+/**
+ * Tests the backend registry in {@link BasicLogin}: backends shared and
+ * counted by key, reconfigured when the settings change, stopped with their
+ * last user, and everything - backends, background threads and JMX
+ * statistics - stopped by {@link BasicLogin#shutdown}.
+ *
+ * @version 1.0.3
+ */
+public class BackendTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		refcount();
+		reconfigure();
+		failedStart();
+		shutdown();
+		Check.done("BackendTest");
+	}
+
+	/**
+	 * Counts what the registry asks of it.
+	 */
+	static class Counted extends Backend
+	{
+		int		starts	= 0;
+		int		stops	= 0;
+		int		changes	= 0;
+
+		Counted(String key, Object settings)
+		{
+			super(key, settings);
+		}
+
+		protected void start()
+		{
+			if ("fail".equals(getSettings())) throw new IllegalStateException("can't start");
+			starts++;
+		}
+
+		protected void stop()
+		{
+			stops++;
+		}
+
+		protected void configChanged(Object settings)
+		{
+			changes++;
+			setSettings(settings);
+		}
+	}
+
+	final static Backend.Factory		FACTORY	= new Backend.Factory() {
+		public Backend create(String key, Object settings)
+		{
+			return new Counted(key, settings);
+		}
+	};
+
+	private static void refcount()
+	{
+		Counted a = (Counted) BasicLogin.acquireBackend("refcount", "s", FACTORY);
+		Counted b = (Counted) BasicLogin.acquireBackend("refcount", "s", FACTORY);
+		Check.that(a == b, "one backend per key");
+		Check.equal(Integer.valueOf(1), Integer.valueOf(a.starts), "started once");
+
+		BasicLogin.releaseBackend(a);
+		Check.equal(Integer.valueOf(0), Integer.valueOf(a.stops), "not stopped while still in use");
+		BasicLogin.releaseBackend(a);
+		Check.equal(Integer.valueOf(1), Integer.valueOf(a.stops), "stopped with its last user");
+
+		Counted c = (Counted) BasicLogin.acquireBackend("refcount", "s", FACTORY);
+		Check.that(c != a, "a new backend once the old one has stopped");
+		BasicLogin.releaseBackend(c);
+	}
+
+	private static void reconfigure()
+	{
+		Counted a = (Counted) BasicLogin.acquireBackend("reconfigure", "one", FACTORY);
+		BasicLogin.acquireBackend("reconfigure", "one", FACTORY);
+		Check.equal(Integer.valueOf(0), Integer.valueOf(a.changes), "same settings leave it alone");
+		BasicLogin.acquireBackend("reconfigure", "two", FACTORY);
+		Check.equal(Integer.valueOf(1), Integer.valueOf(a.changes), "new settings passed to configChanged");
+		Check.equal("two", a.getSettings(), "new settings adopted");
+		for (int r = 0; r < 3; r++) BasicLogin.releaseBackend(a);
+	}
+
+	private static void failedStart()
+	{
+		try {
+			BasicLogin.acquireBackend("failed", "fail", FACTORY);
+			Check.that(false, "backend that can't start: no Error");
+		} catch (Error e) {
+			Check.equal("Can't start failed (can't start)", e.getMessage(), "backend that can't start");
+		}
+		Counted a = (Counted) BasicLogin.acquireBackend("failed", "ok", FACTORY);
+		Check.equal(Integer.valueOf(1), Integer.valueOf(a.starts), "started once it can");
+		BasicLogin.releaseBackend(a);
+	}
+
+	private static void shutdown() throws Exception
+	{
+		MemoryDatabase.get("shutdown").put("alice", "secret", new String[0]);
+		MemoryDatabase.get("shutdown-1").put("alice", "secret", new String[0]);
+		Map db = new HashMap();
+		db.put("dbDriver", MemoryDatabase.class.getName());
+		db.put("dbURL", MemoryDatabase.PREFIX + "shutdown");
+		db.put("dbReplicaURLs", MemoryDatabase.PREFIX + "shutdown-1");
+		db.put("pool", "true");
+		db.put("cache", "true");
+		db.put("hashPool", "true");
+		db.put("statsName", "BackendTest");
+		ModuleAuthenticator dbAuth = new ModuleAuthenticator(new DBLogin(), db);
+		dbAuth.authenticate("alice", "secret".toCharArray());
+
+		File f = File.createTempFile("passwd", ".test");
+		try {
+			Writer w = new FileWriter(f);
+			w.write("alice:secret\n");
+			w.close();
+			Map file = new HashMap();
+			file.put("pwdFile", f.getPath());
+			file.put("passwordVerifier", "plain");
+			file.put("watch", "false");
+			new ModuleAuthenticator(new FileLogin(), file).authenticate("alice", "secret".toCharArray());
+
+			DBLogin m = new DBLogin();
+			m.initialize(new Subject(), null, new HashMap(), db);
+			Counted held = (Counted) BasicLogin.acquireBackend("shutdown", "s", FACTORY);
+			ObjectName stats = LoginStats.getStats("BackendTest").getObjectName();
+			String threads[] = { "ReplicaRouter health check", "ConnectionPool evictor", "FileMonitor poll",
+								 "HashingPool" };
+			for (int t = 0; t < threads.length; t++) {
+				Check.that(running(threads[t]), threads[t] + " thread running before shutdown");
+			}
+
+			BasicLogin.shutdown();
+			Check.that(!m.isCurrent(), "module initialized before shutdown no longer current");
+			Check.equal(Integer.valueOf(1), Integer.valueOf(held.stops), "backend in use stopped");
+			Check.that(BasicLogin.acquireBackend("shutdown", "s", FACTORY) != held, "and forgotten");
+			Check.that(!ManagementFactory.getPlatformMBeanServer().isRegistered(stats), "statistics unregistered");
+			for (int t = 0; t < threads.length; t++) {
+				Check.that(stopped(threads[t]), threads[t] + " thread stopped by shutdown");
+			}
+
+			Check.equal("alice", ((TypedPrincipal) dbAuth.authenticate("alice", "secret".toCharArray()).get(0)).getName(),
+						"authenticator starts afresh after shutdown");
+			BasicLogin.shutdown();
+		} finally {
+			f.delete();
+		}
+	}
+
+	private static boolean running(String name)
+	{
+		for (Iterator i = Thread.getAllStackTraces().keySet().iterator(); i.hasNext(); ) {
+			if (((Thread) i.next()).getName().startsWith(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wait a while for the threads whose names start with a prefix to end.
+	 */
+	private static boolean stopped(String name) throws InterruptedException
+	{
+		long until = System.currentTimeMillis() + 5000;
+		while (running(name)) {
+			if (System.currentTimeMillis() > until) return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,70 @@
+// $Id$
+package com.tagish.auth;
+
+/**
+ * The assertions used by the tests, which are run by <code>make test</code>
+ * as plain programs. A test's main() calls {@link #done} last, which exits
+ * with status 1 if any check failed.
+ *
+ * @version 1.0.3
+ */
+public class Check
+{
+	private static int	checks		= 0;
+	private static int	failures	= 0;
+
+	private Check()
+	{
+	}
+
+	public static void that(boolean ok, String what)
+	{
+		checks++;
+		if (!ok) {
+			failures++;
+			System.out.println("FAILED: " + what);
+		}
+	}
+
+	public static void equal(Object expected, Object actual, String what)
+	{
+		that(expected == null ? actual == null : expected.equals(actual),
+			 what + ": expected " + expected + " but was " + actual);
+	}
+
+	/**
+	 * Check that a piece of code throws.
+	 *
+	 * @param expected the class of exception expected
+	 * @param code the code
+	 * @param what what is being checked
+	 */
+	public static void fails(Class expected, Code code, String what)
+	{
+		try {
+			code.run();
+			that(false, what + ": no " + expected.getName());
+		} catch (Exception e) {
+			that(expected.isInstance(e), what + ": expected " + expected.getName() + " but was " + e);
+		}
+	}
+
+	/**
+	 * Code expected to throw.
+	 */
+	public interface Code
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	 * Report the results and exit.
+	 *
+	 * @param test the test's name
+	 */
+	public static void done(String test)
+	{
+		System.out.println(test + ": " + checks + " checks, " + failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+}
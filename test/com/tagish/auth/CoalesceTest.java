@@ -0,0 +1,117 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import java.util.concurrent.*;
+import javax.security.auth.login.FailedLoginException;
+
+/**
+ * Tests the <code>coalesce</code> option: concurrent logins with the same
+ * username and password share one query, each still getting its own
+ * principals, while a different password is never given their result.
+ *
+ * @version 1.0.3
+ */
+public class CoalesceTest
+{
+	private final static int	THREADS	= 8;
+
+	public static void main(String args[]) throws Exception
+	{
+		shared();
+		separate();
+		uncoalesced();
+		Check.done("CoalesceTest");
+	}
+
+	private static Authenticator authenticator(String name, boolean coalesce)
+	{
+		MemoryDatabase.Users users = MemoryDatabase.get(name);
+		users.put("alice", "secret", new String[0]);
+		users.setDelay(200);
+		Map options = new HashMap();
+		options.put("dbDriver", MemoryDatabase.class.getName());
+		options.put("dbURL", MemoryDatabase.PREFIX + name);
+		options.put("coalesce", String.valueOf(coalesce));
+		return new ModuleAuthenticator(new DBLogin(), options);
+	}
+
+	/**
+	 * Log in from many threads at once.
+	 *
+	 * @return each login's principals, or the exception it threw
+	 */
+	private static Object[] together(final Authenticator a, final String passwords[]) throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(passwords.length);
+		try {
+			Future results[] = new Future[passwords.length];
+			for (int t = 0; t < passwords.length; t++) {
+				final String password = passwords[t];
+				results[t] = pool.submit(new Callable() {
+					public Object call() throws Exception
+					{
+						start.await();
+						try {
+							return a.authenticate("alice", password.toCharArray());
+						} catch (Exception e) {
+							return e;
+						}
+					}
+				});
+			}
+			start.countDown();
+			Object outcomes[] = new Object[passwords.length];
+			for (int t = 0; t < passwords.length; t++) {
+				outcomes[t] = results[t].get(10, TimeUnit.SECONDS);
+			}
+			return outcomes;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void shared() throws Exception
+	{
+		Authenticator a = authenticator("coalesced", true);
+		String passwords[] = new String[THREADS];
+		Arrays.fill(passwords, "secret");
+		Object outcomes[] = together(a, passwords);
+
+		boolean all = true;
+		Set principals = Collections.newSetFromMap(new IdentityHashMap());
+		for (int t = 0; t < outcomes.length; t++) {
+			if (!(outcomes[t] instanceof List)) {
+				all = false;
+				continue;
+			}
+			principals.add(((List) outcomes[t]).get(0));
+		}
+		Check.that(all, "every coalesced login succeeds");
+		Check.equal(Integer.valueOf(1), Integer.valueOf(MemoryDatabase.get("coalesced").getQueries()),
+					"concurrent logins share one query");
+		Check.equal(Integer.valueOf(THREADS), Integer.valueOf(principals.size()), "each login gets its own principals");
+	}
+
+	private static void separate() throws Exception
+	{
+		Authenticator a = authenticator("separate", true);
+		Object outcomes[] = together(a, new String[] { "secret", "wrong", "secret", "wrong" });
+		Check.that(outcomes[0] instanceof List && outcomes[2] instanceof List, "right password succeeds");
+		Check.that(outcomes[1] instanceof FailedLoginException && outcomes[3] instanceof FailedLoginException,
+				   "wrong password alongside it fails");
+		Check.equal(Integer.valueOf(2), Integer.valueOf(MemoryDatabase.get("separate").getQueries()),
+					"one query for each password");
+	}
+
+	private static void uncoalesced() throws Exception
+	{
+		Authenticator a = authenticator("uncoalesced", false);
+		String passwords[] = new String[THREADS];
+		Arrays.fill(passwords, "secret");
+		together(a, passwords);
+		Check.equal(Integer.valueOf(THREADS), Integer.valueOf(MemoryDatabase.get("uncoalesced").getQueries()),
+					"without coalesce every login queries");
+	}
+}
@@ -0,0 +1,145 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import javax.security.auth.Subject;
+
+/**
+ * Tests the compiled configurations in {@link BasicLogin}: compiled once per
+ * class and set of options, failures remembered, everything compiled afresh
+ * after {@link BasicLogin#shutdown}, and the backends held by a
+ * configuration let go once its options are no longer in use.
+ *
+ * @version 1.0.3
+ */
+public class ConfigTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		reuse();
+		failure();
+		shutdown();
+		dropped();
+		Check.done("ConfigTest");
+	}
+
+	/**
+	 * Counts its compilations; a <code>backend</code> option makes its
+	 * configuration hold a backend of that name.
+	 */
+	static class Counting extends BasicLogin
+	{
+		static int	compiles	= 0;
+
+		protected Config compile()
+		{
+			compiles++;
+			if (getOption("fail", false)) throw new Error("Bad options");
+			Config c = new Config(this);
+			String backend = getOption("backend", null);
+			if (backend != null) c.acquire(backend, null, BackendTest.FACTORY);
+			return c;
+		}
+
+		public boolean login()
+		{
+			return true;
+		}
+
+		public boolean commit()
+		{
+			return true;
+		}
+
+		public boolean abort()
+		{
+			return true;
+		}
+
+		public boolean logout()
+		{
+			return true;
+		}
+	}
+
+	static class Other extends Counting
+	{
+	}
+
+	private static Counting initialize(Counting m, Map options)
+	{
+		m.initialize(new Subject(), null, new HashMap(), options);
+		return m;
+	}
+
+	private static Map options(String name)
+	{
+		Map options = new HashMap();
+		options.put("name", name);
+		return options;
+	}
+
+	private static void reuse()
+	{
+		Map options = options("reuse");
+		int before = Counting.compiles;
+		Counting a = initialize(new Counting(), options);
+		Counting b = initialize(new Counting(), options);
+		Check.equal(Integer.valueOf(before + 1), Integer.valueOf(Counting.compiles), "options compiled once");
+		Check.that(a.config == b.config, "compiled options shared");
+		Check.that(initialize(new Counting(), new HashMap(options)).config == a.config, "and shared given equal options");
+
+		Check.that(initialize(new Counting(), options("other")).config != a.config, "different options compiled apart");
+		Check.that(initialize(new Other(), options).config != a.config, "as are a different class's");
+		Check.equal(Integer.valueOf(before + 3), Integer.valueOf(Counting.compiles), "each compiled once");
+	}
+
+	private static void failure()
+	{
+		Map options = options("failure");
+		options.put("fail", "true");
+		int before = Counting.compiles;
+		for (int i = 0; i < 3; i++) {
+			try {
+				initialize(new Counting(), options);
+				Check.that(false, "bad options: no Error");
+			} catch (Error e) {
+				Check.equal("Bad options", e.getMessage(), "bad options refused");
+			}
+		}
+		Check.equal(Integer.valueOf(before + 1), Integer.valueOf(Counting.compiles), "failure remembered, not recompiled");
+	}
+
+	private static void shutdown()
+	{
+		Map options = options("shutdown");
+		Counting a = initialize(new Counting(), options);
+		Check.that(a.isCurrent(), "module current before shutdown");
+		BasicLogin.shutdown();
+		Check.that(!a.isCurrent(), "but not after");
+		int before = Counting.compiles;
+		Counting b = initialize(new Counting(), options);
+		Check.equal(Integer.valueOf(before + 1), Integer.valueOf(Counting.compiles), "options compiled afresh after shutdown");
+		Check.that(b.config != a.config && b.isCurrent(), "new module uses the new configuration");
+	}
+
+	private static void dropped() throws InterruptedException
+	{
+		Map options = options("dropped");
+		options.put("backend", "dropped");
+		Counting m = initialize(new Counting(), options);
+		BackendTest.Counted held = (BackendTest.Counted) BasicLogin.acquireBackend("dropped", null, BackendTest.FACTORY);
+		BasicLogin.releaseBackend(held);
+		Check.equal(Integer.valueOf(0), Integer.valueOf(held.stops), "backend held while its options are in use");
+
+		// the options map is the login configuration's; once it is gone, so is the configuration
+		options = null;
+		m = null;
+		for (int i = 0; i < 50 && held.stops == 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+			initialize(new Counting(), options("dropped-" + i));
+		}
+		Check.equal(Integer.valueOf(1), Integer.valueOf(held.stops), "backend let go once its options are dropped");
+	}
+}
@@ -0,0 +1,116 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import javax.sql.DataSource;
+
+/**
+ * Tests {@link DataSources}: JNDI lookups, DataSources made from a class
+ * name and its dataSource.* bean properties, and DBLogin logging in
+ * through each.
+ *
+ * @version 1.0.3
+ */
+public class DataSourcesTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		MemoryContext.install();
+		MemoryDatabase.get("ds").put("alice", "secret", new String[0]);
+
+		jndi();
+		beanProperties();
+		login();
+		Check.done("DataSourcesTest");
+	}
+
+	private static void jndi() throws Exception
+	{
+		MemoryDatabase bound = new MemoryDatabase();
+		bound.setUrl("jdbc:memory:ds");
+		MemoryContext.bind("java:comp/env/jdbc/users", bound);
+		MemoryContext.bind("java:comp/env/jdbc/other", "not a DataSource");
+
+		Check.that(DataSources.getDataSource("java:comp/env/jdbc/users", new HashMap()) == bound,
+				   "JNDI name looked up");
+		Check.that(DataSources.getDataSource("jdbc/users", new HashMap()) == bound,
+				   "name looked up under java:comp/env");
+		Check.fails(Exception.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				DataSources.getDataSource("java:comp/env/jdbc/other", new HashMap());
+			}
+		}, "object that isn't a DataSource");
+		Check.fails(Exception.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				DataSources.getDataSource("java:comp/env/jdbc/missing", new HashMap());
+			}
+		}, "unbound name");
+	}
+
+	private static void beanProperties() throws Exception
+	{
+		Map options = new HashMap();
+		options.put("dataSource.url", "jdbc:memory:ds");
+		options.put("dataSource.user", " reader ");
+		options.put("dataSource.loginTimeout", "7");
+		options.put("userTable", "not a property");
+
+		DataSource ds = DataSources.getDataSource(MemoryDatabase.class.getName(), options);
+		Check.that(ds instanceof MemoryDatabase, "DataSource made from its class name");
+		MemoryDatabase mds = (MemoryDatabase) ds;
+		Check.equal("jdbc:memory:ds", mds.getUrl(), "String property");
+		Check.equal("reader", mds.getUser(), "property trimmed");
+		Check.equal(Integer.valueOf(7), Integer.valueOf(mds.getLoginTimeout()), "int property");
+		Check.that(DataSources.getDataSource(MemoryDatabase.class.getName(), new HashMap(options)) == ds,
+				   "same class and properties share a DataSource");
+
+		Map other = new HashMap(options);
+		other.put("dataSource.loginTimeout", "8");
+		Check.that(DataSources.getDataSource(MemoryDatabase.class.getName(), other) != ds,
+				   "different properties make another DataSource");
+
+		final Map unknown = new HashMap();
+		unknown.put("dataSource.colour", "blue");
+		Check.fails(Exception.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				DataSources.getDataSource(MemoryDatabase.class.getName(), unknown);
+			}
+		}, "unknown property");
+
+		final Map wrongType = new HashMap();
+		wrongType.put("dataSource.loginTimeout", "soon");
+		Check.fails(Exception.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				DataSources.getDataSource(MemoryDatabase.class.getName(), wrongType);
+			}
+		}, "property of the wrong type");
+	}
+
+	private static void login() throws Exception
+	{
+		Map options = new HashMap();
+		options.put("dataSource", "jdbc/users");
+		Authenticator a = new ModuleAuthenticator(new DBLogin(), options);
+		Check.equal("alice", ((TypedPrincipal) a.authenticate("alice", "secret".toCharArray()).get(0)).getName(),
+					"login through a JNDI DataSource");
+
+		options = new HashMap();
+		options.put("dataSource", MemoryDatabase.class.getName());
+		options.put("dataSource.url", "jdbc:memory:ds");
+		a = new ModuleAuthenticator(new DBLogin(), options);
+		Check.equal("alice", ((TypedPrincipal) a.authenticate("alice", "secret".toCharArray()).get(0)).getName(),
+					"login through a DataSource made from a class name");
+
+		final Authenticator bad = a;
+		Check.fails(javax.security.auth.login.FailedLoginException.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				bad.authenticate("alice", "wrong".toCharArray());
+			}
+		}, "wrong password through a DataSource");
+	}
+}
@@ -0,0 +1,191 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+/**
+ * Tests {@link HedgedLogin}: the first definite answer wins, a backend that
+ * fails is replaced at once, hedging stops when its budget runs out, and each
+ * backend asked has its own copy of the password, smudged once it is done.
+ *
+ * @version 1.0.3
+ */
+public class HedgedLoginTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		fastFirst();
+		winner();
+		definite();
+		failover();
+		budget();
+		passwords();
+		BasicLogin.shutdown();
+		Check.done("HedgedLoginTest");
+	}
+
+	/**
+	 * What a {@link Store} does when asked.
+	 */
+	static class Behaviour
+	{
+		long			delay;
+		LoginException	failure;
+		int				calls		= 0;
+		List			given		= new ArrayList();
+
+		Behaviour(long delay, LoginException failure)
+		{
+			this.delay		= delay;
+			this.failure	= failure;
+		}
+	}
+
+	private final static Map	behaviours	= new HashMap();
+
+	/**
+	 * A backend named by its <code>name</code> option, answering as its
+	 * Behaviour says; a successful answer has the backend's name as a group.
+	 */
+	public static class Store extends SimpleLogin
+	{
+		protected Vector validateUser(String username, char password[]) throws LoginException
+		{
+			String name = getOption("name", null);
+			Behaviour b;
+			synchronized (behaviours) {
+				b = (Behaviour) behaviours.get(name);
+				b.calls++;
+				b.given.add(password);
+			}
+			try {
+				Thread.sleep(b.delay);
+			} catch (InterruptedException e) {
+				throw new LoginException(name + " interrupted");
+			}
+			if (b.failure != null) throw b.failure;
+			Vector p = new Vector();
+			p.add(new TypedPrincipal(username, TypedPrincipal.USER));
+			p.add(new TypedPrincipal(name, TypedPrincipal.GROUP));
+			return p;
+		}
+	}
+
+	/**
+	 * Two backends, test-a and test-b, behaving as given.
+	 */
+	private static Authenticator authenticator(String test, Behaviour a, Behaviour b, Map extra)
+	{
+		synchronized (behaviours) {
+			behaviours.put(test + "-a", a);
+			behaviours.put(test + "-b", b);
+		}
+		Map options = new HashMap();
+		options.put("backends", "a,b");
+		options.put("a.module", Store.class.getName());
+		options.put("a.name", test + "-a");
+		options.put("b.module", Store.class.getName());
+		options.put("b.name", test + "-b");
+		options.put("hedgeDelay", "20");
+		if (extra != null) options.putAll(extra);
+		return new ModuleAuthenticator(new HedgedLogin(), options);
+	}
+
+	private static String group(List principals)
+	{
+		return ((TypedPrincipal) principals.get(1)).getName();
+	}
+
+	private static int calls(Behaviour b)
+	{
+		synchronized (behaviours) {
+			return b.calls;
+		}
+	}
+
+	private static void fastFirst() throws Exception
+	{
+		Behaviour a = new Behaviour(0, null), b = new Behaviour(0, null);
+		Authenticator auth = authenticator("fast", a, b, null);
+		Check.equal("fast-a", group(auth.authenticate("alice", "secret".toCharArray())), "first backend answers");
+		Thread.sleep(50);
+		Check.equal(Integer.valueOf(0), Integer.valueOf(calls(b)), "second not asked when the first is quick");
+	}
+
+	private static void winner() throws Exception
+	{
+		Behaviour a = new Behaviour(2000, null), b = new Behaviour(0, null);
+		Authenticator auth = authenticator("winner", a, b, null);
+		long start = System.currentTimeMillis();
+		Check.equal("winner-b", group(auth.authenticate("alice", "secret".toCharArray())), "hedge answers for a slow backend");
+		Check.that(System.currentTimeMillis() - start < 1000, "without waiting for the slow one");
+	}
+
+	private static void definite() throws Exception
+	{
+		Behaviour a = new Behaviour(0, new FailedLoginException("Bad password")), b = new Behaviour(0, null);
+		final Authenticator auth = authenticator("definite", a, b, null);
+		Check.fails(FailedLoginException.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				auth.authenticate("alice", "wrong".toCharArray());
+			}
+		}, "wrong password is a definite answer");
+		Thread.sleep(50);
+		Check.equal(Integer.valueOf(0), Integer.valueOf(calls(b)), "and the other backend isn't asked");
+	}
+
+	private static void failover() throws Exception
+	{
+		Behaviour a = new Behaviour(0, new LoginException("Database down")), b = new Behaviour(0, null);
+		Map extra = new HashMap();
+		extra.put("hedgeDelay", "5000");
+		Authenticator auth = authenticator("failover", a, b, extra);
+		long start = System.currentTimeMillis();
+		Check.equal("failover-b", group(auth.authenticate("alice", "secret".toCharArray())), "failed backend replaced");
+		Check.that(System.currentTimeMillis() - start < 2500, "at once, not after the hedge delay");
+	}
+
+	private static void budget() throws Exception
+	{
+		Behaviour a = new Behaviour(100, null), b = new Behaviour(0, null);
+		Map extra = new HashMap();
+		extra.put("hedgeBudget", "0");
+		Authenticator auth = authenticator("budget", a, b, extra);
+		int won = 0;
+		for (int i = 0; i < 12; i++) {
+			if (group(auth.authenticate("alice", "secret".toCharArray())).equals("budget-b")) won++;
+		}
+		Check.equal(Integer.valueOf(10), Integer.valueOf(calls(b)), "hedges stop once the saved budget is spent");
+		Check.equal(Integer.valueOf(10), Integer.valueOf(won), "logins beyond it wait for the first backend");
+
+		Behaviour c = new Behaviour(100, null), d = new Behaviour(0, null);
+		extra.put("hedgeBudget", "100");
+		auth = authenticator("refill", c, d, extra);
+		for (int i = 0; i < 15; i++) {
+			auth.authenticate("alice", "secret".toCharArray());
+		}
+		Check.equal(Integer.valueOf(15), Integer.valueOf(calls(d)), "budget refilled by each login's share");
+	}
+
+	private static void passwords() throws Exception
+	{
+		Behaviour a = new Behaviour(300, null), b = new Behaviour(0, null);
+		Authenticator auth = authenticator("passwords", a, b, null);
+		char password[] = "secret".toCharArray();
+		auth.authenticate("alice", password);
+		Thread.sleep(50);
+
+		char ga[], gb[];
+		synchronized (behaviours) {
+			ga = (char[]) a.given.get(0);
+			gb = (char[]) b.given.get(0);
+		}
+		Check.that(ga != password && gb != password && ga != gb, "each backend given its own copy of the password");
+		Check.that(Arrays.equals(ga, new char[password.length]), "loser's copy smudged once it was cancelled");
+		Check.that(Arrays.equals(gb, new char[password.length]), "winner's copy smudged once it answered");
+		Check.equal("secret", new String(password), "caller's password left alone");
+	}
+}
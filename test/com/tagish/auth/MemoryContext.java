@@ -0,0 +1,53 @@
+// $Id$
+package com.tagish.auth;
+
+import java.lang.reflect.*;
+import java.util.*;
+import javax.naming.*;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * A JNDI naming service held in memory, for the tests. Select it with
+ * {@link #install}; names bound with {@link #bind} can then be looked up
+ * through any InitialContext.
+ *
+ * @version 1.0.3
+ */
+public class MemoryContext implements InitialContextFactory
+{
+	private final static Map	bindings	= new HashMap();
+
+	/**
+	 * Make this the JVM's initial context factory.
+	 */
+	public static void install()
+	{
+		System.setProperty(Context.INITIAL_CONTEXT_FACTORY, MemoryContext.class.getName());
+	}
+
+	public static void bind(String name, Object o)
+	{
+		synchronized (bindings) {
+			bindings.put(name, o);
+		}
+	}
+
+	public Context getInitialContext(Hashtable environment)
+	{
+		return (Context) Proxy.newProxyInstance(MemoryContext.class.getClassLoader(), new Class[] { Context.class },
+				new InvocationHandler() {
+					public Object invoke(Object p, Method m, Object args[]) throws Throwable
+					{
+						if (m.getName().equals("lookup")) {
+							String name = String.valueOf(args[0]);
+							synchronized (bindings) {
+								if (bindings.containsKey(name)) return bindings.get(name);
+							}
+							throw new NameNotFoundException(name);
+						}
+						if (m.getName().equals("close")) return null;
+						throw new OperationNotSupportedException(m.getName());
+					}
+				});
+	}
+}
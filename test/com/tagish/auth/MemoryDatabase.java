@@ -0,0 +1,332 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.PrintWriter;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import javax.sql.DataSource;
+
+/**
+ * An in-memory stand-in for a user database, for the tests. It answers the
+ * queries DBLogin makes - one user by name, or many with
+ * <code>IN (...)</code> - from a table of users held in memory, whatever
+ * the SQL says otherwise. Databases are named by URLs of the form
+ * <code>jdbc:memory:<i>name</i></code>, through DriverManager or as a
+ * DataSource whose <code>url</code> bean property is set.
+ *
+ * <p>A database can be taken down, when connecting fails with SQLState
+ * 08001, made to time out its queries, or made slow.
+ *
+ * @version 1.0.3
+ */
+public class MemoryDatabase implements DataSource
+{
+	public final static String	PREFIX		= "jdbc:memory:";
+
+	private final static Map	databases	= new HashMap();
+
+	static {
+		try {
+			DriverManager.registerDriver(new MemoryDriver());
+		} catch (SQLException e) {
+			throw new Error("Can't register the memory driver (" + e + ")");
+		}
+	}
+
+	// bean properties, for DataSources
+	private String				url;
+	private String				user;
+	private int					loginTimeout;
+
+	/**
+	 * One database's users and condition.
+	 */
+	public static class Users
+	{
+		private final Map			users		= new LinkedHashMap();
+		volatile boolean			down		= false;
+		volatile boolean			timeout		= false;
+		volatile long				delay		= 0;
+		volatile int				queries		= 0;
+
+		/**
+		 * Add a user, or replace them.
+		 */
+		public synchronized void put(String username, String password, String roles[])
+		{
+			users.put(username, new Object[] { password, roles });
+		}
+
+		public synchronized void remove(String username)
+		{
+			users.remove(username);
+		}
+
+		public void setDown(boolean down)
+		{
+			this.down = down;
+		}
+
+		public void setTimeout(boolean timeout)
+		{
+			this.timeout = timeout;
+		}
+
+		/**
+		 * Make every query take at least this long.
+		 */
+		public void setDelay(long millis)
+		{
+			this.delay = millis;
+		}
+
+		public int getQueries()
+		{
+			return queries;
+		}
+
+		/**
+		 * @return rows of user, password and role, one per role
+		 */
+		synchronized List rows(List names)
+		{
+			List rows = new ArrayList();
+			Set seen = new HashSet();
+			for (int n = 0; n < names.size(); n++) {
+				String name = (String) names.get(n);
+				Object u[] = (Object[]) users.get(name);
+				if (u == null || !seen.add(name)) continue;
+				String roles[] = (String[]) u[1];
+				if (roles == null || roles.length == 0) {
+					rows.add(new Object[] { name, u[0], null });
+				} else {
+					for (int r = 0; r < roles.length; r++) {
+						rows.add(new Object[] { name, u[0], roles[r] });
+					}
+				}
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * Get a database, creating it empty if necessary.
+	 *
+	 * @param name the name following jdbc:memory:
+	 * @return the database
+	 */
+	public static Users get(String name)
+	{
+		synchronized (databases) {
+			Users u = (Users) databases.get(name);
+			if (u == null) {
+				u = new Users();
+				databases.put(name, u);
+			}
+			return u;
+		}
+	}
+
+	public String getUrl()
+	{
+		return url;
+	}
+
+	public void setUrl(String url)
+	{
+		this.url = url;
+	}
+
+	public String getUser()
+	{
+		return user;
+	}
+
+	public void setUser(String user)
+	{
+		this.user = user;
+	}
+
+	public Connection getConnection() throws SQLException
+	{
+		return connect(url);
+	}
+
+	public Connection getConnection(String username, String password) throws SQLException
+	{
+		return connect(url);
+	}
+
+	public PrintWriter getLogWriter()
+	{
+		return null;
+	}
+
+	public void setLogWriter(PrintWriter out)
+	{
+	}
+
+	public int getLoginTimeout()
+	{
+		return loginTimeout;
+	}
+
+	public void setLoginTimeout(int seconds)
+	{
+		loginTimeout = seconds;
+	}
+
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException
+	{
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	public Object unwrap(Class iface) throws SQLException
+	{
+		throw new SQLException("Not a wrapper");
+	}
+
+	public boolean isWrapperFor(Class iface)
+	{
+		return false;
+	}
+
+	static Connection connect(String url) throws SQLException
+	{
+		if (url == null || !url.startsWith(PREFIX)) throw new SQLException("No database " + url, "08001");
+		final Users db = get(url.substring(PREFIX.length()));
+		if (db.down) throw new SQLNonTransientConnectionException(url + " is down", "08001");
+
+		return (Connection) proxy(Connection.class, new InvocationHandler() {
+			private boolean	closed	= false;
+
+			public Object invoke(Object p, Method m, Object args[]) throws Throwable
+			{
+				String n = m.getName();
+				if (n.equals("prepareStatement")) return statement(db, (String) args[0]);
+				if (n.equals("isValid")) return Boolean.valueOf(!db.down && !closed);
+				if (n.equals("isClosed")) return Boolean.valueOf(closed);
+				if (n.equals("close")) closed = true;
+				return standard(p, m, args);
+			}
+		});
+	}
+
+	private static PreparedStatement statement(final Users db, final String sql)
+	{
+		final List params = new ArrayList();
+		return (PreparedStatement) proxy(PreparedStatement.class, new InvocationHandler() {
+			public Object invoke(Object p, Method m, Object args[]) throws Throwable
+			{
+				String n = m.getName();
+				if (n.equals("setString")) {
+					int i = ((Integer) args[0]).intValue();
+					while (params.size() < i) params.add(null);
+					params.set(i - 1, args[1]);
+					return null;
+				}
+				if (n.equals("executeQuery")) {
+					synchronized (db) {
+						db.queries++;
+					}
+					if (db.delay > 0) Thread.sleep(db.delay);
+					if (db.down) throw new SQLNonTransientConnectionException("Connection lost", "08006");
+					if (db.timeout) throw new SQLTimeoutException("Query timed out");
+					List rows = db.rows(params);
+					if (sql.indexOf(" IN (") < 0) {
+						// one user: password and role
+						for (int r = 0; r < rows.size(); r++) {
+							Object row[] = (Object[]) rows.get(r);
+							rows.set(r, new Object[] { row[1], row[2] });
+						}
+					}
+					return results(rows);
+				}
+				return standard(p, m, args);
+			}
+		});
+	}
+
+	private static ResultSet results(final List rows)
+	{
+		return (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+			private int	row	= -1;
+
+			public Object invoke(Object p, Method m, Object args[]) throws Throwable
+			{
+				String n = m.getName();
+				if (n.equals("next")) return Boolean.valueOf(++row < rows.size());
+				if (n.equals("getString")) {
+					Object v = ((Object[]) rows.get(row))[((Integer) args[0]).intValue() - 1];
+					return v == null ? null : v.toString();
+				}
+				return standard(p, m, args);
+			}
+		});
+	}
+
+	private static Object proxy(Class iface, InvocationHandler h)
+	{
+		return Proxy.newProxyInstance(MemoryDatabase.class.getClassLoader(), new Class[] { iface }, h);
+	}
+
+	/**
+	 * Object's methods, and a harmless answer for everything else.
+	 */
+	private static Object standard(Object p, Method m, Object args[])
+	{
+		String n = m.getName();
+		if (n.equals("hashCode")) return Integer.valueOf(System.identityHashCode(p));
+		if (n.equals("equals")) return Boolean.valueOf(p == args[0]);
+		if (n.equals("toString")) return "MemoryDatabase " + m.getDeclaringClass().getName();
+
+		Class r = m.getReturnType();
+		if (r == boolean.class) return Boolean.FALSE;
+		if (r == int.class) return Integer.valueOf(0);
+		if (r == long.class) return Long.valueOf(0);
+		if (r.isPrimitive() && r != void.class) throw new UnsupportedOperationException(n);
+		return null;
+	}
+
+	/**
+	 * Connects DriverManager to the memory databases.
+	 */
+	public static class MemoryDriver implements Driver
+	{
+		public Connection connect(String url, Properties info) throws SQLException
+		{
+			return acceptsURL(url) ? MemoryDatabase.connect(url) : null;
+		}
+
+		public boolean acceptsURL(String url)
+		{
+			return url != null && url.startsWith(PREFIX);
+		}
+
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+		{
+			return new DriverPropertyInfo[0];
+		}
+
+		public int getMajorVersion()
+		{
+			return 1;
+		}
+
+		public int getMinorVersion()
+		{
+			return 0;
+		}
+
+		public boolean jdbcCompliant()
+		{
+			return false;
+		}
+
+		public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException
+		{
+			throw new SQLFeatureNotSupportedException();
+		}
+	}
+}
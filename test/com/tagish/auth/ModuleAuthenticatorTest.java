@@ -0,0 +1,57 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import javax.security.auth.login.FailedLoginException;
+
+/**
+ * Tests {@link ModuleAuthenticator}: what it returns can't be used to
+ * change what other callers get, even when the module caches its answers,
+ * and it carries on after {@link BasicLogin#shutdown}.
+ *
+ * @version 1.0.3
+ */
+public class ModuleAuthenticatorTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		MemoryDatabase.get("authenticator").put("alice", "secret", new String[] { "staff" });
+
+		Map options = new HashMap();
+		options.put("dbDriver", MemoryDatabase.class.getName());
+		options.put("dbURL", MemoryDatabase.PREFIX + "authenticator");
+		options.put("roleTable", "roles");
+		options.put("cache", "true");
+		final Authenticator a = new ModuleAuthenticator(new DBLogin(), options);
+
+		final List first = a.authenticate("alice", "secret".toCharArray());
+		Check.equal(Arrays.asList(new Object[] { new TypedPrincipal("alice", TypedPrincipal.USER),
+												 new TypedPrincipal("staff", TypedPrincipal.GROUP) }),
+					first, "user and group principals");
+		Check.fails(UnsupportedOperationException.class, new Check.Code() {
+			public void run()
+			{
+				first.clear();
+			}
+		}, "list can't be modified");
+
+		((TypedPrincipal) first.get(0)).setName("mallory");
+		((TypedPrincipal) first.get(1)).setName("admin");
+		List second = a.authenticate("alice", "secret".toCharArray());
+		Check.equal("alice", ((TypedPrincipal) second.get(0)).getName(), "renaming a principal changes no other caller's");
+		Check.equal("staff", ((TypedPrincipal) second.get(1)).getName(), "nor a cached group's");
+		Check.that(second.get(0) != first.get(0), "each caller gets its own principals");
+
+		Check.fails(FailedLoginException.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				a.authenticate(null, "secret".toCharArray());
+			}
+		}, "missing username");
+
+		BasicLogin.shutdown();
+		Check.equal("alice", ((TypedPrincipal) a.authenticate("alice", "secret".toCharArray()).get(0)).getName(),
+					"works again after shutdown");
+		Check.done("ModuleAuthenticatorTest");
+	}
+}
@@ -0,0 +1,128 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Tests {@link PasswordFileParser} by comparing what it reads, split into
+ * various numbers of pieces, with what PasswordFile reads a line at a time.
+ * Files whose lines all have the same length put piece boundaries exactly
+ * at the start of a line.
+ *
+ * @version 1.0.3
+ */
+public class PasswordFileParserTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		File f = File.createTempFile("passwd", ".test");
+		try {
+			boundaries(f, "\n");
+			boundaries(f, "\r\n");
+			random(f);
+			malformed(f);
+		} finally {
+			f.delete();
+		}
+		Check.done("PasswordFileParserTest");
+	}
+
+	private static void write(File f, String s) throws IOException
+	{
+		Writer w = new FileWriter(f);
+		try {
+			w.write(s);
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * Check that every way of splitting the file reads the same users as
+	 * reading it line by line.
+	 */
+	private static void same(File f, int maxPieces, String what) throws IOException
+	{
+		Map expected = PasswordFile.read(f);
+		for (int pieces = 1; pieces <= maxPieces; pieces++) {
+			Map actual = PasswordFileParser.parse(f, pieces);
+			if (!equal(expected, actual)) {
+				Check.that(false, what + " in " + pieces + " pieces (" + actual.size() + " users, expected " +
+						   expected.size() + ")");
+				return;
+			}
+		}
+		Check.that(true, what);
+	}
+
+	private static boolean equal(Map expected, Map actual)
+	{
+		if (expected.size() != actual.size()) return false;
+		for (Iterator i = expected.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry) i.next();
+			PasswordFile.User a = (PasswordFile.User) actual.get(e.getKey());
+			PasswordFile.User b = (PasswordFile.User) e.getValue();
+			if (a == null || !a.password.equals(b.password) || !Arrays.equals(a.principals, b.principals))
+				return false;
+		}
+		return true;
+	}
+
+	private static void boundaries(File f, String eol) throws IOException
+	{
+		// 100 lines of 10 bytes or so, so 10 pieces start 10 lines apart
+		StringBuffer s = new StringBuffer();
+		for (int u = 0; u < 100; u++) {
+			String user = "u" + (100 + u);
+			s.append(user).append(":pw:g").append(eol);
+		}
+		write(f, s.toString());
+		same(f, 25, "pieces starting at a line start (" + (eol.length() == 1 ? "LF" : "CRLF") + ")");
+	}
+
+	private static void random(File f) throws IOException
+	{
+		Random r = new Random(42);
+		for (int n = 0; n < 5; n++) {
+			StringBuffer s = new StringBuffer();
+			for (int u = 0; u < 2000; u++) {
+				switch (r.nextInt(10)) {
+				case 0:
+					s.append("# a comment\n");
+					break;
+				case 1:
+					s.append("\n");
+					break;
+				default:
+					s.append("  user").append(u).append("::p").append(r.nextInt(1000));
+					for (int g = r.nextInt(4); g > 0; g--) {
+						s.append(":group").append(r.nextInt(20));
+					}
+					s.append(r.nextBoolean() ? " # note\n" : "\r\n");
+				}
+			}
+			write(f, s.toString());
+			same(f, 64, "random file " + n);
+		}
+	}
+
+	private static void malformed(final File f) throws IOException
+	{
+		write(f, "alice:a\nbob\ncarol:c\n");
+		Check.fails(PasswordFileParser.MalformedException.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				PasswordFileParser.parse(f, 2);
+			}
+		}, "line without a password");
+
+		write(f, "alice:a\nbob:b\nalice:c\n");
+		Check.fails(PasswordFileParser.MalformedException.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				PasswordFileParser.parse(f, 3);
+			}
+		}, "user listed twice");
+	}
+}
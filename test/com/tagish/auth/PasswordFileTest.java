@@ -0,0 +1,173 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.*;
+
+/**
+ * Tests {@link PasswordFile}: changes to the file picked up in the
+ * background, a malformed file leaving the last good contents in use, and
+ * the journal replayed over the file and compacted into it.
+ *
+ * @version 1.0.3
+ */
+public class PasswordFileTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		File dir = File.createTempFile("passwd", ".test");
+		dir.delete();
+		dir.mkdir();
+		try {
+			reload(new File(dir, "reload"));
+			journal(new File(dir, "journal"));
+			compaction(new File(dir, "compaction"));
+		} finally {
+			File files[] = dir.listFiles();
+			for (int f = 0; f < files.length; f++) {
+				files[f].delete();
+			}
+			dir.delete();
+		}
+		BasicLogin.shutdown();
+		Check.done("PasswordFileTest");
+	}
+
+	private static void write(File f, String text) throws IOException
+	{
+		Writer w = new FileWriter(f);
+		try {
+			w.write(text);
+		} finally {
+			w.close();
+		}
+	}
+
+	private static String read(File f) throws IOException
+	{
+		StringBuffer text = new StringBuffer();
+		Reader r = new FileReader(f);
+		try {
+			char buf[] = new char[4096];
+			for (int n; (n = r.read(buf)) > 0; ) text.append(buf, 0, n);
+		} finally {
+			r.close();
+		}
+		return text.toString();
+	}
+
+	private static String password(PasswordFile pf, String username) throws IOException
+	{
+		PasswordFile.User u = pf.getSnapshot().get(username);
+		return u == null ? null : u.getPassword();
+	}
+
+	/**
+	 * Wait a while for a user's password to become what is expected.
+	 */
+	private static boolean becomes(PasswordFile pf, String username, String expected) throws Exception
+	{
+		long until = System.currentTimeMillis() + 5000;
+		while (true) {
+			String p = password(pf, username);
+			if (expected == null ? p == null : expected.equals(p)) return true;
+			if (System.currentTimeMillis() > until) return false;
+			Thread.sleep(20);
+		}
+	}
+
+	private static void reload(File f) throws Exception
+	{
+		write(f, "alice:one:staff\n");
+		PasswordFile pf = PasswordFile.getFile(f.getPath());
+		pf.monitor(false, 20);
+		Check.equal("one", password(pf, "alice"), "file read on first use");
+		Check.equal("staff", ((TypedPrincipal) pf.getSnapshot().get("alice").getPrincipals().get(1)).getName(), "groups read");
+
+		write(f, "alice:two:staff\nbob:three\n");
+		Check.that(becomes(pf, "bob", "three"), "change to the file picked up in the background");
+		Check.equal("two", password(pf, "alice"), "along with the other users");
+
+		write(f, "alice:two:staff\nbob\n");
+		pf.refresh();
+		Check.that(pf.getLastError() != null, "malformed file reported");
+		Check.equal("three", password(pf, "bob"), "last good version still used");
+
+		write(f, "alice:two:staff\n");
+		pf.refresh();
+		Check.that(pf.getLastError() == null, "error cleared once the file is well formed");
+		Check.equal(null, password(pf, "bob"), "user removed from the file forgotten");
+		pf.close();
+	}
+
+	private static void journal(File f) throws Exception
+	{
+		write(f, "alice:one\nbob:two\n");
+		PasswordFile pf = PasswordFile.getFile(f.getPath());
+		pf.monitor(false, 20);
+		pf.getSnapshot();
+
+		pf.update("carol", "three", new String[] { "staff" });
+		pf.remove("bob");
+		Check.that(becomes(pf, "carol", "three"), "user added through the journal");
+		Check.that(becomes(pf, "bob", null), "user removed through the journal");
+		Check.equal(Integer.valueOf(2), Integer.valueOf(pf.getSnapshot().getChanges()), "changes laid over the file");
+		Check.equal(Integer.valueOf(2), Integer.valueOf(pf.getSnapshot().size()), "users counted with the changes");
+		Check.equal("alice:one\nbob:two\n", read(f), "file itself untouched");
+
+		// a partly written line waits for the rest of it
+		Writer w = new FileWriter(f.getPath() + ".journal", true);
+		w.write("+alice:fo");
+		w.flush();
+		pf.refreshJournal();
+		Check.equal("one", password(pf, "alice"), "partly written entry not applied");
+		w.write("ur\n");
+		w.close();
+		Check.that(becomes(pf, "alice", "four"), "entry applied once complete");
+
+		pf.close();
+		PasswordFile again = PasswordFile.getFile(f.getPath());
+		Check.that(again != pf, "closed file read afresh");
+		Check.equal("four", password(again, "alice"), "journal replayed over the file when it is read");
+		Check.equal(null, password(again, "bob"), "removals replayed too");
+		again.close();
+	}
+
+	private static void compaction(File f) throws Exception
+	{
+		write(f, "# users\nbob:two\nalice:one\n");
+		PasswordFile pf = PasswordFile.getFile(f.getPath());
+		pf.monitor(false, 20);
+		pf.setCompactAt(3);
+		pf.getSnapshot();
+
+		pf.update("carol", "three", new String[] { "staff" });
+		pf.remove("bob");
+		Check.that(becomes(pf, "bob", null), "changes applied before compaction");
+		Check.that(new File(f.getPath() + ".journal").length() > 0, "journal not compacted below the threshold");
+
+		pf.update("alice", "four", new String[0]);
+		long until = System.currentTimeMillis() + 5000;
+		while (new File(f.getPath() + ".journal").length() > 0 && System.currentTimeMillis() < until) {
+			Thread.sleep(20);
+		}
+		Check.equal(Long.valueOf(0), Long.valueOf(new File(f.getPath() + ".journal").length()),
+					"journal emptied once it has enough entries");
+		String text = read(f);
+		Check.that(text.startsWith("# compacted from "), "file rewritten");
+		Check.equal("alice:four\ncarol:three:staff\n", text.substring(text.indexOf('\n') + 1),
+					"with the changes folded in, sorted");
+		Check.equal(Integer.valueOf(0), Integer.valueOf(pf.getSnapshot().getChanges()), "no changes left to lay over it");
+		Check.equal("four", password(pf, "alice"), "users unchanged by compaction");
+		Check.equal(null, password(pf, "bob"), "removed users stay removed");
+
+		// another JVM compacting replaces the journal; the file is read again
+		pf.update("dave", "five", new String[0]);
+		Check.that(becomes(pf, "dave", "five"), "change after compaction applied");
+		write(f, "alice:four\ncarol:three:staff\ndave:five\n");
+		new File(f.getPath() + ".journal").delete();
+		write(new File(f.getPath() + ".journal"), "-carol\n");
+		Check.that(becomes(pf, "carol", null), "replaced journal read with the file");
+		Check.equal("five", password(pf, "dave"), "users folded in elsewhere kept");
+		pf.close();
+	}
+}
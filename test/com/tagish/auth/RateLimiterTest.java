@@ -0,0 +1,102 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import javax.security.auth.login.FailedLoginException;
+
+/**
+ * Tests {@link RateLimiter}: attempts beyond the burst refused, tokens given
+ * back, buckets evicted when idle or when there are too many, and only failed
+ * logins counted by a module.
+ *
+ * @version 1.0.3
+ */
+public class RateLimiterTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		refusal();
+		refund();
+		eviction();
+		module();
+		Check.done("RateLimiterTest");
+	}
+
+	private static void refusal()
+	{
+		RateLimiter limiter = new RateLimiter(1, 2, 100);
+		Check.that(limiter.tryAcquire("alice"), "first attempt allowed");
+		Check.that(limiter.tryAcquire("alice"), "attempts up to the burst allowed");
+		Check.that(!limiter.tryAcquire("alice"), "attempt beyond the burst refused");
+		Check.equal(Long.valueOf(1), Long.valueOf(limiter.getRejected()), "refusal counted");
+		Check.that(limiter.tryAcquire("bob"), "other keys unaffected");
+	}
+
+	private static void refund()
+	{
+		RateLimiter limiter = new RateLimiter(1, 1, 100);
+		Check.that(limiter.tryAcquire("alice"), "token taken");
+		limiter.release("alice");
+		Check.that(limiter.tryAcquire("alice"), "token given back can be taken again");
+		Check.that(!limiter.tryAcquire("alice"), "but only once");
+		limiter.release("alice");
+		limiter.release("alice");
+		Check.that(limiter.tryAcquire("alice") && !limiter.tryAcquire("alice"), "refunds don't exceed the burst");
+	}
+
+	private static void eviction() throws InterruptedException
+	{
+		RateLimiter full = new RateLimiter(1, 1, 8);
+		full.tryAcquire("alice");
+		for (int k = 0; k < 20; k++) {
+			full.tryAcquire("user" + k);
+		}
+		Check.equal(Integer.valueOf(8), Integer.valueOf(full.size()), "keys tracked bounded");
+		Check.that(full.tryAcquire("alice"), "least recently used key dropped when full");
+
+		// a bucket fills up again in a microsecond at this rate; with so
+		// few keys there is one segment, so every bucket is looked at
+		RateLimiter idle = new RateLimiter(60000000, 1, 8);
+		for (int k = 0; k < 5; k++) {
+			idle.tryAcquire("user" + k);
+		}
+		Thread.sleep(5);
+		idle.tryAcquire("alice");
+		Check.equal(Integer.valueOf(1), Integer.valueOf(idle.size()), "buckets that have filled up again dropped");
+	}
+
+	private static void module() throws Exception
+	{
+		MemoryDatabase.Users users = MemoryDatabase.get("limited");
+		users.put("alice", "secret", new String[0]);
+		users.put("bob", "secret", new String[0]);
+		Map options = new HashMap();
+		options.put("dbDriver", MemoryDatabase.class.getName());
+		options.put("dbURL", MemoryDatabase.PREFIX + "limited");
+		options.put("rateLimit", "1");
+		options.put("rateLimitBurst", "2");
+		final Authenticator a = new ModuleAuthenticator(new DBLogin(), options);
+
+		for (int i = 0; i < 5; i++) {
+			a.authenticate("bob", "secret".toCharArray());
+		}
+		Check.that(true, "successful logins not limited");
+
+		for (int i = 0; i < 2; i++) {
+			Check.fails(FailedLoginException.class, new Check.Code() {
+				public void run() throws Exception
+				{
+					a.authenticate("alice", "wrong".toCharArray());
+				}
+			}, "bad password");
+		}
+		int queries = users.getQueries();
+		Check.fails(RateLimitedException.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				a.authenticate("alice", "secret".toCharArray());
+			}
+		}, "login refused after too many failures");
+		Check.equal(Integer.valueOf(queries), Integer.valueOf(users.getQueries()), "without asking the database");
+	}
+}
@@ -0,0 +1,202 @@
+// $Id$
+package com.tagish.auth;
+
+import java.util.*;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+/**
+ * Tests {@link ReplicaRouter} through DBLogin: failing over from a replica
+ * that is down, bringing it back after a health check, queries and pools
+ * that time out, readYourWrites, and the same for bulk validation.
+ *
+ * @version 1.0.3
+ */
+public class ReplicaRouterTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		failover();
+		timeout();
+		busyPool();
+		readYourWrites();
+		bulk();
+		Check.done("ReplicaRouterTest");
+	}
+
+	/**
+	 * A new module, with alice on jdbc:memory:<i>name</i> and its replicas
+	 * <i>name</i>-1 and <i>name</i>-2.
+	 */
+	private static DBLogin module(String name)
+	{
+		String users[] = { name, name + "-1", name + "-2" };
+		for (int u = 0; u < users.length; u++) {
+			MemoryDatabase.get(users[u]).put("alice", "secret", new String[0]);
+		}
+		return new DBLogin();
+	}
+
+	/**
+	 * Initialize a module to read from the database and replicas, with no
+	 * background health checks.
+	 */
+	private static Authenticator authenticator(DBLogin m, String name, boolean readYourWrites)
+	{
+		return new ModuleAuthenticator(m, options(name, readYourWrites));
+	}
+
+	private static Map options(String name, boolean readYourWrites)
+	{
+		Map options = new HashMap();
+		options.put("dbDriver", MemoryDatabase.class.getName());
+		options.put("dbURL", MemoryDatabase.PREFIX + name);
+		options.put("dbReplicaURLs", MemoryDatabase.PREFIX + name + "-1," + MemoryDatabase.PREFIX + name + "-2");
+		options.put("replicaHealthCheck", "0");
+		options.put("readYourWrites", String.valueOf(readYourWrites));
+		return options;
+	}
+
+	private static ReplicaRouter.Endpoint endpoint(DBLogin m, String url)
+	{
+		ReplicaRouter router = ((DBLogin.Config) m.config).database.getRouter();
+		ReplicaRouter.Endpoint all[] = router.route();
+		for (int e = 0; e < all.length; e++) {
+			if (all[e].getURL().equals(url)) return all[e];
+		}
+		return null;
+	}
+
+	private static void login(Authenticator a, int times) throws Exception
+	{
+		for (int i = 0; i < times; i++) {
+			a.authenticate("alice", "secret".toCharArray());
+		}
+	}
+
+	private static void failover() throws Exception
+	{
+		DBLogin m = module("failover");
+		Authenticator a = authenticator(m, "failover", false);
+		MemoryDatabase.Users primary = MemoryDatabase.get("failover");
+		MemoryDatabase.Users one = MemoryDatabase.get("failover-1");
+		MemoryDatabase.Users two = MemoryDatabase.get("failover-2");
+		ReplicaRouter router = ((DBLogin.Config) m.config).database.getRouter();
+
+		login(a, 4);
+		Check.equal(Integer.valueOf(0), Integer.valueOf(primary.getQueries()), "replicas answer while they are up");
+		Check.that(one.getQueries() > 0 && two.getQueries() > 0, "lookups spread over the replicas");
+
+		one.setDown(true);
+		login(a, 4);
+		Check.that(endpoint(m, MemoryDatabase.PREFIX + "failover-1") == null, "replica that is down left out of the route");
+		int queries = one.getQueries();
+		login(a, 4);
+		Check.equal(Integer.valueOf(queries), Integer.valueOf(one.getQueries()), "replica that is down not asked again");
+
+		two.setDown(true);
+		login(a, 2);
+		Check.that(primary.getQueries() > 0, "primary answers when every replica is down");
+
+		one.setDown(false);
+		two.setDown(false);
+		router.checkHealth();
+		Check.that(endpoint(m, MemoryDatabase.PREFIX + "failover-1") != null, "health check brings a replica back");
+		int before = primary.getQueries();
+		login(a, 4);
+		Check.equal(Integer.valueOf(before), Integer.valueOf(primary.getQueries()), "replicas answer again after recovery");
+	}
+
+	private static void timeout() throws Exception
+	{
+		DBLogin m = module("timeout");
+		Authenticator a = authenticator(m, "timeout", false);
+		MemoryDatabase.Users one = MemoryDatabase.get("timeout-1");
+
+		one.setTimeout(true);
+		login(a, 4);
+		ReplicaRouter.Endpoint e = endpoint(m, MemoryDatabase.PREFIX + "timeout-1");
+		Check.that(e != null && e.isHealthy(), "query timeout doesn't mark a replica down");
+		Check.that(one.getQueries() >= 2, "replica that timed out still asked");
+		one.setTimeout(false);
+	}
+
+	private static void busyPool() throws Exception
+	{
+		DBLogin m = module("busy");
+		Map options = options("busy", false);
+		options.put("pool", "true");
+		options.put("poolMax", "1");
+		options.put("connectTimeout", "1");
+		Authenticator a = new ModuleAuthenticator(m, options);
+
+		// hold the only connection to the first replica
+		ReplicaRouter.Endpoint e = endpoint(m, MemoryDatabase.PREFIX + "busy-1");
+		java.sql.Connection held = e.getConnection();
+		try {
+			login(a, 2);
+		} finally {
+			held.close();
+		}
+		Check.that(e.isHealthy(), "replica whose pool is busy not marked down");
+		Check.that(MemoryDatabase.get("busy-2").getQueries() >= 1, "other replica asked instead");
+	}
+
+	private static void readYourWrites() throws Exception
+	{
+		final Authenticator stale = authenticator(module("stale"), "stale", false);
+		MemoryDatabase.get("stale").put("bob", "new", new String[0]);
+		Check.fails(FailedLoginException.class, new Check.Code() {
+			public void run() throws Exception
+			{
+				stale.authenticate("bob", "new".toCharArray());
+			}
+		}, "user only on the primary unknown without readYourWrites");
+
+		Authenticator fresh = authenticator(module("fresh"), "fresh", true);
+		MemoryDatabase.get("fresh").put("bob", "new", new String[0]);
+		Check.equal("bob", ((TypedPrincipal) fresh.authenticate("bob", "new".toCharArray()).get(0)).getName(),
+					"user only on the primary found with readYourWrites");
+		Check.equal(Integer.valueOf(1), Integer.valueOf(MemoryDatabase.get("fresh").getQueries()),
+					"primary asked once");
+
+		MemoryDatabase.get("fresh").setDown(true);
+		try {
+			fresh.authenticate("carol", "any".toCharArray());
+			Check.that(false, "primary down: no LoginException");
+		} catch (FailedLoginException e) {
+			Check.that(false, "primary down reported as " + e);
+		} catch (LoginException e) {
+			Check.that(true, "user unknown to a replica not reported unknown when the primary is down");
+		}
+		MemoryDatabase.get("fresh").setDown(false);
+	}
+
+	private static void bulk() throws Exception
+	{
+		DBLogin m = module("bulk");
+		authenticator(m, "bulk", true);
+		MemoryDatabase.get("bulk").put("bob", "new", new String[0]);
+		MemoryDatabase.get("bulk-1").setDown(true);
+		MemoryDatabase.get("bulk-2").setDown(true);
+
+		Map credentials = new LinkedHashMap();
+		credentials.put("alice", "secret".toCharArray());
+		credentials.put("bob", "new".toCharArray());
+		credentials.put("carol", "any".toCharArray());
+		Map results = m.validateUsers(credentials);
+		Check.that(((ValidationResult) results.get("alice")).isValid(), "bulk validation fails over to the primary");
+		Check.that(endpoint(m, MemoryDatabase.PREFIX + "bulk-1") == null, "and marks a replica that is down");
+
+		MemoryDatabase.get("bulk-1").setDown(false);
+		MemoryDatabase.get("bulk-2").setDown(false);
+		((DBLogin.Config) m.config).database.getRouter().checkHealth();
+		int before = MemoryDatabase.get("bulk").getQueries();
+		results = m.validateUsers(credentials);
+		Check.that(((ValidationResult) results.get("bob")).isValid(), "user only on the primary found with readYourWrites");
+		Check.that(((ValidationResult) results.get("carol")).getFailure() instanceof UnknownUserException,
+				   "user on neither still unknown");
+		Check.equal(Integer.valueOf(before + 1), Integer.valueOf(MemoryDatabase.get("bulk").getQueries()),
+					"primary asked once for the users a replica doesn't know");
+	}
+}
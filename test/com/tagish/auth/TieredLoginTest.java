@@ -0,0 +1,169 @@
+// $Id$
+package com.tagish.auth;
+
+import java.io.*;
+import java.util.*;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+/**
+ * Tests {@link TieredLogin}: falling through tiers that don't know the user,
+ * stopping at the first that does, promoting answers into the memory tier,
+ * and giving up on a tier that is down or slow without leaving a copy of
+ * the password behind.
+ *
+ * @version 1.0.3
+ */
+public class TieredLoginTest
+{
+	public static void main(String args[]) throws Exception
+	{
+		File f = File.createTempFile("passwd", ".test");
+		try {
+			Writer w = new FileWriter(f);
+			w.write("alice:secret:staff\n");
+			w.close();
+			fallThrough(f);
+			promotion(f);
+			unavailable(f);
+			timeout();
+		} finally {
+			f.delete();
+		}
+		BasicLogin.shutdown();
+		Check.done("TieredLoginTest");
+	}
+
+	/**
+	 * memory, then the password file, then the database.
+	 */
+	private static Authenticator authenticator(File f, String db)
+	{
+		MemoryDatabase.Users users = MemoryDatabase.get(db);
+		users.put("alice", "other", new String[0]);
+		users.put("bob", "secret", new String[] { "admin" });
+		Map options = new HashMap();
+		options.put("tiers", "memory,file,db");
+		options.put("file.pwdFile", f.getPath());
+		options.put("file.passwordVerifier", "plain");
+		options.put("db.dbDriver", MemoryDatabase.class.getName());
+		options.put("db.dbURL", MemoryDatabase.PREFIX + db);
+		options.put("db.roleTable", "roles");
+		return new ModuleAuthenticator(new TieredLogin(), options);
+	}
+
+	private static void login(final Authenticator a, final String username, final String password, Class fails)
+	{
+		Check.fails(fails, new Check.Code() {
+			public void run() throws Exception
+			{
+				a.authenticate(username, password.toCharArray());
+			}
+		}, username + "/" + password);
+	}
+
+	private static String name(List principals, int p)
+	{
+		return ((TypedPrincipal) principals.get(p)).getName();
+	}
+
+	private static void fallThrough(File f) throws Exception
+	{
+		Authenticator a = authenticator(f, "tiered");
+		MemoryDatabase.Users db = MemoryDatabase.get("tiered");
+
+		List alice = a.authenticate("alice", "secret".toCharArray());
+		Check.equal("staff", name(alice, 1), "user in the file answered by it");
+		Check.equal(Integer.valueOf(0), Integer.valueOf(db.getQueries()), "without asking the database");
+
+		login(a, "alice", "other", FailedLoginException.class);
+		Check.equal(Integer.valueOf(0), Integer.valueOf(db.getQueries()), "wrong password decided by the first tier to know the user");
+
+		List bob = a.authenticate("bob", "secret".toCharArray());
+		Check.equal("admin", name(bob, 1), "user only in the database found there");
+		Check.equal(Integer.valueOf(1), Integer.valueOf(db.getQueries()), "after the file doesn't know them");
+
+		login(a, "carol", "any", UnknownUserException.class);
+	}
+
+	private static void promotion(File f) throws Exception
+	{
+		Authenticator a = authenticator(f, "promoted");
+		MemoryDatabase.Users db = MemoryDatabase.get("promoted");
+
+		a.authenticate("bob", "secret".toCharArray());
+		List again = a.authenticate("bob", "secret".toCharArray());
+		Check.equal(Integer.valueOf(1), Integer.valueOf(db.getQueries()), "answer promoted into memory");
+		Check.equal("admin", name(again, 1), "with the user's groups");
+
+		login(a, "bob", "wrong", FailedLoginException.class);
+		login(a, "bob", "wrong", FailedLoginException.class);
+		Check.equal(Integer.valueOf(2), Integer.valueOf(db.getQueries()), "wrong password promoted too");
+
+		login(a, "carol", "any", UnknownUserException.class);
+		login(a, "carol", "any", UnknownUserException.class);
+		Check.equal(Integer.valueOf(4), Integer.valueOf(db.getQueries()), "unknown users not promoted");
+	}
+
+	private static void unavailable(File f) throws Exception
+	{
+		Authenticator a = authenticator(f, "unavailable");
+		MemoryDatabase.get("unavailable").setDown(true);
+		Check.equal("alice", name(a.authenticate("alice", "secret".toCharArray()), 0),
+					"faster tier answers while a slower one is down");
+		try {
+			a.authenticate("bob", "secret".toCharArray());
+			Check.that(false, "tier down: no LoginException");
+		} catch (FailedLoginException e) {
+			Check.that(false, "tier down reported as " + e);
+		} catch (LoginException e) {
+			Check.that(true, "user no tier could answer for not reported unknown");
+		}
+		MemoryDatabase.get("unavailable").setDown(false);
+	}
+
+	/**
+	 * A tier that takes its time, and keeps the password it was given.
+	 */
+	public static class Slow extends SimpleLogin
+	{
+		static volatile char	given[];
+
+		protected Vector validateUser(String username, char password[]) throws LoginException
+		{
+			given = password;
+			try {
+				Thread.sleep(300);
+			} catch (InterruptedException e) {
+				// given up on
+			}
+			throw new UnknownUserException();
+		}
+	}
+
+	private static void timeout() throws Exception
+	{
+		Map options = new HashMap();
+		options.put("tiers", "slow");
+		options.put("slow.module", Slow.class.getName());
+		options.put("slow.timeout", "50");
+		Authenticator a = new ModuleAuthenticator(new TieredLogin(), options);
+
+		char password[] = "secret".toCharArray();
+		long start = System.currentTimeMillis();
+		try {
+			a.authenticate("alice", password);
+			Check.that(false, "slow tier: no BackendUnavailableException");
+		} catch (BackendUnavailableException e) {
+			Check.that(System.currentTimeMillis() - start < 250, "slow tier given up on after its timeout");
+		}
+		Check.that(Slow.given != null && Slow.given != password, "slow tier given its own copy of the password");
+
+		long until = System.currentTimeMillis() + 5000;
+		while (!Arrays.equals(Slow.given, new char[password.length]) && System.currentTimeMillis() < until) {
+			Thread.sleep(20);
+		}
+		Check.that(Arrays.equals(Slow.given, new char[password.length]), "copy smudged once the tier is done with it");
+		Check.equal("secret", new String(password), "caller's password left alone");
+	}
+}